@@ -0,0 +1,41 @@
+package sc.fiji.labkit.cli;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Pool of pixel buffers for the segmented blocks.
+ * <p>
+ * A block is segmented by one thread, but compressed and written by another
+ * thread of the {@link BlockPipeline}. The buffers are therefore shared by
+ * all threads, rather than being thread local. The pool holds at most as many
+ * buffers as there have been blocks in flight at the same time, one list of
+ * buffers per size. Besides the full block size, there are only a few sizes
+ * of blocks at the border of the image.
+ */
+class BlockBuffers {
+
+	private final Map<Integer, Queue<byte[]>> pool = new ConcurrentHashMap<>();
+
+	/**
+	 * Returns a buffer of the given size. The content of the buffer is
+	 * undefined.
+	 */
+	byte[] acquire(int size) {
+		byte[] buffer = queue(size).poll();
+		return buffer != null ? buffer : new byte[size];
+	}
+
+	/**
+	 * Returns the buffer to the pool. The buffer must not be used afterwards.
+	 */
+	void release(byte[] buffer) {
+		queue(buffer.length).add(buffer);
+	}
+
+	private Queue<byte[]> queue(int size) {
+		return pool.computeIfAbsent(size, ignore -> new ConcurrentLinkedQueue<>());
+	}
+}
@@ -0,0 +1,240 @@
+package sc.fiji.labkit.cli;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shared store of block claims, that allows multiple processes to distribute
+ * the blocks of a segmentation dynamically among each other.
+ * <p>
+ * A claim is an empty file in the claims directory, the file name is the block
+ * index. Claims are acquired by atomic file creation, which works on shared
+ * file systems. The owner of a claim regularly {@link #renewLeases() renews}
+ * the file's modification time. A claim that was not renewed for longer than
+ * the lease timeout, is considered stale and can be taken over by another
+ * process. This happens if a process was killed while segmenting a block.
+ * <p>
+ * When a block is finished, its index is appended to a log file of the
+ * process, and the claim file is deleted. The claims directory therefore only
+ * holds one file per block in flight, plus one log file per process. A block
+ * listed in any of the log files is not claimed again, neither after a
+ * restart, unless the block file turns out to be missing, see
+ * {@link #forgetFinished}. The claims directory is deleted, when a fresh
+ * segmentation dataset is created.
+ */
+class BlockClaims {
+
+	static final String CLAIMS_DIRECTORY = "segmentation-claims";
+
+	static final String FINISHED_PREFIX = "finished-";
+
+	private final Path directory;
+
+	private final long leaseTimeoutMillis;
+
+	private final Set<Integer> owned = ConcurrentHashMap.newKeySet();
+
+	private final Path finishedFile;
+
+	private final Set<Integer> finished = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Number of bytes already read, of each log file of finished blocks.
+	 */
+	private final Map<Path, Long> finishedFileOffsets = new HashMap<>();
+
+	BlockClaims(Path n5, long leaseTimeout, TimeUnit unit) throws IOException {
+		this.directory = n5.resolve(CLAIMS_DIRECTORY);
+		this.leaseTimeoutMillis = unit.toMillis(leaseTimeout);
+		this.finishedFile = directory.resolve(FINISHED_PREFIX + UUID.randomUUID() +
+			".txt");
+		Files.createDirectories(directory);
+		refreshFinished();
+	}
+
+	/**
+	 * Tries to claim the block with the given index.
+	 *
+	 * @return true, if the claim was acquired by this process. False, if the
+	 *         block is finished, or if the block is claimed by another process,
+	 *         and the claim is not stale.
+	 */
+	boolean tryClaim(int index) {
+		if (finished.contains(index))
+			return false;
+		Path claim = claimFile(index);
+		if (tryCreate(claim)) {
+			// Another process might have finished the block and deleted its claim.
+			// The block is logged as finished before the claim is deleted.
+			refreshFinished();
+			if (finished.contains(index)) {
+				delete(claim);
+				return false;
+			}
+			owned.add(index);
+			return true;
+		}
+		if (!isStale(claim))
+			return false;
+		// Renaming is atomic, only one of the processes that detected the stale
+		// claim succeeds. The other processes get a NoSuchFileException.
+		try {
+			Path stale = directory.resolve(index + ".stale-" + UUID.randomUUID());
+			Files.move(claim, stale, StandardCopyOption.ATOMIC_MOVE);
+			Files.deleteIfExists(stale);
+		}
+		catch (NoSuchFileException e) {
+			return false;
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return tryClaim(index);
+	}
+
+	/**
+	 * Releases a claim of this process, such that the block can be claimed
+	 * again. This is used if the segmentation of a block failed.
+	 */
+	void release(int index) {
+		owned.remove(index);
+		delete(claimFile(index));
+	}
+
+	/**
+	 * Marks a block as finished. The block is appended to the log file of this
+	 * process, and the claim file is deleted.
+	 */
+	void finish(int index) {
+		try {
+			synchronized (finishedFile) {
+				Files.write(finishedFile, (index + "\n").getBytes(
+					StandardCharsets.UTF_8), StandardOpenOption.CREATE,
+					StandardOpenOption.APPEND, StandardOpenOption.DSYNC);
+			}
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		finished.add(index);
+		owned.remove(index);
+		delete(claimFile(index));
+	}
+
+	/**
+	 * Forgets that the block was finished, such that it can be claimed again.
+	 * This is used for blocks that are logged as finished, but whose block file
+	 * is missing or incomplete.
+	 */
+	void forgetFinished(int index) {
+		finished.remove(index);
+	}
+
+	/**
+	 * Reads the blocks, that were finished by any process since the last call.
+	 * Only the new part of each log file is read. Lines that were only
+	 * partially written are read later.
+	 */
+	synchronized void refreshFinished() {
+		File[] files = directory.toFile().listFiles((dir, name) -> name.startsWith(
+			FINISHED_PREFIX));
+		if (files == null)
+			return;
+		for (File file : files) {
+			long offset = finishedFileOffsets.getOrDefault(file.toPath(), 0L);
+			try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+				byte[] bytes = new byte[(int) (input.length() - offset)];
+				input.seek(offset);
+				input.readFully(bytes);
+				int end = bytes.length;
+				while (end > 0 && bytes[end - 1] != '\n')
+					end--;
+				for (String line : new String(bytes, 0, end, StandardCharsets.UTF_8)
+					.split("\n"))
+					if (!line.isEmpty())
+						finished.add(Integer.parseInt(line.trim()));
+				finishedFileOffsets.put(file.toPath(), offset + end);
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	/**
+	 * Updates the modification time of all claims currently owned by this
+	 * process. Needs to be called more often than the lease timeout.
+	 */
+	void renewLeases() {
+		FileTime now = FileTime.fromMillis(System.currentTimeMillis());
+		for (Integer index : owned) {
+			try {
+				Files.setLastModifiedTime(claimFile(index), now);
+			}
+			catch (IOException e) {
+				System.err.println("Failed to renew claim for block " + index + ": " +
+					e.getMessage());
+			}
+		}
+	}
+
+	long leaseTimeoutMillis() {
+		return leaseTimeoutMillis;
+	}
+
+	private boolean isStale(Path claim) {
+		try {
+			long age = System.currentTimeMillis() - Files.getLastModifiedTime(claim)
+				.toMillis();
+			return age > leaseTimeoutMillis;
+		}
+		catch (NoSuchFileException e) {
+			return true;
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static void delete(Path claim) {
+		try {
+			Files.deleteIfExists(claim);
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static boolean tryCreate(Path claim) {
+		try {
+			Files.createFile(claim);
+			return true;
+		}
+		catch (FileAlreadyExistsException e) {
+			return false;
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private Path claimFile(int index) {
+		return directory.resolve(Integer.toString(index));
+	}
+}
@@ -0,0 +1,164 @@
+package sc.fiji.labkit.cli;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToLongFunction;
+
+/**
+ * Collects timing and size measurements for each processed block: time to
+ * read the input, time to segment, time to compress, time to write, and the
+ * number of bytes written.
+ * <p>
+ * The measurements can be written to a CSV file, with one line per block, and
+ * summarized with the percentiles of each stage. The read time is only
+ * measured, if the input is prefetched. Otherwise it is part of the segment
+ * time, and left empty in the CSV file.
+ */
+class BlockMetrics {
+
+	static final String METRICS_DIRECTORY = "segmentation-metrics";
+
+	/**
+	 * Marks a time that was not measured.
+	 */
+	static final long UNMEASURED = -1;
+
+	private final Map<Integer, Record> records = new ConcurrentHashMap<>();
+
+	private final long startNanos = System.nanoTime();
+
+	/**
+	 * Returns the record for the block with the given index. The fields of a
+	 * record are written by the different stages of the {@link BlockPipeline}.
+	 */
+	Record get(int index) {
+		return records.computeIfAbsent(index, Record::new);
+	}
+
+	/**
+	 * Default location of the CSV file, for the given chunk of the
+	 * segmentation, in the N5 folder.
+	 */
+	static Path defaultCsv(Path n5, int index, int numberOfChunks) {
+		return n5.resolve(METRICS_DIRECTORY).resolve("chunk-" + index + "-of-" +
+			numberOfChunks + ".csv");
+	}
+
+	void writeCsv(Path file) throws IOException {
+		Path parent = file.toAbsolutePath().getParent();
+		if (parent != null)
+			Files.createDirectories(parent);
+		try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file,
+			StandardCharsets.UTF_8)))
+		{
+			out.println(
+				"block_index,block_offset,voxels,read_ms,segment_ms,compress_ms,write_ms,bytes_written,voxels_per_second");
+			for (Record record : sortedRecords())
+				out.println(String.format(Locale.ROOT, "%d,%s,%d,%s,%.3f,%.3f,%.3f,%d,%.1f",
+					record.index, Arrays.toString(record.blockOffset).replace(", ", " "),
+					record.voxels, optionalMillis(record.readNanos), millis(record.segmentNanos),
+					millis(record.compressNanos), millis(record.writeNanos),
+					record.bytesWritten, record.voxelsPerSecond()));
+		}
+	}
+
+	/**
+	 * Returns a human readable summary, with the percentiles p50, p95 and p99 of
+	 * each stage, and the overall throughput.
+	 */
+	String summary() {
+		List<Record> list = sortedRecords();
+		double seconds = (System.nanoTime() - startNanos) * 1e-9;
+		long voxels = list.stream().mapToLong(r -> r.voxels).sum();
+		long bytes = list.stream().mapToLong(r -> r.bytesWritten).sum();
+		StringBuilder summary = new StringBuilder();
+		summary.append(String.format(Locale.ROOT,
+			"Blocks: %d, voxels: %d, bytes written: %d, throughput: %.1f voxels/s%n",
+			list.size(), voxels, bytes, voxels / seconds));
+		summary.append(String.format(Locale.ROOT, "%-10s %12s %12s %12s%n",
+			"stage", "p50 [ms]", "p95 [ms]", "p99 [ms]"));
+		appendStage(summary, "read", list, r -> r.readNanos);
+		appendStage(summary, "segment", list, r -> r.segmentNanos);
+		appendStage(summary, "compress", list, r -> r.compressNanos);
+		appendStage(summary, "write", list, r -> r.writeNanos);
+		return summary.toString();
+	}
+
+	private static void appendStage(StringBuilder summary, String stage,
+		List<Record> list, ToLongFunction<Record> nanos)
+	{
+		long[] values = list.stream().mapToLong(nanos).filter(
+			value -> value != UNMEASURED).sorted().toArray();
+		if (values.length == 0 && !list.isEmpty()) {
+			summary.append(String.format(Locale.ROOT, "%-10s %12s%n", stage,
+				"not measured"));
+			return;
+		}
+		summary.append(String.format(Locale.ROOT, "%-10s %12.3f %12.3f %12.3f%n",
+			stage, millis(percentile(values, 50)), millis(percentile(values, 95)),
+			millis(percentile(values, 99))));
+	}
+
+	/**
+	 * Nearest-rank percentile of the given sorted values.
+	 */
+	static long percentile(long[] sorted, int percent) {
+		if (sorted.length == 0)
+			return 0;
+		int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+		return sorted[Math.max(0, rank - 1)];
+	}
+
+	private List<Record> sortedRecords() {
+		List<Record> list = new ArrayList<>(records.values());
+		list.sort(Comparator.comparingInt(r -> r.index));
+		return list;
+	}
+
+	private static double millis(long nanos) {
+		return nanos * 1e-6;
+	}
+
+	private static String optionalMillis(long nanos) {
+		return nanos == UNMEASURED ? "" : String.format(Locale.ROOT, "%.3f",
+			millis(nanos));
+	}
+
+	static class Record {
+
+		private final int index;
+
+		long[] blockOffset = new long[0];
+
+		long voxels;
+
+		long readNanos = UNMEASURED;
+
+		long segmentNanos;
+
+		long compressNanos;
+
+		long writeNanos;
+
+		long bytesWritten;
+
+		private Record(int index) {
+			this.index = index;
+		}
+
+		double voxelsPerSecond() {
+			long nanos = segmentNanos + compressNanos + writeNanos;
+			return nanos == 0 ? 0 : voxels / (nanos * 1e-9);
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package sc.fiji.labkit.cli;
+
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Traversal order of the blocks in a block grid.
+ * <p>
+ * The blocks are sorted along a Morton curve (Z-order) of their grid
+ * positions. Blocks that are processed one after the other are therefore
+ * neighbors, and a consecutive range of blocks covers a compact region of the
+ * image, rather than a thin slab. Neighboring blocks share the halo of input
+ * pixels required by the filters of the classifier. With this order, the
+ * halo is still in the cache when the next block needs it.
+ */
+class BlockOrder extends AbstractList<Integer> {
+
+	private final int[] indices;
+
+	private BlockOrder(int[] indices) {
+		this.indices = indices;
+	}
+
+	/**
+	 * Returns the flat indices of all blocks of the grid, sorted along the
+	 * Morton curve of the spatial axes. Blocks that differ in a non-spatial
+	 * axis, for example time, are never interleaved. The last non-spatial axis
+	 * changes slowest.
+	 */
+	static BlockOrder morton(long[] gridDimensions, boolean[] spatial) {
+		int n = gridDimensions.length;
+		int numberOfBlocks = (int) Intervals.numElements(gridDimensions);
+		long[] codes = new long[numberOfBlocks];
+		long[] outer = new long[numberOfBlocks];
+		long[] position = new long[n];
+		long[] spatialPosition = new long[n];
+		for (int i = 0; i < numberOfBlocks; i++) {
+			IntervalIndexer.indexToPosition(i, gridDimensions, position);
+			int s = 0;
+			long outerIndex = 0;
+			for (int d = n - 1; d >= 0; d--)
+				if (!spatial[d])
+					outerIndex = outerIndex * gridDimensions[d] + position[d];
+			for (int d = 0; d < n; d++)
+				if (spatial[d])
+					spatialPosition[s++] = position[d];
+			codes[i] = mortonCode(Arrays.copyOf(spatialPosition, s));
+			outer[i] = outerIndex;
+		}
+		int[] indices = IntStream.range(0, numberOfBlocks).boxed().sorted(
+			Comparator.<Integer> comparingLong(i -> outer[i]).thenComparingLong(
+				i -> codes[i])).mapToInt(i -> i).toArray();
+		return new BlockOrder(indices);
+	}
+
+	/**
+	 * Interleaves the bits of the coordinates. With n dimensions, the lowest
+	 * 63 / n bits of each coordinate are used, which is plenty for block
+	 * grids.
+	 */
+	static long mortonCode(long[] position) {
+		int n = position.length;
+		int bits = 63 / Math.max(1, n);
+		long code = 0;
+		int shift = 0;
+		for (int bit = 0; bit < bits; bit++)
+			for (int d = 0; d < n; d++)
+				code |= ((position[d] >> bit) & 1L) << shift++;
+		return code;
+	}
+
+	@Override
+	public Integer get(int i) {
+		return indices[i];
+	}
+
+	@Override
+	public int size() {
+		return indices.length;
+	}
+
+	@Override
+	public List<Integer> subList(int fromIndex, int toIndex) {
+		return new BlockOrder(Arrays.copyOfRange(indices, fromIndex, toIndex));
+	}
+}
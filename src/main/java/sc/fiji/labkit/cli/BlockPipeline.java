@@ -0,0 +1,266 @@
+package sc.fiji.labkit.cli;
+
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.parallel.TaskExecutor;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntConsumer;
+
+/**
+ * Processes a list of blocks in three overlapping stages:
+ * <ol>
+ * <li>A prefetch thread loads the input pixels of the upcoming blocks.</li>
+ * <li>The threads of the given {@link TaskExecutor} segment the blocks.</li>
+ * <li>A separate pool of I/O threads compresses and writes the segmented
+ * blocks to the N5 dataset.</li>
+ * </ol>
+ * This keeps the segmentation threads busy, while waiting for the file system.
+ * The queues between the stages are bounded, a segmentation thread waits if
+ * the write queue is full.
+ */
+class BlockPipeline {
+
+	static final int DEFAULT_PREFETCH = 2;
+
+	static final int DEFAULT_IO_THREADS = 2;
+
+	static final int DEFAULT_WRITE_QUEUE = 4;
+
+	private final int prefetch;
+
+	private final int ioThreads;
+
+	private final int writeQueue;
+
+	private MemoryAdmission admission = null;
+
+	private SegmentedBlocks segmentedBlocks = null;
+
+	/**
+	 * @param prefetch Number of blocks, whose input is loaded ahead of time.
+	 *          Zero disables prefetching.
+	 * @param ioThreads Number of threads that compress and write blocks. Zero
+	 *          means, that blocks are written by the segmentation threads.
+	 * @param writeQueue Maximal number of segmented blocks waiting to be written.
+	 */
+	BlockPipeline(int prefetch, int ioThreads, int writeQueue) {
+		this.prefetch = prefetch;
+		this.ioThreads = ioThreads;
+		this.writeQueue = writeQueue;
+	}
+
+	static BlockPipeline defaults() {
+		return new BlockPipeline(DEFAULT_PREFETCH, DEFAULT_IO_THREADS,
+			DEFAULT_WRITE_QUEUE);
+	}
+
+	/**
+	 * Limits the number of blocks that are segmented concurrently, to fit
+	 * into a memory budget. Without admission, every thread of the task
+	 * executor segments a block.
+	 */
+	void setMemoryAdmission(MemoryAdmission admission) {
+		this.admission = admission;
+	}
+
+	/**
+	 * Offers every segmented block to the given {@link SegmentedBlocks}, before
+	 * its pixel buffer is reused.
+	 */
+	void setSegmentedBlocks(SegmentedBlocks segmentedBlocks) {
+		this.segmentedBlocks = segmentedBlocks;
+	}
+
+	/**
+	 * Segments and writes the given blocks. The callback is called, after a
+	 * block has been written. The time spent in each stage is recorded in the
+	 * given {@link BlockMetrics}.
+	 */
+	void run(BlockSegmentation segmentation, List<Integer> blocks,
+		TaskExecutor taskExecutor, BlockMetrics metrics, IntConsumer onWritten)
+	{
+		ExecutorService prefetchPool = prefetch > 0 ? Executors
+			.newSingleThreadExecutor() : null;
+		ExecutorService writePool = ioThreads > 0 ? Executors.newFixedThreadPool(
+			ioThreads) : null;
+		try {
+			Prefetcher prefetcher = new Prefetcher(segmentation, blocks, metrics,
+				prefetchPool);
+			Semaphore writeSlots = new Semaphore(writeQueue + ioThreads);
+			Queue<Future<?>> writes = new ConcurrentLinkedQueue<>();
+			AtomicInteger next = new AtomicInteger(0);
+			taskExecutor.forEach(new IntRange(0, taskExecutor.getParallelism()),
+				ignore -> {
+					for (int p = next.getAndIncrement(); p < blocks.size(); p = next
+						.getAndIncrement())
+					{
+						prefetcher.awaitInput(p);
+						int i = blocks.get(p);
+						ArrayImg<UnsignedByteType, ByteArray> block = admitAndCompute(
+							segmentation, i, metrics.get(i));
+						if (writePool == null) {
+							write(segmentation, i, block, metrics.get(i));
+							onWritten.accept(i);
+						}
+						else {
+							writeSlots.acquireUninterruptibly();
+							writes.add(writePool.submit(() -> {
+								try {
+									write(segmentation, i, block, metrics.get(i));
+									onWritten.accept(i);
+								}
+								finally {
+									writeSlots.release();
+								}
+							}));
+						}
+					}
+				});
+			for (Future<?> write : writes)
+				await(write);
+		}
+		finally {
+			if (prefetchPool != null) prefetchPool.shutdownNow();
+			if (writePool != null) writePool.shutdown();
+		}
+	}
+
+	private ArrayImg<UnsignedByteType, ByteArray> admitAndCompute(
+		BlockSegmentation segmentation, int index, BlockMetrics.Record record)
+	{
+		if (admission == null)
+			return compute(segmentation, index, record);
+		admission.acquire();
+		try {
+			return compute(segmentation, index, record);
+		}
+		finally {
+			admission.release();
+		}
+	}
+
+	private static ArrayImg<UnsignedByteType, ByteArray> compute(
+		BlockSegmentation segmentation, int index, BlockMetrics.Record record)
+	{
+		try {
+			long start = System.nanoTime();
+			ArrayImg<UnsignedByteType, ByteArray> block = segmentation.computeBlock(
+				index);
+			record.segmentNanos = System.nanoTime() - start;
+			record.voxels = block.size();
+			record.blockOffset = segmentation.blockOffset(index);
+			return block;
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void write(BlockSegmentation segmentation, int index,
+		ArrayImg<UnsignedByteType, ByteArray> block, BlockMetrics.Record record)
+	{
+		try {
+			long start = System.nanoTime();
+			byte[] bytes = segmentation.compressBlock(index, block);
+			if (segmentedBlocks != null)
+				segmentedBlocks.offer(index, block.update(null)
+					.getCurrentStorageArray(), (int) block.size());
+			segmentation.releaseBlock(block);
+			long compressed = System.nanoTime();
+			segmentation.writeCompressedBlock(index, bytes);
+			record.compressNanos = compressed - start;
+			record.writeNanos = System.nanoTime() - compressed;
+			record.bytesWritten = bytes == null ? 0 : bytes.length;
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static void await(Future<?> future) {
+		try {
+			future.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * Submits prefetch tasks in the order of the block list, and keeps them at
+	 * most {@link #prefetch} blocks ahead of the segmentation.
+	 */
+	private class Prefetcher {
+
+		private final BlockSegmentation segmentation;
+
+		private final List<Integer> blocks;
+
+		private final BlockMetrics metrics;
+
+		private final ExecutorService pool;
+
+		private final AtomicReferenceArray<Future<?>> futures;
+
+		private int submitted = 0;
+
+		private Prefetcher(BlockSegmentation segmentation, List<Integer> blocks,
+			BlockMetrics metrics, ExecutorService pool)
+		{
+			this.segmentation = segmentation;
+			this.blocks = blocks;
+			this.metrics = metrics;
+			this.pool = pool;
+			this.futures = new AtomicReferenceArray<>(pool == null ? 0 : blocks
+				.size());
+		}
+
+		/**
+		 * Waits until the input of the block at the given position of the block
+		 * list is loaded, and schedules the prefetching of the following blocks.
+		 */
+		private void awaitInput(int position) {
+			if (pool == null)
+				return;
+			submitUpTo(Math.min(blocks.size(), position + 1 + prefetch));
+			Future<?> future = futures.getAndSet(position, null);
+			try {
+				future.get();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			catch (ExecutionException e) {
+				// Ignore, the segmentation will try to load the input again.
+			}
+		}
+
+		private synchronized void submitUpTo(int end) {
+			for (; submitted < end; submitted++) {
+				int index = blocks.get(submitted);
+				futures.set(submitted, pool.submit(() -> {
+					long start = System.nanoTime();
+					segmentation.prefetchInput(index);
+					metrics.get(index).readNanos = System.nanoTime() - start;
+					return null;
+				}));
+			}
+		}
+	}
+}
@@ -0,0 +1,601 @@
+package sc.fiji.labkit.cli;
+
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.parallel.TaskExecutor;
+import net.imglib2.parallel.TaskExecutors;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.janelia.saalfeldlab.n5.ByteArrayDataBlock;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.DefaultBlockWriter;
+import org.janelia.saalfeldlab.n5.IntArrayDataBlock;
+import org.janelia.saalfeldlab.n5.LongArrayDataBlock;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.ShortArrayDataBlock;
+import org.scijava.Context;
+import sc.fiji.labkit.pixel_classification.gpu.api.GpuPool;
+import sc.fiji.labkit.ui.segmentation.Segmenter;
+import sc.fiji.labkit.ui.segmentation.weka.TrainableSegmentationSegmenter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+/**
+ * Segments individual blocks of an image and writes them into the
+ * {@link PrepareCommand#N5_DATASET_NAME segmentation} dataset of a N5 folder.
+ * <p>
+ * The blocks are addressed by their flat index in the block grid of the N5
+ * dataset. This is used by {@link SegmentChunkCommand} and
+ * {@link SegmentWorkerCommand}.
+ */
+class BlockSegmentation {
+
+	/**
+	 * Directory in the N5 folder, that lists the blocks that were not written
+	 * because they only contain the fill value. Each process appends to its own
+	 * file.
+	 */
+	static final String EMPTY_BLOCKS_DIRECTORY = "segmentation-empty-blocks";
+
+	/**
+	 * Default margin around a block, see {@link #setMargin}. About the size of
+	 * the largest filter used by the default classifier settings.
+	 */
+	static final int DEFAULT_MARGIN = 8;
+
+	private final String n5;
+
+	private final N5Writer writer;
+
+	private ImgPlus<?> image;
+
+	private final Consumer<RandomAccessibleInterval<UnsignedByteType>> loader;
+
+	private final DatasetAttributes attributes;
+
+	private final CellGrid grid;
+
+	private final long[] gridDimensions;
+
+	private final int[] blockSize;
+
+	private final BlockBuffers buffers = new BlockBuffers();
+
+	private final ThreadLocal<ByteArrayOutputStream> compressionBuffers =
+		ThreadLocal.withInitial(ByteArrayOutputStream::new);
+
+	private BlockOrder blockOrder;
+
+	private double backgroundThreshold = Double.NaN;
+
+	private int backgroundLabel = 0;
+
+	private int margin = DEFAULT_MARGIN;
+
+	private final AtomicInteger backgroundBlocks = new AtomicInteger(0);
+
+	private final Long fillValue;
+
+	private final Path emptyBlocksFile;
+
+	private final Set<Integer> emptyBlocks = ConcurrentHashMap.newKeySet();
+
+	BlockSegmentation(String n5, Segmenter segmenter, ImgPlus<?> image)
+		throws IOException
+	{
+		this.n5 = n5;
+		this.writer = new N5FSWriter(n5);
+		this.image = image;
+		// The attributes don't change during the segmentation. Reading them once
+		// avoids parsing the attributes JSON for every block.
+		this.attributes = writer.getDatasetAttributes(
+			PrepareCommand.N5_DATASET_NAME);
+		this.grid = new CellGrid(attributes.getDimensions(), attributes
+			.getBlockSize());
+		this.gridDimensions = grid.getGridDimensions();
+		this.blockSize = attributes.getBlockSize();
+		// reads the image field, such that setInputCache takes effect
+		Consumer<RandomAccessibleInterval<UnsignedByteType>> loader =
+			block -> segmenter.segment(this.image, block);
+		if (segmenter.requiresFixedCellSize())
+			loader = fixBlockSize(loader, blockSize);
+		this.loader = loader;
+		this.fillValue = PrepareCommand.fillValue(writer);
+		this.emptyBlocksFile = Paths.get(n5, EMPTY_BLOCKS_DIRECTORY, UUID
+			.randomUUID() + ".txt");
+		if (fillValue != null)
+			refreshEmptyBlocks();
+	}
+
+	static TrainableSegmentationSegmenter openSegmenter(File classifier,
+		boolean useGpu)
+	{
+		TrainableSegmentationSegmenter segmenter =
+			new TrainableSegmentationSegmenter(new Context());
+		segmenter.openModel(classifier.getAbsolutePath());
+		segmenter.setUseGpu(useGpu);
+		return segmenter;
+	}
+
+	static TaskExecutor createTaskExecutor(boolean useGpu) {
+		return createTaskExecutor(useGpu, 1);
+	}
+
+	/**
+	 * @param gpuBuffers In GPU mode, number of blocks that are processed
+	 *          concurrently per parallel GPU access allowed by the
+	 *          {@link GpuPool}. With a value of two, one block can be prepared
+	 *          on the CPU, while the other block is segmented on the GPU.
+	 */
+	static TaskExecutor createTaskExecutor(boolean useGpu, int gpuBuffers) {
+		if (useGpu) {
+			// Use as many threads as there are parallel gpu accesses allowed with the GpuPool,
+			// times the number of gpu buffers. Threads that wait for a GPU are blocked by the GpuPool.
+			// Each of those treads uses standard multithreading, for fast memory copying to the GPU.
+			if(!GpuPool.isGpuAvailable()) {
+				System.err.println("No OpenCL device found. Make sure you properly install your OpenCL drivers.");
+				System.exit(1);
+			}
+			TaskExecutor taskExecutor = TaskExecutors.multiThreaded();
+			ThreadFactory threadFactory = TaskExecutors.threadFactory(() -> taskExecutor);
+			return TaskExecutors.forExecutorService(Executors.newFixedThreadPool(
+				numberOfThreads(true, gpuBuffers), threadFactory));
+		}
+		else {
+			// Use as many threads as there are processors.
+			// Single threading inside each of those threads.
+			return TaskExecutors.fixedThreadPool(numberOfThreads(false, gpuBuffers));
+		}
+	}
+
+	/**
+	 * Number of blocks that are segmented concurrently by the
+	 * {@link #createTaskExecutor(boolean, int) task executor}.
+	 */
+	static int numberOfThreads(boolean useGpu, int gpuBuffers) {
+		return useGpu ? GpuPool.size() * Math.max(1, gpuBuffers) : Runtime
+			.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Enables the background pre-pass: before a block is segmented, the
+	 * intensities of the input image are checked. If no pixel of the block,
+	 * or of the surrounding margin, is above the threshold, the classifier is
+	 * skipped and the block is filled with the background label.
+	 */
+	void setBackgroundThreshold(double threshold, int label) {
+		this.backgroundThreshold = threshold;
+		this.backgroundLabel = label;
+	}
+
+	/**
+	 * Sets the margin around a block, that the features of the classifier look
+	 * at. The margin is prefetched together with the block, and checked by the
+	 * background pre-pass. It is only applied to spatial axes.
+	 */
+	void setMargin(int margin) {
+		this.margin = margin;
+	}
+
+	/**
+	 * Number of blocks that were filled with the background label, without
+	 * running the classifier.
+	 */
+	int numberOfBackgroundBlocks() {
+		return backgroundBlocks.get();
+	}
+
+	/**
+	 * Reads the input image through a {@link InputCache} of the given size,
+	 * whose cells are aligned with the blocks of the segmentation.
+	 */
+	void setInputCache(long maxBytes) {
+		int channelAxis = image.dimensionIndex(Axes.CHANNEL);
+		int[] cellSize = new int[image.numDimensions()];
+		for (int d = 0, b = 0; d < cellSize.length; d++)
+			cellSize[d] = d == channelAxis ? (int) image.dimension(d)
+				: blockSize[b++];
+		this.image = InputCache.wrap(image, cellSize, maxBytes);
+	}
+
+	int numberOfBlocks() {
+		return (int) Intervals.numElements(gridDimensions);
+	}
+
+	/**
+	 * Initial estimate of the memory required to segment a block, see
+	 * {@link MemoryAdmission#estimateBytesPerBlock}.
+	 */
+	long estimateBytesPerBlock() {
+		int channelAxis = image.dimensionIndex(Axes.CHANNEL);
+		long channels = channelAxis < 0 ? 1 : image.dimension(channelAxis);
+		return MemoryAdmission.estimateBytesPerBlock(Intervals.numElements(
+			blockSize), channels);
+	}
+
+	/**
+	 * Returns the indices of all blocks, in the order they should be
+	 * processed, see {@link BlockOrder}. Only the spatial axes are
+	 * interleaved, see {@link PrepareCommand#spatialAxes}.
+	 */
+	synchronized List<Integer> blockOrder() {
+		if (blockOrder == null) {
+			try {
+				blockOrder = BlockOrder.morton(gridDimensions, PrepareCommand
+					.spatialAxes(writer, PrepareCommand.N5_DATASET_NAME));
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		return blockOrder;
+	}
+
+	long[] blockOffset(int index) {
+		long[] blockOffset = new long[gridDimensions.length];
+		IntervalIndexer.indexToPosition(index, gridDimensions, blockOffset);
+		return blockOffset;
+	}
+
+	/**
+	 * Segments the block with the given index and writes it to the N5 dataset.
+	 */
+	void segmentBlock(int index) throws IOException {
+		ArrayImg<UnsignedByteType, ByteArray> block = computeBlock(index);
+		writeBlock(index, block);
+		releaseBlock(block);
+	}
+
+	/**
+	 * Loads the input pixels of the block with the given index and its margin
+	 * into the cache of the input image, such that a subsequent
+	 * {@link #computeBlock} doesn't need to wait for the file system.
+	 */
+	void prefetchInput(int index) throws IOException {
+		RandomAccessibleInterval<?> input = Views.interval(image, inputInterval(
+			withMargin(blockInterval(index))));
+		for (Object pixel : Views.iterable(input))
+			Objects.requireNonNull(pixel);
+	}
+
+	/**
+	 * Segments the block with the given index. The pixel buffer of the returned
+	 * block is taken from a pool, it should be given back by
+	 * {@link #releaseBlock} once the block is written.
+	 */
+	ArrayImg<UnsignedByteType, ByteArray> computeBlock(int index)
+		throws IOException
+	{
+		Interval interval = blockInterval(index);
+		ArrayImg<UnsignedByteType, ByteArray> block = ArrayImgs.unsignedBytes(
+			buffers.acquire((int) Intervals.numElements(interval)), Intervals
+				.dimensionsAsLongArray(interval));
+		if (isBackground(interval)) {
+			backgroundBlocks.incrementAndGet();
+			Arrays.fill(block.update(null).getCurrentStorageArray(),
+				(byte) backgroundLabel);
+			return block;
+		}
+		loader.accept(Views.translate(block, Intervals.minAsLongArray(interval)));
+		return block;
+	}
+
+	/**
+	 * Returns the pixel buffer of a block, that was returned by
+	 * {@link #computeBlock}, to the pool. The block must not be used
+	 * afterwards.
+	 */
+	void releaseBlock(ArrayImg<UnsignedByteType, ByteArray> block) {
+		buffers.release(block.update(null).getCurrentStorageArray());
+	}
+
+	/**
+	 * Returns true, if the background pre-pass is enabled and the input pixels
+	 * of the given block and its margin are all below or equal to the
+	 * threshold.
+	 */
+	private boolean isBackground(Interval block) {
+		if (Double.isNaN(backgroundThreshold))
+			return false;
+		Interval input = inputInterval(withMargin(block));
+		for (Object pixel : Views.iterable(Views.interval(image, input)))
+			if (((RealType<?>) pixel).getRealDouble() > backgroundThreshold)
+				return false;
+		return true;
+	}
+
+	private Interval withMargin(Interval block) {
+		int channelAxis = image.dimensionIndex(Axes.CHANNEL);
+		long[] min = Intervals.minAsLongArray(block);
+		long[] max = Intervals.maxAsLongArray(block);
+		for (int d = 0, b = 0; d < image.numDimensions(); d++) {
+			if (d == channelAxis)
+				continue;
+			if (image.axis(d).type().isSpatial()) {
+				min[b] = Math.max(image.min(d), min[b] - margin);
+				max[b] = Math.min(image.max(d), max[b] + margin);
+			}
+			b++;
+		}
+		return new FinalInterval(min, max);
+	}
+
+	/**
+	 * Compresses the given block and writes it to the N5 dataset.
+	 */
+	void writeBlock(int index, ArrayImg<UnsignedByteType, ByteArray> block)
+		throws IOException
+	{
+		writeCompressedBlock(index, compressBlock(index, block));
+	}
+
+	/**
+	 * Serializes and compresses the given block, as specified by the attributes
+	 * of the N5 dataset.
+	 *
+	 * @return null, if the dataset is sparse and the block only contains the
+	 *         fill value. Such a block is not written.
+	 */
+	byte[] compressBlock(int index, ArrayImg<UnsignedByteType, ByteArray> block)
+		throws IOException
+	{
+		if (isFillBlock(block.update(null).getCurrentStorageArray()))
+			return null;
+		DataBlock<?> dataBlock = toDataBlock(attributes.getDataType(), Intervals
+			.dimensionsAsIntArray(block), blockOffset(index), block.update(null)
+				.getCurrentStorageArray());
+		ByteArrayOutputStream out = compressionBuffers.get();
+		out.reset();
+		DefaultBlockWriter.writeBlock(out, attributes, dataBlock);
+		return out.toByteArray();
+	}
+
+	/**
+	 * The segmenter writes unsigned bytes, which are converted to the data type
+	 * of the N5 dataset.
+	 */
+	private static DataBlock<?> toDataBlock(DataType dataType, int[] size,
+		long[] gridPosition, byte[] pixels)
+	{
+		switch (dataType) {
+			case UINT8:
+				return new ByteArrayDataBlock(size, gridPosition, pixels);
+			case UINT16: {
+				short[] values = new short[pixels.length];
+				for (int i = 0; i < pixels.length; i++)
+					values[i] = (short) (pixels[i] & 0xff);
+				return new ShortArrayDataBlock(size, gridPosition, values);
+			}
+			case UINT32: {
+				int[] values = new int[pixels.length];
+				for (int i = 0; i < pixels.length; i++)
+					values[i] = pixels[i] & 0xff;
+				return new IntArrayDataBlock(size, gridPosition, values);
+			}
+			case UINT64: {
+				long[] values = new long[pixels.length];
+				for (int i = 0; i < pixels.length; i++)
+					values[i] = pixels[i] & 0xff;
+				return new LongArrayDataBlock(size, gridPosition, values);
+			}
+			default:
+				throw new UnsupportedOperationException(
+					"Unsupported data type of the segmentation dataset: " + dataType);
+		}
+	}
+
+	private boolean isFillBlock(byte[] pixels) {
+		if (fillValue == null)
+			return false;
+		for (byte pixel : pixels)
+			if ((pixel & 0xff) != fillValue)
+				return false;
+		return true;
+	}
+
+	/**
+	 * Writes a block, that was serialized with {@link #compressBlock}, to the
+	 * file system. The block is written to a temporary file first, that is
+	 * renamed afterwards. This way, there are never partially written blocks.
+	 * <p>
+	 * If bytes is null, the block is not written, but listed as empty block. A
+	 * block file from a previous run is removed, N5 readers return the fill
+	 * value for the block.
+	 */
+	void writeCompressedBlock(int index, byte[] bytes) throws IOException {
+		Path file = blockPath(index);
+		if (bytes == null) {
+			Files.deleteIfExists(file);
+			recordEmptyBlock(index);
+			return;
+		}
+		N5BlockFiles.write(file, bytes);
+	}
+
+	private synchronized void recordEmptyBlock(int index) throws IOException {
+		if (emptyBlocks.contains(index))
+			return;
+		Files.createDirectories(emptyBlocksFile.getParent());
+		Files.write(emptyBlocksFile, (index + "\n").getBytes(
+			StandardCharsets.UTF_8), StandardOpenOption.CREATE,
+			StandardOpenOption.APPEND);
+		emptyBlocks.add(index);
+	}
+
+	/**
+	 * Reads the lists of empty blocks written by all processes. Lines that
+	 * were only partially written, because a process was killed, are ignored.
+	 */
+	void refreshEmptyBlocks() {
+		if (fillValue == null)
+			return;
+		File[] files = Paths.get(n5, EMPTY_BLOCKS_DIRECTORY).toFile().listFiles();
+		if (files == null)
+			return;
+		for (File file : files) {
+			try {
+				for (String line : Files.readAllLines(file.toPath(),
+					StandardCharsets.UTF_8))
+				{
+					try {
+						emptyBlocks.add(Integer.parseInt(line.trim()));
+					}
+					catch (NumberFormatException e) {
+						// ignore incomplete line
+					}
+				}
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	/**
+	 * Path of the block file, as used by {@link N5FSWriter}.
+	 */
+	private Path blockPath(int index) {
+		return N5BlockFiles.blockPath(n5, PrepareCommand.N5_DATASET_NAME,
+			blockOffset(index));
+	}
+
+	private Interval blockInterval(int index) {
+		long[] cellMin = new long[grid.numDimensions()];
+		int[] cellDims = new int[grid.numDimensions()];
+		grid.getCellDimensions(blockOffset(index), cellMin, cellDims);
+		return FinalInterval.createMinSize(cellMin, toLongs(cellDims));
+	}
+
+	/**
+	 * The N5 dataset has the same dimensions as the input image, except for the
+	 * channel axis. Returns the interval of the input image that corresponds
+	 * to the given block, including all channels.
+	 */
+	private Interval inputInterval(Interval block) {
+		int channelAxis = image.dimensionIndex(Axes.CHANNEL);
+		long[] min = new long[image.numDimensions()];
+		long[] max = new long[image.numDimensions()];
+		for (int d = 0, b = 0; d < min.length; d++) {
+			if (d == channelAxis) {
+				min[d] = image.min(d);
+				max[d] = image.max(d);
+			}
+			else {
+				min[d] = block.min(b);
+				max[d] = block.max(b);
+				b++;
+			}
+		}
+		return new FinalInterval(min, max);
+	}
+
+	/**
+	 * Returns the given blocks, that are not yet completely written to the N5
+	 * dataset. The order of the blocks is preserved.
+	 * <p>
+	 * Stale temporary files next to the missing blocks, left behind by killed
+	 * processes, are deleted.
+	 */
+	List<Integer> missingBlocks(List<Integer> blocks,
+		TaskExecutor taskExecutor)
+	{
+		refreshEmptyBlocks();
+		Set<Integer> missing = ConcurrentHashMap.newKeySet();
+		taskExecutor.forEach(blocks, i -> {
+			if (!isBlockComplete(i))
+				missing.add(i);
+		});
+		List<Integer> result = new ArrayList<>();
+		Set<Path> directories = new HashSet<>();
+		for (int i : blocks)
+			if (missing.contains(i)) {
+				result.add(i);
+				directories.add(blockPath(i).getParent());
+			}
+		try {
+			int deleted = N5BlockFiles.deleteStaleTemporaryFiles(directories);
+			if (deleted > 0)
+				System.out.println("Deleted " + deleted + " stale temporary files.");
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return result;
+	}
+
+	/**
+	 * A block is complete, if it exists and can be read and decompressed. A
+	 * block file that was only partially written, because the process was
+	 * killed, can not be decompressed. In a sparse dataset, a block that is
+	 * listed as empty block is also complete.
+	 */
+	boolean isBlockComplete(int index) {
+		try {
+			DataBlock<?> block = writer.readBlock(PrepareCommand.N5_DATASET_NAME,
+				attributes, blockOffset(index));
+			if (block == null)
+				return emptyBlocks.contains(index);
+			return block.getNumElements() == Intervals.numElements(blockInterval(
+				index));
+		}
+		catch (Exception e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Some segmenters require all blocks to have the same size. Blocks at the
+	 * border of the image are therefore extended with zeros to the full block
+	 * size.
+	 */
+	static Consumer<RandomAccessibleInterval<UnsignedByteType>> fixBlockSize(Consumer<RandomAccessibleInterval<UnsignedByteType>> loader, int[] blockSize) {
+		long[] size = IntStream.of(blockSize).mapToLong(x -> x).toArray();
+		return block -> {
+			if(Arrays.equals(Intervals.dimensionsAsLongArray(block), size))
+				loader.accept(block);
+			else {
+				long[] min = Intervals.minAsLongArray(block);
+				FinalInterval interval = FinalInterval.createMinSize(min, size);
+				loader.accept(Views.interval(Views.extendZero(block), interval));
+			}
+		};
+	}
+
+	private static long[] toLongs(int[] values) {
+		return IntStream.of(values).mapToLong(x -> x).toArray();
+	}
+}
@@ -0,0 +1,164 @@
+package sc.fiji.labkit.cli;
+
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.parallel.Parallelization;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import sc.fiji.labkit.ui.segmentation.Segmenter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds a good block size for the segmentation, by segmenting a few sample
+ * blocks for each candidate block size, and measuring the throughput in
+ * voxels per second.
+ * <p>
+ * The memory required to segment a block, is estimated by the peak heap usage
+ * during the segmentation of a sample block, above the heap usage after a
+ * garbage collection before the sample, see {@link HeapUsage#peakBytes()}. A
+ * candidate block size is only feasible, if the given number of threads can
+ * segment blocks of that size concurrently, within the memory budget.
+ */
+class BlockSizeTuner {
+
+	private final Segmenter segmenter;
+
+	private final ImgPlus<?> image;
+
+	private final long[] dimensions;
+
+	private final boolean[] spatial;
+
+	private final Map<String, Double> voxelsPerSecond = new LinkedHashMap<>();
+
+	BlockSizeTuner(Segmenter segmenter, ImgPlus<?> image) {
+		this.segmenter = segmenter;
+		this.image = image;
+		List<Long> dimensions = new ArrayList<>();
+		List<Boolean> spatial = new ArrayList<>();
+		for (int d = 0; d < image.numDimensions(); d++) {
+			if (image.axis(d).type() == Axes.CHANNEL)
+				continue;
+			dimensions.add(image.dimension(d));
+			spatial.add(image.axis(d).type().isSpatial());
+		}
+		this.dimensions = dimensions.stream().mapToLong(x -> x).toArray();
+		this.spatial = new boolean[spatial.size()];
+		for (int d = 0; d < this.spatial.length; d++)
+			this.spatial[d] = spatial.get(d);
+	}
+
+	/**
+	 * @param candidates Candidate block sizes in ascending order. The block size
+	 *          is used for all spatial axes, for all other axes it is one.
+	 * @param memoryBudget Memory in bytes, available for segmenting blocks.
+	 * @param numberOfThreads Number of blocks that are segmented concurrently.
+	 * @param samples Number of sample blocks to segment per candidate.
+	 * @return Cell dimensions of the fastest feasible candidate, or of the
+	 *         smallest candidate if none is feasible.
+	 */
+	int[] tune(int[] candidates, long memoryBudget, int numberOfThreads,
+		int samples)
+	{
+		int[] best = cellDimensions(candidates[0]);
+		double bestVoxelsPerSecond = 0;
+		// warm up, such that the JIT compilation doesn't distort the first measurement
+		segmentSample(best, 1, 2);
+		for (int candidate : candidates) {
+			int[] cellDimensions = cellDimensions(candidate);
+			String key = Arrays.toString(cellDimensions);
+			if (voxelsPerSecond.containsKey(key))
+				continue;
+			Measurement measurement;
+			try {
+				measurement = measure(cellDimensions, samples);
+			}
+			catch (OutOfMemoryError e) {
+				System.out.println("Block size " + key + ": out of memory");
+				break;
+			}
+			boolean feasible = measurement.bytesPerBlock *
+				numberOfThreads <= memoryBudget;
+			System.out.println("Block size " + key + ": " + Math.round(
+				measurement.voxelsPerSecond) + " voxels/s, " + (measurement.bytesPerBlock >> 20) +
+				" MB per block" + (feasible ? "" : " (exceeds memory budget)"));
+			if (!feasible)
+				break;
+			voxelsPerSecond.put(key, measurement.voxelsPerSecond);
+			if (measurement.voxelsPerSecond > bestVoxelsPerSecond) {
+				bestVoxelsPerSecond = measurement.voxelsPerSecond;
+				best = cellDimensions;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Returns the measured throughput in voxels per second, for each feasible
+	 * block size that was tested.
+	 */
+	Map<String, Double> results() {
+		return voxelsPerSecond;
+	}
+
+	private int[] cellDimensions(int size) {
+		int[] cellDimensions = new int[dimensions.length];
+		for (int d = 0; d < cellDimensions.length; d++)
+			cellDimensions[d] = spatial[d] ? (int) Math.min(size, dimensions[d]) : 1;
+		return cellDimensions;
+	}
+
+	private Measurement measure(int[] cellDimensions, int samples) {
+		long nanos = 0;
+		long bytesPerBlock = 0;
+		for (int sample = 0; sample < samples; sample++) {
+			System.gc();
+			HeapUsage.resetPeaks();
+			long bytesBefore = HeapUsage.peakBytes();
+			long start = System.nanoTime();
+			segmentSample(cellDimensions, sample, samples);
+			nanos += System.nanoTime() - start;
+			bytesPerBlock = Math.max(bytesPerBlock, HeapUsage.peakBytes() -
+				bytesBefore);
+		}
+		double voxels = (double) samples * Intervals.numElements(cellDimensions);
+		return new Measurement(voxels / (nanos * 1e-9), bytesPerBlock);
+	}
+
+	/**
+	 * Segments a block of the given size. The samples are placed on the
+	 * diagonal of the image. The segmentation runs single threaded, as it does
+	 * in segment-chunk.
+	 */
+	private void segmentSample(int[] cellDimensions, int sample, int samples) {
+		double fraction = (sample + 1.0) / (samples + 1.0);
+		long[] min = new long[cellDimensions.length];
+		for (int d = 0; d < min.length; d++)
+			min[d] = (long) ((dimensions[d] - cellDimensions[d]) * fraction);
+		Img<UnsignedByteType> block = ArrayImgs.unsignedBytes(Arrays.stream(
+			cellDimensions).mapToLong(x -> x).toArray());
+		Parallelization.runSingleThreaded(() -> {
+			segmenter.segment(image, Views.translate(block, min));
+		});
+	}
+
+	private static class Measurement {
+
+		private final double voxelsPerSecond;
+
+		private final long bytesPerBlock;
+
+		private Measurement(double voxelsPerSecond, long bytesPerBlock) {
+			this.voxelsPerSecond = voxelsPerSecond;
+			this.bytesPerBlock = bytesPerBlock;
+		}
+	}
+}
@@ -0,0 +1,551 @@
+package sc.fiji.labkit.cli;
+
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.IntArrayDataBlock;
+import org.janelia.saalfeldlab.n5.LongArrayDataBlock;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Connected component analysis of the segmentation in a N5 folder, that works
+ * block by block and never needs the whole image in memory.
+ * <p>
+ * All pixels with a non zero value in the segmentation are foreground, pixels
+ * are connected if they share a face. The analysis runs in three phases:
+ * <ol>
+ * <li>{@link #labelBlock Label}: each block is labeled independently. The
+ * local labels are written to the {@link #LOCAL_DATASET} dataset, the number
+ * of labels and the labels on the faces of the block are written to a small
+ * file in the {@link #FACES_DIRECTORY}. Blocks can be processed in parallel,
+ * on different cluster nodes.</li>
+ * <li>{@link #merge() Merge}: the faces of neighboring blocks are compared,
+ * and touching labels are merged using union-find. Only labels on the block
+ * faces are kept in memory. The result is a small mapping file.</li>
+ * <li>{@link #relabelBlock Relabel}: each block is relabeled with the final,
+ * consecutive labels and written to the {@link #OUTPUT_DATASET} dataset.
+ * Again, blocks can be processed in parallel.</li>
+ * </ol>
+ */
+class BlockwiseConnectedComponents {
+
+	static final String LOCAL_DATASET = "connected-components-local";
+
+	static final String OUTPUT_DATASET = "connected-components";
+
+	static final String FACES_DIRECTORY = "connected-components-faces";
+
+	private static final String MERGE_FILE = "merge";
+
+	private final Path n5;
+
+	private final N5Writer writer;
+
+	private final DatasetAttributes segmentationAttributes;
+
+	private final CellGrid grid;
+
+	private final long[] gridDimensions;
+
+	/**
+	 * Value of the blocks, that are missing in a sparse segmentation dataset.
+	 */
+	private final long fillValue;
+
+	BlockwiseConnectedComponents(String n5) throws IOException {
+		this.n5 = Paths.get(n5);
+		this.writer = new N5FSWriter(n5);
+		this.segmentationAttributes = writer.getDatasetAttributes(
+			PrepareCommand.N5_DATASET_NAME);
+		this.grid = new CellGrid(segmentationAttributes.getDimensions(),
+			segmentationAttributes.getBlockSize());
+		this.gridDimensions = grid.getGridDimensions();
+		Long fillValue = PrepareCommand.fillValue(writer);
+		this.fillValue = fillValue == null ? 0 : fillValue;
+	}
+
+	int numberOfBlocks() {
+		return (int) Intervals.numElements(gridDimensions);
+	}
+
+	long[] blockOffset(int index) {
+		long[] blockOffset = new long[gridDimensions.length];
+		IntervalIndexer.indexToPosition(index, gridDimensions, blockOffset);
+		return blockOffset;
+	}
+
+	/**
+	 * Creates the dataset for the local labels, if it doesn't exist yet.
+	 */
+	void createLocalDataset() throws IOException {
+		createDataset(LOCAL_DATASET, DataType.UINT32);
+	}
+
+	/**
+	 * Creates the output dataset, if it doesn't exist yet. An existing dataset
+	 * must have the given data type, see {@link #existingOutputDataType()}.
+	 *
+	 * @param dataType {@link DataType#UINT32} or {@link DataType#UINT64}
+	 */
+	void createOutputDataset(DataType dataType) throws IOException {
+		createDataset(OUTPUT_DATASET, dataType);
+	}
+
+	/**
+	 * Returns the data type of the existing output dataset, or null if there is
+	 * no output dataset yet.
+	 */
+	DataType existingOutputDataType() throws IOException {
+		if (!writer.datasetExists(OUTPUT_DATASET))
+			return null;
+		return writer.getDatasetAttributes(OUTPUT_DATASET).getDataType();
+	}
+
+	private void createDataset(String dataset, DataType dataType)
+		throws IOException
+	{
+		if (writer.datasetExists(dataset))
+			return;
+		writer.createDataset(dataset, segmentationAttributes.getDimensions(),
+			segmentationAttributes.getBlockSize(), dataType, segmentationAttributes
+				.getCompression());
+	}
+
+	/**
+	 * Labels the connected components of the given block, independent of its
+	 * neighbors. Writes the local labels and the faces of the block.
+	 */
+	void labelBlock(int index) throws IOException {
+		long[] gridPosition = blockOffset(index);
+		int[] size = blockSize(gridPosition);
+		int[] labels = new int[(int) Intervals.numElements(size)];
+		DataBlock<?> segmentation = writer.readBlock(PrepareCommand.N5_DATASET_NAME,
+			segmentationAttributes, gridPosition);
+		if (segmentation != null)
+			markForeground(segmentation.getData(), labels);
+		else if (fillValue != 0)
+			Arrays.fill(labels, -1);
+		int count = labelComponents(labels, size);
+		DatasetAttributes attributes = writer.getDatasetAttributes(LOCAL_DATASET);
+		writer.writeBlock(LOCAL_DATASET, attributes, new IntArrayDataBlock(size,
+			gridPosition, labels));
+		writeFaces(index, count, labels, size);
+	}
+
+	/**
+	 * Merges the labels that touch across block faces. Requires all blocks to
+	 * be labeled.
+	 *
+	 * @return the total number of connected components.
+	 */
+	long merge() throws IOException {
+		int numberOfBlocks = numberOfBlocks();
+		long[] offsets = new long[numberOfBlocks + 1];
+		for (int b = 0; b < numberOfBlocks; b++)
+			offsets[b + 1] = offsets[b] + readFaces(b, false).count;
+		UnionFind unionFind = new UnionFind();
+		// The blocks are visited in raster order. The high faces are cached,
+		// until they are needed by the neighbor in the slowest dimension.
+		int cacheSize = (int) (Intervals.numElements(gridDimensions) /
+			gridDimensions[gridDimensions.length - 1]) + 1;
+		Map<Integer, int[][]> highFaces = new LinkedHashMap<Integer, int[][]>() {
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, int[][]> eldest) {
+				return size() > cacheSize;
+			}
+		};
+		long[] gridPosition = new long[gridDimensions.length];
+		for (int b = 0; b < numberOfBlocks; b++) {
+			Faces faces = readFaces(b, true);
+			highFaces.put(b, faces.high);
+			IntervalIndexer.indexToPosition(b, gridDimensions, gridPosition);
+			long stride = 1;
+			for (int d = 0; d < gridDimensions.length; d++) {
+				if (gridPosition[d] > 0) {
+					int neighbor = (int) (b - stride);
+					int[] high = highFaces.get(neighbor)[d];
+					int[] low = faces.low[d];
+					for (int k = 0; k < low.length; k++)
+						if (high[k] != 0 && low[k] != 0)
+							unionFind.union(offsets[neighbor] + high[k], offsets[b] + low[k]);
+				}
+				stride *= gridDimensions[d];
+			}
+		}
+		Mapping mapping = unionFind.toMapping(offsets);
+		writeMapping(mapping);
+		return mapping.numberOfLabels();
+	}
+
+	/**
+	 * Reads the mapping, that was written by {@link #merge()}.
+	 */
+	Mapping readMapping() throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+			new GZIPInputStream(Files.newInputStream(facesDirectory().resolve(
+				MERGE_FILE))))))
+		{
+			long[] offsets = readLongs(in);
+			long[] faceLabels = readLongs(in);
+			long[] finalLabels = readLongs(in);
+			long[] nonRoots = readLongs(in);
+			return new Mapping(offsets, faceLabels, finalLabels, nonRoots);
+		}
+	}
+
+	/**
+	 * Replaces the local labels of the given block by the final labels, and
+	 * writes them to the output dataset.
+	 */
+	void relabelBlock(int index, Mapping mapping) throws IOException {
+		long[] gridPosition = blockOffset(index);
+		int[] size = blockSize(gridPosition);
+		DataBlock<?> block = writer.readBlock(LOCAL_DATASET, writer
+			.getDatasetAttributes(LOCAL_DATASET), gridPosition);
+		int[] labels = (int[]) block.getData();
+		long[] lookup = mapping.localToFinal(index);
+		DatasetAttributes attributes = writer.getDatasetAttributes(OUTPUT_DATASET);
+		if (attributes.getDataType() == DataType.UINT64) {
+			long[] data = new long[labels.length];
+			for (int i = 0; i < labels.length; i++)
+				data[i] = lookup[labels[i]];
+			writer.writeBlock(OUTPUT_DATASET, attributes, new LongArrayDataBlock(
+				size, gridPosition, data));
+		}
+		else {
+			int[] data = new int[labels.length];
+			for (int i = 0; i < labels.length; i++)
+				data[i] = (int) lookup[labels[i]];
+			writer.writeBlock(OUTPUT_DATASET, attributes, new IntArrayDataBlock(size,
+				gridPosition, data));
+		}
+	}
+
+	private int[] blockSize(long[] gridPosition) {
+		long[] min = new long[gridPosition.length];
+		int[] size = new int[gridPosition.length];
+		grid.getCellDimensions(gridPosition, min, size);
+		return size;
+	}
+
+	/**
+	 * Sets all foreground pixels to -1.
+	 */
+	private static void markForeground(Object data, int[] labels) {
+		if (data instanceof byte[]) {
+			byte[] values = (byte[]) data;
+			for (int i = 0; i < labels.length; i++)
+				labels[i] = values[i] != 0 ? -1 : 0;
+		}
+		else if (data instanceof short[]) {
+			short[] values = (short[]) data;
+			for (int i = 0; i < labels.length; i++)
+				labels[i] = values[i] != 0 ? -1 : 0;
+		}
+		else if (data instanceof int[]) {
+			int[] values = (int[]) data;
+			for (int i = 0; i < labels.length; i++)
+				labels[i] = values[i] != 0 ? -1 : 0;
+		}
+		else if (data instanceof long[]) {
+			long[] values = (long[]) data;
+			for (int i = 0; i < labels.length; i++)
+				labels[i] = values[i] != 0 ? -1 : 0;
+		}
+		else
+			throw new IllegalArgumentException("Unsupported data type: " + data
+				.getClass().getSimpleName());
+	}
+
+	/**
+	 * Labels the pixels marked with -1 with consecutive labels, starting at
+	 * one. Uses a breadth first flood fill.
+	 *
+	 * @return the number of labels.
+	 */
+	static int labelComponents(int[] labels, int[] size) {
+		int n = size.length;
+		int[] strides = new int[n];
+		for (int d = 0, stride = 1; d < n; d++) {
+			strides[d] = stride;
+			stride *= size[d];
+		}
+		int[] queue = new int[labels.length];
+		int count = 0;
+		for (int i = 0; i < labels.length; i++) {
+			if (labels[i] != -1)
+				continue;
+			count++;
+			labels[i] = count;
+			int head = 0;
+			int tail = 0;
+			queue[tail++] = i;
+			while (head < tail) {
+				int j = queue[head++];
+				for (int d = 0; d < n; d++) {
+					int position = j / strides[d] % size[d];
+					if (position > 0 && labels[j - strides[d]] == -1) {
+						labels[j - strides[d]] = count;
+						queue[tail++] = j - strides[d];
+					}
+					if (position < size[d] - 1 && labels[j + strides[d]] == -1) {
+						labels[j + strides[d]] = count;
+						queue[tail++] = j + strides[d];
+					}
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the labels on the face of the block, where the position in
+	 * dimension d equals the given position.
+	 */
+	private static int[] face(int[] labels, int[] size, int d, int position) {
+		int stride = 1;
+		for (int e = 0; e < d; e++)
+			stride *= size[e];
+		int outer = labels.length / stride / size[d];
+		int[] face = new int[stride * outer];
+		for (int o = 0, k = 0; o < outer; o++) {
+			int offset = (o * size[d] + position) * stride;
+			for (int i = 0; i < stride; i++)
+				face[k++] = labels[offset + i];
+		}
+		return face;
+	}
+
+	private Path facesDirectory() {
+		return n5.resolve(FACES_DIRECTORY);
+	}
+
+	private void writeFaces(int index, int count, int[] labels, int[] size)
+		throws IOException
+	{
+		Path file = facesDirectory().resolve(Integer.toString(index));
+		writeAtomically(file, out -> {
+			out.writeInt(count);
+			out.writeInt(size.length);
+			for (int d = 0; d < size.length; d++) {
+				writeInts(out, face(labels, size, d, 0));
+				writeInts(out, face(labels, size, d, size[d] - 1));
+			}
+		});
+	}
+
+	private Faces readFaces(int index, boolean readFaces) throws IOException {
+		Path file = facesDirectory().resolve(Integer.toString(index));
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+			new GZIPInputStream(Files.newInputStream(file)))))
+		{
+			int count = in.readInt();
+			if (!readFaces)
+				return new Faces(count, null, null);
+			int n = in.readInt();
+			int[][] low = new int[n][];
+			int[][] high = new int[n][];
+			for (int d = 0; d < n; d++) {
+				low[d] = readInts(in);
+				high[d] = readInts(in);
+			}
+			return new Faces(count, low, high);
+		}
+	}
+
+	private void writeMapping(Mapping mapping) throws IOException {
+		writeAtomically(facesDirectory().resolve(MERGE_FILE), out -> {
+			writeLongs(out, mapping.offsets);
+			writeLongs(out, mapping.faceLabels);
+			writeLongs(out, mapping.finalLabels);
+			writeLongs(out, mapping.nonRoots);
+		});
+	}
+
+	/**
+	 * Writes a gzip compressed file. The data is written to a temporary file
+	 * first, that is renamed afterwards.
+	 */
+	private static void writeAtomically(Path file, DataWriter writer)
+		throws IOException
+	{
+		Files.createDirectories(file.getParent());
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp-" + UUID
+			.randomUUID());
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+			new GZIPOutputStream(Files.newOutputStream(tmp)))))
+		{
+			writer.write(out);
+		}
+		Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE,
+			StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static void writeInts(DataOutputStream out, int[] values)
+		throws IOException
+	{
+		out.writeInt(values.length);
+		for (int value : values)
+			out.writeInt(value);
+	}
+
+	private static int[] readInts(DataInputStream in) throws IOException {
+		int[] values = new int[in.readInt()];
+		for (int i = 0; i < values.length; i++)
+			values[i] = in.readInt();
+		return values;
+	}
+
+	private static void writeLongs(DataOutputStream out, long[] values)
+		throws IOException
+	{
+		out.writeInt(values.length);
+		for (long value : values)
+			out.writeLong(value);
+	}
+
+	private static long[] readLongs(DataInputStream in) throws IOException {
+		long[] values = new long[in.readInt()];
+		for (int i = 0; i < values.length; i++)
+			values[i] = in.readLong();
+		return values;
+	}
+
+	private interface DataWriter {
+
+		void write(DataOutputStream out) throws IOException;
+	}
+
+	private static class Faces {
+
+		private final int count;
+
+		private final int[][] low;
+
+		private final int[][] high;
+
+		private Faces(int count, int[][] low, int[][] high) {
+			this.count = count;
+			this.low = low;
+			this.high = high;
+		}
+	}
+
+	/**
+	 * Union-find over the global labels, that touch a block face. The global
+	 * label of a local label is the local label plus the offset of the block.
+	 * The smallest global label of a set is its root.
+	 */
+	private static class UnionFind {
+
+		private final Map<Long, Long> parents = new HashMap<>();
+
+		private long find(long label) {
+			long root = label;
+			for (Long parent = parents.get(root); parent != null &&
+				parent != root; parent = parents.get(root))
+				root = parent;
+			// path compression
+			for (long current = label; current != root;) {
+				long next = parents.get(current);
+				parents.put(current, root);
+				current = next;
+			}
+			return root;
+		}
+
+		private void union(long a, long b) {
+			parents.putIfAbsent(a, a);
+			parents.putIfAbsent(b, b);
+			long rootA = find(a);
+			long rootB = find(b);
+			if (rootA < rootB)
+				parents.put(rootB, rootA);
+			else if (rootB < rootA)
+				parents.put(rootA, rootB);
+		}
+
+		private Mapping toMapping(long[] offsets) {
+			long[] faceLabels = parents.keySet().stream().mapToLong(x -> x).sorted()
+				.toArray();
+			long[] nonRoots = Arrays.stream(faceLabels).filter(l -> find(l) != l)
+				.toArray();
+			long[] finalLabels = new long[faceLabels.length];
+			for (int i = 0; i < faceLabels.length; i++)
+				finalLabels[i] = Mapping.compact(find(faceLabels[i]), nonRoots);
+			return new Mapping(offsets, faceLabels, finalLabels, nonRoots);
+		}
+	}
+
+	/**
+	 * Maps the local labels of each block to the final labels. Labels that
+	 * are not merged with another label, are numbered consecutively, by
+	 * skipping the merged labels.
+	 */
+	static class Mapping {
+
+		private final long[] offsets;
+
+		private final long[] faceLabels;
+
+		private final long[] finalLabels;
+
+		private final long[] nonRoots;
+
+		private Mapping(long[] offsets, long[] faceLabels, long[] finalLabels,
+			long[] nonRoots)
+		{
+			this.offsets = offsets;
+			this.faceLabels = faceLabels;
+			this.finalLabels = finalLabels;
+			this.nonRoots = nonRoots;
+		}
+
+		long numberOfLabels() {
+			return offsets[offsets.length - 1] - nonRoots.length;
+		}
+
+		/**
+		 * Returns the lookup table from local labels to final labels, for the
+		 * given block. Zero is mapped to zero.
+		 */
+		long[] localToFinal(int block) {
+			int count = (int) (offsets[block + 1] - offsets[block]);
+			long[] lookup = new long[count + 1];
+			for (int local = 1; local <= count; local++) {
+				long global = offsets[block] + local;
+				int i = Arrays.binarySearch(faceLabels, global);
+				lookup[local] = i >= 0 ? finalLabels[i] : compact(global, nonRoots);
+			}
+			return lookup;
+		}
+
+		private static long compact(long root, long[] nonRoots) {
+			int i = Arrays.binarySearch(nonRoots, root);
+			int smaller = i >= 0 ? i : -i - 1;
+			return root - smaller;
+		}
+	}
+}
@@ -0,0 +1,177 @@
+package sc.fiji.labkit.cli;
+
+import net.imglib2.parallel.TaskExecutor;
+import net.imglib2.parallel.TaskExecutors;
+import net.imglib2.util.StopWatch;
+import org.janelia.saalfeldlab.n5.DataType;
+import picocli.CommandLine;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class defines the "connected-components" sub command.
+ * <p>
+ * Performs a connected component analysis on the segmentation stored in a N5
+ * folder, see {@link BlockwiseConnectedComponents}. The "label" and "relabel"
+ * phases can be divided into chunks, just like the "segment-chunk" sub
+ * command. The "merge" phase runs on a single node.
+ */
+@CommandLine.Command(name = "connected-components",
+	description = "Connected component analysis of the segmentation in the N5 folder. " +
+		"Each connected component of non zero pixels gets an individual id, " +
+		"the result is stored in the dataset \"" + BlockwiseConnectedComponents.OUTPUT_DATASET +
+		"\" of the N5 folder.")
+public class ConnectedComponentsCommand implements Callable<Optional<Integer>> {
+
+	private static final long MAX_UINT32 = 0xffffffffL;
+
+	@CommandLine.Option(names = { "--n5" }, required = true,
+		description = "N5 folder that contains the segmentation.")
+	private File n5;
+
+	@CommandLine.Option(names = { "--phase" },
+		description = "Phase to run: \"label\" labels each block independently, \"merge\" merges the labels " +
+			"across block boundaries, \"relabel\" writes the final labels. \"all\" runs all three phases. (default: all)")
+	private String phase = "all";
+
+	@CommandLine.Option(names = { "--chunks" },
+		paramLabel = "NUMBER_OF_CHUNKS",
+		description = "The label and relabel phases will be divided into the given number of chunks. (default: 1)")
+	private int number_of_chunks = 1;
+
+	@CommandLine.Option(names = { "--index" },
+		paramLabel = "CHUNK_INDEX",
+		description = "Index, of the chunk to be processed. (default: 0)")
+	private int index = 0;
+
+	@CommandLine.Option(names = { "--output-type" },
+		description = "Pixel type of the output: uint32 or uint64. (default: uint32)")
+	private String outputType = "uint32";
+
+	@Override
+	public Optional<Integer> call() throws Exception {
+		DataType dataType = parseOutputType();
+		if (dataType == null) {
+			System.err.println("Invalid value for --output-type: " + outputType);
+			return Optional.of(1);
+		}
+		BlockwiseConnectedComponents cc = new BlockwiseConnectedComponents(n5
+			.getAbsolutePath());
+		if ((phase.equals("relabel") || phase.equals("all")) && !checkOutputType(cc,
+			dataType))
+			return Optional.of(1);
+		try (TaskExecutor taskExecutor = TaskExecutors.fixedThreadPool(Runtime
+			.getRuntime().availableProcessors()))
+		{
+			switch (phase) {
+				case "label":
+					label(cc, taskExecutor);
+					return Optional.of(0);
+				case "merge":
+					merge(cc);
+					return Optional.of(0);
+				case "relabel":
+					return Optional.of(relabel(cc, dataType, taskExecutor));
+				case "all":
+					number_of_chunks = 1;
+					index = 0;
+					label(cc, taskExecutor);
+					merge(cc);
+					return Optional.of(relabel(cc, dataType, taskExecutor));
+				default:
+					System.err.println("Invalid value for --phase: " + phase);
+					return Optional.of(1);
+			}
+		}
+	}
+
+	private DataType parseOutputType() {
+		switch (outputType.toLowerCase()) {
+			case "uint32":
+				return DataType.UINT32;
+			case "uint64":
+				return DataType.UINT64;
+			default:
+				return null;
+		}
+	}
+
+	/**
+	 * A previous relabel phase might have created the output dataset already.
+	 * Its data type must match --output-type, otherwise the labels would be
+	 * written with the wrong type.
+	 */
+	private boolean checkOutputType(BlockwiseConnectedComponents cc,
+		DataType dataType) throws IOException
+	{
+		DataType existing = cc.existingOutputDataType();
+		if (existing == null || existing == dataType)
+			return true;
+		System.err.println("The N5 folder already contains the dataset \"" +
+			BlockwiseConnectedComponents.OUTPUT_DATASET + "\" with data type " +
+			existing + ", which differs from --output-type " + outputType + ".");
+		System.err.println("Use the same --output-type, or delete the dataset.");
+		return false;
+	}
+
+	private void label(BlockwiseConnectedComponents cc,
+		TaskExecutor taskExecutor) throws IOException
+	{
+		cc.createLocalDataset();
+		forEachBlock(cc, taskExecutor, "labeled", i -> cc.labelBlock(i));
+	}
+
+	private void merge(BlockwiseConnectedComponents cc) throws IOException {
+		StopWatch watch = StopWatch.createAndStart();
+		long numberOfLabels = cc.merge();
+		System.out.println("Number of connected components: " + numberOfLabels);
+		System.out.println("Time elapsed: " + watch);
+	}
+
+	private int relabel(BlockwiseConnectedComponents cc, DataType dataType,
+		TaskExecutor taskExecutor) throws IOException
+	{
+		BlockwiseConnectedComponents.Mapping mapping = cc.readMapping();
+		if (dataType == DataType.UINT32 && mapping.numberOfLabels() > MAX_UINT32) {
+			System.err.println("There are " + mapping.numberOfLabels() +
+				" connected components, which exceeds the range of uint32. Use --output-type uint64.");
+			return 1;
+		}
+		cc.createOutputDataset(dataType);
+		forEachBlock(cc, taskExecutor, "relabeled", i -> cc.relabelBlock(i,
+			mapping));
+		return 0;
+	}
+
+	private void forEachBlock(BlockwiseConnectedComponents cc,
+		TaskExecutor taskExecutor, String verb, BlockTask task)
+	{
+		List<Integer> blocks = IntRange.chunk(cc.numberOfBlocks(), index %
+			number_of_chunks, number_of_chunks);
+		StopWatch watch = StopWatch.createAndStart();
+		AtomicInteger counter = new AtomicInteger(0);
+		taskExecutor.forEach(blocks, i -> {
+			try {
+				task.run(i);
+			}
+			catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			System.out.println("Block " + counter.getAndIncrement() + " of " + blocks
+				.size() + " has been " + verb + ". Block coordinates: " + Arrays
+					.toString(cc.blockOffset(i)));
+		});
+		System.out.println("Time elapsed: " + watch);
+	}
+
+	private interface BlockTask {
+
+		void run(int index) throws IOException;
+	}
+}
@@ -0,0 +1,89 @@
+package sc.fiji.labkit.cli;
+
+import net.imglib2.parallel.TaskExecutor;
+import net.imglib2.parallel.TaskExecutors;
+import net.imglib2.util.StopWatch;
+import org.janelia.saalfeldlab.n5.Compression;
+import picocli.CommandLine;
+import sc.fiji.labkit.ui.inputimage.SpimDataInputImage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class defines the "convert-input" sub command.
+ * <p>
+ * Copies the input image into the N5 folder, see {@link InputN5}. The
+ * conversion can be divided into chunks, just like the "segment-chunk" sub
+ * command. Afterwards "segment-chunk --input-n5" reads the input from the N5
+ * folder, instead of the BDV HDF5.
+ */
+@CommandLine.Command(name = "convert-input",
+	description = "Copy the input image into the N5 folder, with blocks aligned to the segmentation. " +
+		"Reading the N5 copy scales with the number of threads, reading HDF5 doesn't.")
+public class ConvertInputCommand implements Callable<Optional<Integer>> {
+
+	@CommandLine.Option(names = { "--image" }, required = true,
+		description = "Image to be converted.")
+	private File imageXml;
+
+	@CommandLine.Option(names = { "--n5" }, required = true,
+		description = "N5 folder that was created using the \"prepare\" sub command.")
+	private File n5;
+
+	@CommandLine.Option(names = { "--chunks" },
+		paramLabel = "NUMBER_OF_CHUNKS",
+		description = "The conversion will be divided into the given number of chunks. (default: 1)")
+	private int number_of_chunks = 1;
+
+	@CommandLine.Option(names = { "--index" },
+		paramLabel = "CHUNK_INDEX",
+		description = "Index, of the chunk to be processed. (default: 0)")
+	private int index = 0;
+
+	@CommandLine.Option(names = { "--compression" },
+		description = "Compression of the N5 copy: raw, gzip, gzip:LEVEL, bzip2, lz4 or xz. (default: lz4)")
+	private String compression = "lz4";
+
+	@Override
+	public Optional<Integer> call() throws Exception {
+		Compression n5Compression;
+		try {
+			n5Compression = PrepareCommand.parseCompression(compression);
+		}
+		catch (IllegalArgumentException e) {
+			System.err.println("Invalid value for --compression: " + compression);
+			return Optional.of(1);
+		}
+		SpimDataInputImage image = new SpimDataInputImage(imageXml
+			.getAbsolutePath(), 0);
+		InputN5 input = new InputN5(n5.getAbsolutePath(), image
+			.imageForSegmentation(), n5Compression);
+		List<Integer> blocks = IntRange.chunk(input.numberOfBlocks(), index %
+			number_of_chunks, number_of_chunks);
+		StopWatch watch = StopWatch.createAndStart();
+		AtomicInteger counter = new AtomicInteger(0);
+		try (TaskExecutor taskExecutor = TaskExecutors.fixedThreadPool(Runtime
+			.getRuntime().availableProcessors()))
+		{
+			taskExecutor.forEach(blocks, i -> {
+				try {
+					input.convertBlock(i);
+				}
+				catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+				System.out.println("Block " + counter.getAndIncrement() + " of " +
+					blocks.size() + " has been converted. Block coordinates: " + Arrays
+						.toString(input.blockOffset(i)));
+			});
+		}
+		System.out.println("Time elapsed: " + watch);
+		return Optional.of(0); // exit code
+	}
+}
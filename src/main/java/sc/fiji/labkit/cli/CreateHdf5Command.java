@@ -3,9 +3,8 @@ package sc.fiji.labkit.cli;
 
 import bdv.export.ProgressWriterConsole;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.IntegerType;
 import org.janelia.saalfeldlab.n5.N5FSReader;
-import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 import picocli.CommandLine;
 import sc.fiji.labkit.ui.utils.HDF5Saver;
 
@@ -35,11 +34,22 @@ public class CreateHdf5Command implements Callable<Optional<Integer>> {
 	@Override
 	public Optional<Integer> call() throws Exception {
 		N5FSReader reader = new N5FSReader(n5.getAbsolutePath());
-		RandomAccessibleInterval<UnsignedByteType> result = N5Utils.open(reader,
-			PrepareCommand.N5_DATASET_NAME, new UnsignedByteType());
-		HDF5Saver saver = new HDF5Saver(result, xml.getAbsolutePath());
+		saveHdf5(PrepareCommand.openSegmentation(reader), xml);
+		return Optional.of(0); // exit code
+	}
+
+	/**
+	 * Saves the segmentation as BDV HDF5, the HDF5 file is placed next to the
+	 * XML file.
+	 */
+	static void saveHdf5(
+		RandomAccessibleInterval<? extends IntegerType<?>> segmentation, File xml)
+	{
+		File directory = xml.getAbsoluteFile().getParentFile();
+		if (directory != null)
+			directory.mkdirs();
+		HDF5Saver saver = new HDF5Saver(segmentation, xml.getAbsolutePath());
 		saver.setProgressWriter(new ProgressWriterConsole());
 		saver.writeAll();
-		return Optional.of(0); // exit code
 	}
 }
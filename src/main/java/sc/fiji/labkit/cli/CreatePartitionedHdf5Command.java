@@ -3,21 +3,22 @@ package sc.fiji.labkit.cli;
 
 import bdv.export.ProgressWriterConsole;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.IntegerType;
 import org.janelia.saalfeldlab.n5.N5FSReader;
-import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 import picocli.CommandLine;
 import sc.fiji.labkit.ui.utils.HDF5Saver;
 
 import java.io.File;
-import java.io.IOException;
 import java.util.Optional;
 import java.util.concurrent.Callable;
 
 /**
- * This class defines the "create-hdf5" sub command.
+ * This class defines the "create-partitioned-hdf5" sub command.
  * <p>
- * Opens the given N5 dataset and saves it as BDV HDF5.
+ * Opens the given N5 dataset and saves it as BDV HDF5, divided into partitions
+ * that can be written by separate jobs. With --tile-size, each timepoint is
+ * further divided into spatial tiles, see {@link TiledHdf5Saver}. Each tile is
+ * a separate BDV setup, with its own resolution levels.
  */
 @CommandLine.Command(name = "create-partitioned-hdf5",
 	description = "Save the segmentation stored in the N5 folder as multiple Big Data Viewer compatible HDF5.")
@@ -47,26 +48,48 @@ public class CreatePartitionedHdf5Command implements
 		description = "Only print the number of partitions.")
 	private boolean isPrintNumberOfPartitions;
 
+	@CommandLine.Option(names = { "--tile-size" },
+		description = "Divide each timepoint into tiles of the given size in pixels, and write every tile into a separate partition. " +
+			"This allows to write a single large volume with many jobs in parallel. " +
+			"Note that this changes the output: each tile becomes a separate BigDataViewer setup, " +
+			"so the XML describes one source per tile instead of a single segmentation, " +
+			"and the resolution levels are proposed and computed per tile. (default: one partition per timepoint)")
+	private Integer tileSize;
+
 	@Override
 	public Optional<Integer> call() throws Exception {
-		RandomAccessibleInterval<UnsignedByteType> n5Image = openN5();
+		if (tileSize != null && tileSize < 1) {
+			System.err.println("Invalid value for --tile-size: " + tileSize);
+			return Optional.of(1);
+		}
+		N5FSReader reader = new N5FSReader(n5.getAbsolutePath());
+		RandomAccessibleInterval<? extends IntegerType<?>> n5Image = PrepareCommand
+			.openSegmentation(reader);
+		if (tileSize != null) {
+			TiledHdf5Saver saver;
+			try {
+				saver = new TiledHdf5Saver(n5Image, PrepareCommand.spatialAxes(reader,
+					PrepareCommand.N5_DATASET_NAME), xml.getAbsolutePath(), tileSize);
+			}
+			catch (IllegalArgumentException e) {
+				System.err.println(e.getMessage());
+				return Optional.of(1);
+			}
+			createOutputDirectory();
+			runTiledTask(saver);
+			return Optional.of(0);
+		}
 		createOutputDirectory();
 		runTask(n5Image);
 		return Optional.of(0); // exit code
 	}
 
-	private RandomAccessibleInterval<UnsignedByteType> openN5() throws IOException {
-		N5FSReader reader = new N5FSReader(n5.getAbsolutePath());
-		return N5Utils.open(reader,
-				PrepareCommand.N5_DATASET_NAME, new UnsignedByteType());
-	}
-
 	private void createOutputDirectory() {
 		File directory = xml.getParentFile();
 		if(directory != null) directory.mkdirs();
 	}
 
-	private void runTask(RandomAccessibleInterval<UnsignedByteType> n5Image) {
+	private void runTask(RandomAccessibleInterval<? extends IntegerType<?>> n5Image) {
 		HDF5Saver saver = new HDF5Saver(n5Image, xml.getAbsolutePath());
 		saver.setProgressWriter(new ProgressWriterConsole());
 		saver.setPartitions(1, 1);
@@ -77,4 +100,13 @@ public class CreatePartitionedHdf5Command implements
 		else saver.writeAll();
 	}
 
+	private void runTiledTask(TiledHdf5Saver saver) {
+		saver.setProgressWriter(new ProgressWriterConsole());
+		if (onlyHeader) saver.writeXmlAndHdf5();
+		else if (isPrintNumberOfPartitions) System.out.println(saver
+			.numberOfPartitions());
+		else if (partitionIndex != null) saver.writePartition(partitionIndex);
+		else saver.writeAll();
+	}
+
 }
@@ -0,0 +1,203 @@
+package sc.fiji.labkit.cli;
+
+import net.imagej.ImgPlus;
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import picocli.CommandLine;
+import sc.fiji.labkit.ui.segmentation.Segmenter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.stream.IntStream;
+
+/**
+ * Options that define the segmentation dataset in the N5 folder. They are
+ * shared by the "prepare" and the "segment-all" sub commands.
+ * <p>
+ * The compression isn't part of these options, because the two commands use
+ * different defaults.
+ */
+class DatasetOptions {
+
+	@CommandLine.Option(names = { "--block-size" },
+		description = "(experimental) Allows to manually specify the block size to be used during segmentation." +
+				"Higher values result in better performance, but also require more memory. 64, 128, 256 might be good values.")
+	private Integer blockSize = null;
+
+	@CommandLine.Option(names = { "--auto-tune" },
+		description = "Segment a few sample blocks for different block sizes, and use the block size " +
+			"with the highest throughput, that fits into the memory budget. Can't be combined with --block-size.")
+	private boolean autoTune = false;
+
+	@CommandLine.Option(names = { "--auto-tune-sizes" }, split = ",",
+		description = "Block sizes to test with --auto-tune. (default: 32,64,128,256)")
+	private int[] autoTuneSizes = { 32, 64, 128, 256 };
+
+	@CommandLine.Option(names = { "--data-type" },
+		description = "Pixel type of the N5 dataset: uint8, uint16, uint32 or uint64. (default: uint8)")
+	private String dataType = null;
+
+	@CommandLine.Option(names = { "--fill-value" }, paramLabel = "LABEL",
+		description = "Creates a sparse N5 dataset: blocks that only contain the given label are not written, " +
+			"readers use the label for missing blocks. Saves many small files for sparse samples.")
+	private Long fillValue = null;
+
+	/**
+	 * Prints an error message, if the options are invalid.
+	 *
+	 * @return false, if the options are invalid.
+	 */
+	boolean check() {
+		if (dataType != null) {
+			try {
+				PrepareCommand.parseDataType(dataType);
+			}
+			catch (IllegalArgumentException e) {
+				System.err.println("Invalid value for --data-type: " + dataType);
+				return false;
+			}
+		}
+		if (fillValue != null && (fillValue < 0 || fillValue > maxValue(
+			dataType())))
+		{
+			System.err.println("Invalid value for --fill-value: " + fillValue +
+				", must be between 0 and " + maxValue(dataType()) + " for data type " + dataType() + ".");
+			return false;
+		}
+		if (autoTune && blockSize != null) {
+			System.err.println("The options --auto-tune and --block-size can't be used together.");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Creates the segmentation dataset, see {@link PrepareCommand}. Claims and
+	 * lists of empty blocks, left behind by a previous segmentation in the same
+	 * N5 folder, are deleted.
+	 *
+	 * @param memoryBudget Memory available for the segmentation of blocks,
+	 *          used by --auto-tune.
+	 * @param numberOfThreads Number of blocks segmented concurrently, used by
+	 *          --auto-tune.
+	 */
+	void createDataset(File n5, ImgPlus<?> image, Segmenter segmenter,
+		Compression compression, long memoryBudget, int numberOfThreads)
+		throws IOException
+	{
+		N5Writer writer = new N5FSWriter(n5.getAbsolutePath());
+		BlockSizeTuner tuner = autoTune ? new BlockSizeTuner(segmenter, image)
+			: null;
+		int[] cellDimensions = autoTune ? autoTune(tuner, memoryBudget,
+			numberOfThreads) : blockSize != null ? PrepareCommand.manualCellSize(
+				image, blockSize) : segmenter.suggestCellSize(image);
+		String dataset = PrepareCommand.N5_DATASET_NAME;
+		writer.createDataset(dataset, PrepareCommand
+			.imageDimensionsWithoutChannelAxis(image), cellDimensions, dataType(),
+			compression);
+		writer.setAttribute(dataset, PrepareCommand.AXES_ATTRIBUTE, PrepareCommand
+			.axesWithoutChannelAxis(image));
+		if (autoTune)
+			writer.setAttribute(dataset, PrepareCommand.AUTO_TUNE_ATTRIBUTE, tuner
+				.results());
+		if (fillValue != null)
+			writer.setAttribute(dataset, PrepareCommand.FILL_VALUE_ATTRIBUTE,
+				fillValue);
+		N5BlockFiles.deleteDirectory(n5.toPath().resolve(
+			BlockClaims.CLAIMS_DIRECTORY));
+		N5BlockFiles.deleteDirectory(n5.toPath().resolve(
+			BlockSegmentation.EMPTY_BLOCKS_DIRECTORY));
+	}
+
+	private int[] autoTune(BlockSizeTuner tuner, long memoryBudget,
+		int numberOfThreads)
+	{
+		int[] sizes = IntStream.of(autoTuneSizes).sorted().toArray();
+		int[] cellDimensions = tuner.tune(sizes, memoryBudget, numberOfThreads, 2);
+		System.out.println("Selected block size: " + Arrays.toString(
+			cellDimensions));
+		return cellDimensions;
+	}
+
+	/**
+	 * Checks that the existing segmentation dataset matches the image, and the
+	 * options that were given explicitly. Options that were not given, are
+	 * taken from the existing dataset. Prints an error message for each
+	 * mismatch.
+	 *
+	 * @param compression The compression given on the command line, or null.
+	 * @return false, if the dataset can't be used to continue the segmentation.
+	 */
+	boolean checkExistingDataset(N5Reader reader, ImgPlus<?> image,
+		Compression compression) throws IOException
+	{
+		String dataset = PrepareCommand.N5_DATASET_NAME;
+		DatasetAttributes attributes = reader.getDatasetAttributes(dataset);
+		long[] dimensions = PrepareCommand.imageDimensionsWithoutChannelAxis(
+			image);
+		boolean matches = true;
+		if (!Arrays.equals(attributes.getDimensions(), dimensions)) {
+			System.err.println("The N5 folder contains a segmentation of size " +
+				Arrays.toString(attributes.getDimensions()) +
+				", but the image has size " + Arrays.toString(dimensions) + ".");
+			matches = false;
+		}
+		if (blockSize != null && !Arrays.equals(attributes.getBlockSize(),
+			PrepareCommand.manualCellSize(image, blockSize)))
+		{
+			System.err.println("The N5 folder was created with block size " + Arrays
+				.toString(attributes.getBlockSize()) + ", which differs from --block-size " +
+				blockSize + ".");
+			matches = false;
+		}
+		if (compression != null && !compression.getClass().equals(attributes
+			.getCompression().getClass()))
+		{
+			System.err.println("The N5 folder was created with a different compression than --compression.");
+			matches = false;
+		}
+		if (dataType != null && dataType() != attributes.getDataType()) {
+			System.err.println("The N5 folder was created with data type " +
+				attributes.getDataType() + ", which differs from --data-type " +
+				dataType + ".");
+			matches = false;
+		}
+		Long existingFillValue = PrepareCommand.fillValue(reader);
+		if (fillValue != null && !Objects.equals(fillValue, existingFillValue)) {
+			System.err.println("The N5 folder was created with fill value " +
+				existingFillValue + ", which differs from --fill-value " + fillValue +
+				".");
+			matches = false;
+		}
+		if (!matches)
+			System.err.println("Use the same options, or a new N5 folder.");
+		else if (autoTune)
+			System.out.println("--auto-tune is ignored, the N5 folder already has block size " +
+				Arrays.toString(attributes.getBlockSize()) + ".");
+		return matches;
+	}
+
+	private static long maxValue(DataType dataType) {
+		switch (dataType) {
+			case UINT8:
+				return 0xffL;
+			case UINT16:
+				return 0xffffL;
+			case UINT32:
+				return 0xffffffffL;
+			default:
+				return Long.MAX_VALUE;
+		}
+	}
+
+	private DataType dataType() {
+		return dataType == null ? DataType.UINT8 : PrepareCommand.parseDataType(
+			dataType);
+	}
+}
@@ -0,0 +1,76 @@
+package sc.fiji.labkit.cli;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the memory held by live objects on the heap, as opposed to the
+ * number of bytes allocated, which also counts garbage.
+ */
+class HeapUsage {
+
+	private HeapUsage() {
+		// prevent from instantiation
+	}
+
+	/**
+	 * Heap memory that was still in use after the last garbage collection, of
+	 * each memory pool. Garbage that was not yet collected doesn't count.
+	 */
+	static long liveBytes() {
+		long used = 0;
+		for (MemoryPoolMXBean pool : heapPools()) {
+			if (!pool.isCollectionUsageThresholdSupported())
+				continue;
+			MemoryUsage usage = pool.getCollectionUsage();
+			if (usage != null)
+				used += usage.getUsed();
+		}
+		return used;
+	}
+
+	/**
+	 * Total number of garbage collections so far. {@link #liveBytes()} only
+	 * changes, when this number changes.
+	 */
+	static long collectionCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean collector : ManagementFactory
+			.getGarbageCollectorMXBeans())
+			count += Math.max(0, collector.getCollectionCount());
+		return count;
+	}
+
+	/**
+	 * Resets the peak usage of all heap pools, see {@link #peakBytes()}.
+	 */
+	static void resetPeaks() {
+		for (MemoryPoolMXBean pool : heapPools())
+			pool.resetPeakUsage();
+	}
+
+	/**
+	 * Sum of the peak usages of the heap pools, since the last
+	 * {@link #resetPeaks()}. This includes garbage in the young generation,
+	 * but not more than its size.
+	 */
+	static long peakBytes() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : heapPools())
+			peak += pool.getPeakUsage().getUsed();
+		return peak;
+	}
+
+	private static List<MemoryPoolMXBean> heapPools() {
+		List<MemoryPoolMXBean> pools = new ArrayList<>();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+			if (pool.getType() == MemoryType.HEAP && pool.isValid())
+				pools.add(pool);
+		return pools;
+	}
+}
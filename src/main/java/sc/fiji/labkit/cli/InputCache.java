@@ -0,0 +1,60 @@
+package sc.fiji.labkit.cli;
+
+import net.imagej.ImgPlus;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
+import net.imglib2.cache.img.optional.CacheOptions;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Cast;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Bounded cache of decoded input pixels, shared by all segmentation threads.
+ * <p>
+ * The input image is wrapped into a cached cell image. Its cells are aligned
+ * with the blocks of the segmentation. The filters of the classifier read a
+ * halo around each block, which overlaps the neighboring blocks. With the
+ * cache, and the blocks processed in {@link BlockOrder Morton order}, these
+ * halos are decoded once, instead of once per block that needs them. The least
+ * recently used cells are evicted, when the size limit is reached.
+ */
+class InputCache {
+
+	private InputCache() {
+		// prevent from instantiation
+	}
+
+	/**
+	 * @param cellSize Size of the cache cells, for every axis of the image.
+	 * @param maxBytes Memory used by the cache. At least one cell is cached.
+	 */
+	static ImgPlus<?> wrap(ImgPlus<?> image, int[] cellSize, long maxBytes) {
+		return wrapNative(Cast.unchecked(image), cellSize, maxBytes);
+	}
+
+	private static <T extends NativeType<T>> ImgPlus<T>
+		wrapNative(ImgPlus<T> image, int[] cellSize, long maxBytes)
+	{
+		T type = image.firstElement().createVariable();
+		// ARGBType is the only input type that is not a RealType
+		long bitsPerPixel = type instanceof RealType ? ((RealType<?>) type)
+			.getBitsPerPixel() : 32;
+		long bytesPerCell = Math.max(1, Intervals.numElements(cellSize) *
+			bitsPerPixel / 8);
+		long maxCells = Math.max(1, maxBytes / bytesPerCell);
+		ReadOnlyCachedCellImgOptions options = ReadOnlyCachedCellImgOptions
+			.options().cellDimensions(cellSize).cacheType(
+				CacheOptions.CacheType.BOUNDED).maxCacheSize(maxCells);
+		RandomAccessibleInterval<T> source = image.getImg();
+		CachedCellImg<T, ?> cached = new ReadOnlyCachedCellImgFactory(options)
+			.create(Intervals.dimensionsAsLongArray(image), type, cell -> LoopBuilder
+				.setImages(Views.interval(source, cell), cell).forEachPixel((i,
+					o) -> o.set(i)));
+		return new ImgPlus<>(cached, image);
+	}
+}
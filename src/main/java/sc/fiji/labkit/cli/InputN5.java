@@ -0,0 +1,171 @@
+package sc.fiji.labkit.cli;
+
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.CalibratedAxis;
+import net.imagej.axis.DefaultLinearAxis;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Cast;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+
+import java.io.IOException;
+
+/**
+ * Copy of the input image, stored as dataset "input" in the N5 folder.
+ * <p>
+ * The BDV HDF5 input can only be read by one thread at a time, because the
+ * HDF5 library serializes all access behind a global lock. The N5 copy is
+ * read without locking. Its blocks are aligned with the blocks of the
+ * {@link PrepareCommand#N5_DATASET_NAME segmentation}, and contain all
+ * channels. The axes and the calibration of the image are stored as
+ * attributes, such that the segmenter sees the same image as when reading the
+ * HDF5.
+ */
+class InputN5 {
+
+	static final String DATASET = "input";
+
+	private static final String AXES_ATTRIBUTE = "axes";
+
+	private static final String SCALES_ATTRIBUTE = "scales";
+
+	private static final String UNITS_ATTRIBUTE = "units";
+
+	private final N5Writer writer;
+
+	private final ImgPlus<?> image;
+
+	private final CellGrid grid;
+
+	/**
+	 * Creates the input dataset, if it doesn't exist yet. The N5 folder must
+	 * contain the segmentation dataset, that was created by the "prepare" sub
+	 * command.
+	 */
+	InputN5(String n5, ImgPlus<?> image, Compression compression)
+		throws IOException
+	{
+		this.writer = new N5FSWriter(n5);
+		this.image = image;
+		long[] dimensions = Intervals.dimensionsAsLongArray(image);
+		int[] blockSize = blockSize(image, writer.getDatasetAttributes(
+			PrepareCommand.N5_DATASET_NAME).getBlockSize());
+		this.grid = new CellGrid(dimensions, blockSize);
+		if (!writer.datasetExists(DATASET))
+			createDataset(dimensions, blockSize, compression);
+	}
+
+	private void createDataset(long[] dimensions, int[] blockSize,
+		Compression compression) throws IOException
+	{
+		NativeType<?> type = (NativeType<?>) image.firstElement();
+		if (!(type instanceof RealType))
+			throw new UnsupportedOperationException(
+				"Only gray scale images can be stored as N5, but the pixel type is: " +
+					type.getClass().getSimpleName());
+		writer.createDataset(DATASET, dimensions, blockSize, N5Utils.dataType(Cast
+			.unchecked(type)), compression);
+		int n = image.numDimensions();
+		String[] axes = new String[n];
+		double[] scales = new double[n];
+		String[] units = new String[n];
+		for (int d = 0; d < n; d++) {
+			CalibratedAxis axis = image.axis(d);
+			axes[d] = axis.type().getLabel();
+			scales[d] = axis.averageScale(0, 1);
+			units[d] = axis.unit();
+		}
+		writer.setAttribute(DATASET, AXES_ATTRIBUTE, axes);
+		writer.setAttribute(DATASET, SCALES_ATTRIBUTE, scales);
+		writer.setAttribute(DATASET, UNITS_ATTRIBUTE, units);
+	}
+
+	/**
+	 * The block size of the segmentation, with the full channel axis inserted.
+	 */
+	private static int[] blockSize(ImgPlus<?> image, int[] segmentationBlockSize) {
+		int channelAxis = image.dimensionIndex(Axes.CHANNEL);
+		int[] blockSize = new int[image.numDimensions()];
+		for (int d = 0, b = 0; d < blockSize.length; d++)
+			blockSize[d] = d == channelAxis ? (int) image.dimension(d)
+				: segmentationBlockSize[b++];
+		return blockSize;
+	}
+
+	int numberOfBlocks() {
+		return (int) Intervals.numElements(grid.getGridDimensions());
+	}
+
+	long[] blockOffset(int index) {
+		long[] gridDimensions = grid.getGridDimensions();
+		long[] blockOffset = new long[gridDimensions.length];
+		IntervalIndexer.indexToPosition(index, gridDimensions, blockOffset);
+		return blockOffset;
+	}
+
+	/**
+	 * Reads the block with the given index from the input image, and writes it
+	 * to the input dataset.
+	 */
+	void convertBlock(int index) throws IOException {
+		long[] gridPosition = blockOffset(index);
+		int n = gridPosition.length;
+		long[] min = new long[n];
+		int[] size = new int[n];
+		grid.getCellDimensions(gridPosition, min, size);
+		long[] max = new long[n];
+		for (int d = 0; d < n; d++)
+			max[d] = min[d] + size[d] - 1;
+		Interval interval = new FinalInterval(min, max);
+		DatasetAttributes attributes = writer.getDatasetAttributes(DATASET);
+		saveBlock(Cast.unchecked(Views.interval(image, interval)), attributes,
+			gridPosition);
+	}
+
+	private <T extends NativeType<T>> void saveBlock(
+		RandomAccessibleInterval<T> block, DatasetAttributes attributes,
+		long[] gridPosition) throws IOException
+	{
+		N5Utils.saveBlock(block, writer, DATASET, attributes, gridPosition);
+	}
+
+	/**
+	 * Returns true, if the N5 folder contains a converted input image.
+	 */
+	static boolean exists(N5Reader reader) throws IOException {
+		return reader.datasetExists(DATASET);
+	}
+
+	/**
+	 * Opens the input dataset with the axes and calibration of the original
+	 * image.
+	 */
+	static ImgPlus<?> open(N5Reader reader) throws IOException {
+		String[] axes = reader.getAttribute(DATASET, AXES_ATTRIBUTE,
+			String[].class);
+		double[] scales = reader.getAttribute(DATASET, SCALES_ATTRIBUTE,
+			double[].class);
+		String[] units = reader.getAttribute(DATASET, UNITS_ATTRIBUTE,
+			String[].class);
+		CalibratedAxis[] calibratedAxes = new CalibratedAxis[axes.length];
+		for (int d = 0; d < axes.length; d++)
+			calibratedAxes[d] = new DefaultLinearAxis(Axes.get(axes[d]), units[d],
+				scales[d]);
+		Img<?> img = N5Utils.open(reader, DATASET);
+		return new ImgPlus<>(Cast.unchecked(img), DATASET, calibratedAxes);
+	}
+}
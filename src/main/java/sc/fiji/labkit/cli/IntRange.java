@@ -16,6 +16,20 @@ public class IntRange extends AbstractList<Integer> {
 		this.size = Math.max(0, stopExclusive - start);
 	}
 
+	/**
+	 * Divides the range [0, size) into the given number of chunks of equal
+	 * size, and returns the chunk with the given index.
+	 */
+	public static IntRange chunk(int size, int index, int numberOfChunks) {
+		int chunkSize = (size + numberOfChunks - 1) / numberOfChunks;
+		int start = Math.min(size, index * chunkSize);
+		return new IntRange(start, Math.min(size, start + chunkSize));
+	}
+
+	public int start() {
+		return start;
+	}
+
 	@Override
 	public Integer get(int i) {
 		return start + i;
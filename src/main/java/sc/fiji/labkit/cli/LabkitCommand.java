@@ -10,13 +10,19 @@ import java.util.concurrent.Callable;
 /**
  * This is the main class of this project. It uses the PicoCli command line
  * parser, to either show the usage or execute one of the sub commands:
- * {@link PrepareCommand}, {@link SegmentChunkCommand}, {@link CreateHdf5Command},
- * {@link ShowCommand}
+ * {@link PrepareCommand}, {@link ConvertInputCommand}, {@link SegmentChunkCommand},
+ * {@link SegmentWorkerCommand}, {@link ServeCommand}, {@link SubmitChunkCommand},
+ * {@link ConnectedComponentsCommand}, {@link PyramidCommand},
+ * {@link CreateHdf5Command}, {@link SegmentAllCommand}, {@link ShowCommand}
  */
 @CommandLine.Command(name = LabkitCommand.COMMAND_NAME, subcommands = {
-	PrepareCommand.class, SegmentChunkCommand.class, ShowCommand.class,
+	PrepareCommand.class, ConvertInputCommand.class, SegmentChunkCommand.class,
+	SegmentWorkerCommand.class,
+	ServeCommand.class, SubmitChunkCommand.class,
+	ConnectedComponentsCommand.class, PyramidCommand.class, ShowCommand.class,
 	CreateHdf5Command.class, CreatePartitionedHdf5Command.class,
-	SegmentCommand.class, ShowUICommand.class, ListOpenCLDevicesCommand.class},
+	SegmentAllCommand.class, SegmentCommand.class, ShowUICommand.class,
+	ListOpenCLDevicesCommand.class},
 	description = "Labkit command line tool for the segmentation of large files.")
 public class LabkitCommand implements Callable<Optional<Integer>> {
 
@@ -60,6 +66,12 @@ public class LabkitCommand implements Callable<Optional<Integer>> {
 		showSegmentExample(2);
 		System.err.println("  Store results:    " + COMMAND_NAME +
 			" create-hdf5 --n5 tmp.n5 --xml output.xml");
+		System.err.println();
+		System.err.println(
+			"  On a single computer, all three steps can be run at once:");
+		System.err.println();
+		System.err.println("  All steps:        " + COMMAND_NAME +
+			" segment-all --image input.xml --classifier input.classifier --n5 tmp.n5 --xml output.xml");
 	}
 
 	private void showSegmentExample(int index) {
@@ -0,0 +1,186 @@
+package sc.fiji.labkit.cli;
+
+/**
+ * Limits the number of blocks, that are segmented concurrently, such that
+ * they fit into a memory budget.
+ * <p>
+ * The memory required to segment a block is dominated by the feature stack of
+ * the classifier. Initially it is estimated from the block size and number of
+ * channels, assuming {@link #ESTIMATED_FEATURES} features per channel.
+ * <p>
+ * The estimate is then corrected with the live heap, that is the heap memory
+ * still in use after a garbage collection, see {@link HeapUsage#liveBytes()}.
+ * Whenever a garbage collection happened while blocks were segmented, the
+ * live heap above the baseline, divided by the number of blocks in flight, is
+ * one sample of the memory per block. This includes the memory allocated by
+ * worker threads of the segmenter, but not garbage. The samples are smoothed
+ * with an exponential moving average, such that the estimate can decrease
+ * again. The number of admitted blocks is the budget divided by the estimate,
+ * but at least one.
+ * <p>
+ * Additionally, if the live heap is above {@link #HIGH_HEAP_USAGE} of the
+ * maximum heap size, one block less is admitted. The limit recovers step by
+ * step, while the live heap is below {@link #LOW_HEAP_USAGE}.
+ */
+class MemoryAdmission {
+
+	/**
+	 * Conservative guess of the number of features per channel, that is only
+	 * used until the first measurement.
+	 */
+	static final int ESTIMATED_FEATURES = 64;
+
+	static final double HIGH_HEAP_USAGE = 0.85;
+
+	static final double LOW_HEAP_USAGE = 0.6;
+
+	/**
+	 * Weight of a new sample in the moving average of the memory per block.
+	 */
+	static final double SMOOTHING = 0.25;
+
+	private final long budget;
+
+	private final int maxBlocks;
+
+	private final long maxHeap;
+
+	private long baseline;
+
+	private long bytesPerBlock;
+
+	private boolean measured = false;
+
+	private int heapLimit;
+
+	private int running = 0;
+
+	private long collectionCount = HeapUsage.collectionCount();
+
+	/**
+	 * @param budget Memory in bytes, available for segmenting blocks.
+	 * @param maxBlocks Maximal number of concurrent blocks, usually the number
+	 *          of segmentation threads.
+	 * @param initialBytesPerBlock Estimate used until the first measurement,
+	 *          see {@link #estimateBytesPerBlock}.
+	 */
+	MemoryAdmission(long budget, int maxBlocks, long initialBytesPerBlock) {
+		this(budget, maxBlocks, initialBytesPerBlock, HeapUsage.liveBytes(),
+			Runtime.getRuntime().maxMemory());
+	}
+
+	/**
+	 * @param baseline Live heap, before any block is segmented.
+	 * @param maxHeap Maximum heap size.
+	 */
+	MemoryAdmission(long budget, int maxBlocks, long initialBytesPerBlock,
+		long baseline, long maxHeap)
+	{
+		this.budget = budget;
+		this.maxBlocks = maxBlocks;
+		this.bytesPerBlock = initialBytesPerBlock;
+		this.baseline = baseline;
+		this.maxHeap = maxHeap;
+		this.heapLimit = maxBlocks;
+	}
+
+	static long estimateBytesPerBlock(long voxelsPerBlock, long channels) {
+		return voxelsPerBlock * channels * ESTIMATED_FEATURES * Float.BYTES;
+	}
+
+	/**
+	 * Parses the memory budget, given either in megabytes, or in percent of
+	 * the maximum heap size, for example "4096" or "80%".
+	 */
+	static long parseBudget(String value) {
+		try {
+			if (value.endsWith("%")) {
+				double percent = Double.parseDouble(value.substring(0, value.length() -
+					1));
+				if (percent <= 0 || percent > 100)
+					throw new IllegalArgumentException("Invalid percentage: " + value);
+				return (long) (Runtime.getRuntime().maxMemory() * percent / 100);
+			}
+			long megabytes = Long.parseLong(value);
+			if (megabytes <= 0)
+				throw new IllegalArgumentException("Invalid memory budget: " + value);
+			return megabytes << 20;
+		}
+		catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid memory budget: " + value);
+		}
+	}
+
+	/**
+	 * Waits until another block can be admitted.
+	 */
+	synchronized void acquire() {
+		while (running >= limit()) {
+			try {
+				wait();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			}
+		}
+		running++;
+	}
+
+	/**
+	 * Called when a block is segmented. Updates the estimate and the limit, if
+	 * a garbage collection happened since the last update.
+	 */
+	void release() {
+		long count = HeapUsage.collectionCount();
+		long live = HeapUsage.liveBytes();
+		synchronized (this) {
+			int blocksInFlight = running;
+			running--;
+			if (count != collectionCount) {
+				collectionCount = count;
+				observe(live, blocksInFlight);
+			}
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Updates the estimate and the limit with a measurement of the live heap.
+	 *
+	 * @param liveBytes Live heap after a garbage collection.
+	 * @param blocksInFlight Number of blocks that were segmented at the time.
+	 */
+	synchronized void observe(long liveBytes, int blocksInFlight) {
+		// the live heap without blocks in flight is the new baseline
+		if (blocksInFlight <= 0 || liveBytes < baseline) {
+			baseline = liveBytes;
+		}
+		else {
+			long sample = (liveBytes - baseline) / blocksInFlight;
+			bytesPerBlock = measured ? Math.round(SMOOTHING * sample +
+				(1 - SMOOTHING) * bytesPerBlock) : sample;
+			measured = true;
+		}
+		double heapUsage = (double) liveBytes / maxHeap;
+		if (heapUsage > HIGH_HEAP_USAGE)
+			heapLimit = Math.max(1, Math.min(heapLimit, Math.max(1,
+				blocksInFlight)) - 1);
+		else if (heapUsage < LOW_HEAP_USAGE)
+			heapLimit = Math.min(maxBlocks, heapLimit + 1);
+		notifyAll();
+	}
+
+	/**
+	 * Number of blocks that are currently admitted concurrently.
+	 */
+	synchronized int limit() {
+		long fitting = bytesPerBlock <= 0 ? maxBlocks : budget / bytesPerBlock;
+		return (int) Math.max(1, Math.min(Math.min(maxBlocks, heapLimit),
+			fitting));
+	}
+
+	synchronized long bytesPerBlock() {
+		return bytesPerBlock;
+	}
+}
@@ -0,0 +1,96 @@
+package sc.fiji.labkit.cli;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Files of the blocks of a dataset in a N5 folder, in the layout used by
+ * {@link org.janelia.saalfeldlab.n5.N5FSWriter}. This allows to write and
+ * delete blocks without going through the N5 API.
+ * <p>
+ * Blocks are written to a temporary file first, which is then moved in
+ * place. Temporary files of processes that were killed, are deleted by
+ * {@link #deleteStaleTemporaryFiles}.
+ */
+class N5BlockFiles {
+
+	static final String TEMPORARY_INFIX = ".tmp-";
+
+	/**
+	 * Temporary files older than this are considered stale. A temporary file
+	 * is written with a single call, this is far longer than any write takes.
+	 */
+	static final long STALE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+	private N5BlockFiles() {
+		// prevent from instantiation
+	}
+
+	/**
+	 * Returns the file of a block: one directory per dimension of the grid
+	 * position, the last coordinate is the file name.
+	 */
+	static Path blockPath(String n5, String dataset, long[] gridPosition) {
+		Path path = Paths.get(n5, dataset);
+		for (long position : gridPosition)
+			path = path.resolve(Long.toString(position));
+		return path;
+	}
+
+	/**
+	 * Writes the block file, such that readers either see the previous or the
+	 * new content.
+	 */
+	static void write(Path file, byte[] bytes) throws IOException {
+		Files.createDirectories(file.getParent());
+		Path tmp = file.resolveSibling(file.getFileName() + TEMPORARY_INFIX + UUID
+			.randomUUID());
+		Files.write(tmp, bytes);
+		Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE,
+			StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Deletes a directory that only contains files, like the claims or the
+	 * list of empty blocks in the N5 folder. Does nothing, if the directory
+	 * doesn't exist.
+	 */
+	static void deleteDirectory(Path directory) throws IOException {
+		File[] files = directory.toFile().listFiles();
+		if (files == null)
+			return;
+		for (File file : files)
+			Files.deleteIfExists(file.toPath());
+		Files.deleteIfExists(directory);
+	}
+
+	/**
+	 * Deletes the stale temporary files in the given directories.
+	 *
+	 * @return The number of deleted files.
+	 */
+	static int deleteStaleTemporaryFiles(Collection<Path> directories)
+		throws IOException
+	{
+		long staleBefore = System.currentTimeMillis() - STALE_MILLIS;
+		int count = 0;
+		for (Path directory : directories) {
+			File[] files = directory.toFile().listFiles((dir, name) -> name.contains(
+				TEMPORARY_INFIX));
+			if (files == null)
+				continue;
+			for (File file : files)
+				if (file.lastModified() < staleBefore && Files.deleteIfExists(file
+					.toPath()))
+					count++;
+		}
+		return count;
+	}
+}
@@ -3,11 +3,20 @@ package sc.fiji.labkit.cli;
 
 import net.imagej.ImgPlus;
 import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.util.Intervals;
+import org.janelia.saalfeldlab.n5.Bzip2Compression;
+import org.janelia.saalfeldlab.n5.Compression;
 import org.janelia.saalfeldlab.n5.DataType;
 import org.janelia.saalfeldlab.n5.GzipCompression;
-import org.janelia.saalfeldlab.n5.N5FSWriter;
-import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.Lz4Compression;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.janelia.saalfeldlab.n5.XzCompression;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 import org.scijava.Context;
 import picocli.CommandLine;
 import sc.fiji.labkit.ui.inputimage.ImgPlusViewsOld;
@@ -16,8 +25,10 @@ import sc.fiji.labkit.ui.segmentation.Segmenter;
 import sc.fiji.labkit.ui.segmentation.weka.TrainableSegmentationSegmenter;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.Optional;
 import java.util.concurrent.Callable;
+import java.util.stream.IntStream;
 
 /**
  * This class defines the "prepare" sub command.
@@ -31,6 +42,24 @@ public class PrepareCommand implements Callable<Optional<Integer>> {
 
 	static final String N5_DATASET_NAME = "segmentation";
 
+	/**
+	 * Attribute of the N5 dataset, that stores the throughput in voxels per
+	 * second, measured by --auto-tune for each block size.
+	 */
+	static final String AUTO_TUNE_ATTRIBUTE = "autoTuneVoxelsPerSecond";
+
+	/**
+	 * Attribute of the N5 dataset, that marks it as sparse. Blocks that only
+	 * contain this value are not written.
+	 */
+	static final String FILL_VALUE_ATTRIBUTE = "fillValue";
+
+	/**
+	 * Attribute of the N5 dataset, that stores the labels of the axis types of
+	 * the image, without the channel axis.
+	 */
+	static final String AXES_ATTRIBUTE = "axes";
+
 	@CommandLine.Option(names = { "--image", "-I" }, required = true,
 		description = "Image to be segmented.")
 	private File imageXml;
@@ -46,25 +75,139 @@ public class PrepareCommand implements Callable<Optional<Integer>> {
 	@CommandLine.Option(names = { "--use-gpu" })
 	private boolean use_gpu = false;
 
-	@CommandLine.Option(names = { "--block-size" },
-		description = "(experimental) Allows to manually specify the block size to be used during segmentation." +
-				"Higher values result in better performance, but also require more memory. 64, 128, 256 might be good values.")
-	private Integer blockSize = null;
+	@CommandLine.Mixin
+	private DatasetOptions datasetOptions = new DatasetOptions();
+
+	@CommandLine.Option(names = { "--gpu-buffers" },
+		description = "Number of blocks processed concurrently per GPU, when using --use-gpu, " +
+			"see \"segment-chunk --gpu-buffers\". Used by --auto-tune. (default: 2)")
+	private int gpuBuffers = 2;
+
+	@CommandLine.Option(names = { "--memory-budget" }, paramLabel = "MEGABYTES",
+		description = "Memory available for the segmentation of blocks, used by --auto-tune. (default: maximum heap size)")
+	private Long memoryBudget = null;
+
+	@CommandLine.Option(names = { "--compression" },
+		description = "Compression of the N5 dataset: raw, gzip, gzip:LEVEL, bzip2, lz4 or xz. " +
+			"raw and lz4 are the fastest, gzip and xz give the smallest files. (default: gzip)")
+	private String compression = "gzip";
 
 	@Override
 	public Optional<Integer> call() throws Exception {
+		Compression n5Compression;
+		try {
+			n5Compression = parseCompression(compression);
+		}
+		catch (IllegalArgumentException e) {
+			System.err.println("Invalid value for --compression: " + compression);
+			return Optional.of(1);
+		}
+		if (!datasetOptions.check())
+			return Optional.of(1);
 		ImgPlus< ? > image = SpimDataToImgPlus.open(imageXml
 			.getAbsolutePath(), 0);
 		Segmenter segmenter = openSegmenter();
-		int[] cellDimensions = blockSize != null ? manualCellSize(image, blockSize) : segmenter.suggestCellSize(image);
-		long[] imageDimensions = imageDimensionsWithoutChannelAxis(image);
-		N5Writer writer = new N5FSWriter(n5.getAbsolutePath());
-		writer.createDataset(N5_DATASET_NAME, imageDimensions,
-			cellDimensions, DataType.UINT8, new GzipCompression());
+		long budget = memoryBudget != null ? memoryBudget << 20 : Runtime
+			.getRuntime().maxMemory();
+		datasetOptions.createDataset(n5, image, segmenter, n5Compression,
+			budget, BlockSegmentation.numberOfThreads(use_gpu, gpuBuffers));
 		return Optional.of(0); // exit code
 	}
 
-	private int[] manualCellSize(ImgPlus<?> image, Integer blockSize) {
+	/**
+	 * Parses "raw", "gzip", "gzip:LEVEL", "bzip2", "lz4" or "xz".
+	 */
+	static Compression parseCompression(String value) {
+		String[] parts = value.toLowerCase().split(":", 2);
+		if (parts.length == 2 && !parts[0].equals("gzip"))
+			throw new IllegalArgumentException("Unknown compression: " + value);
+		switch (parts[0]) {
+			case "raw":
+				return new RawCompression();
+			case "gzip":
+				if (parts.length == 1)
+					return new GzipCompression();
+				int level;
+				try {
+					level = Integer.parseInt(parts[1]);
+				}
+				catch (NumberFormatException e) {
+					throw new IllegalArgumentException("Invalid gzip level: " + value);
+				}
+				if (level < 0 || level > 9)
+					throw new IllegalArgumentException("Invalid gzip level: " + value);
+				return new GzipCompression(level);
+			case "bzip2":
+				return new Bzip2Compression();
+			case "lz4":
+				return new Lz4Compression();
+			case "xz":
+				return new XzCompression();
+			default:
+				throw new IllegalArgumentException("Unknown compression: " + value);
+		}
+	}
+
+	/**
+	 * Parses "uint8", "uint16", "uint32" or "uint64".
+	 */
+	static DataType parseDataType(String value) {
+		switch (value.toLowerCase()) {
+			case "uint8":
+				return DataType.UINT8;
+			case "uint16":
+				return DataType.UINT16;
+			case "uint32":
+				return DataType.UINT32;
+			case "uint64":
+				return DataType.UINT64;
+			default:
+				throw new IllegalArgumentException("Unknown data type: " + value);
+		}
+	}
+
+	/**
+	 * Returns the fill value of a sparse segmentation dataset, or null if the
+	 * dataset is not sparse.
+	 */
+	static Long fillValue(N5Reader reader) throws IOException {
+		return fillValue(reader, N5_DATASET_NAME);
+	}
+
+	static Long fillValue(N5Reader reader, String dataset) throws IOException {
+		return reader.getAttribute(dataset, FILL_VALUE_ATTRIBUTE, Long.class);
+	}
+
+	/**
+	 * Opens the segmentation dataset of the given N5 folder, with the pixel
+	 * type stored in the dataset attributes. Missing blocks of a sparse dataset
+	 * are constant cells of the fill value, see {@link SparseDataset}. The
+	 * returned image must not be modified.
+	 */
+	static RandomAccessibleInterval<? extends IntegerType<?>> openSegmentation(
+		N5Reader reader) throws IOException
+	{
+		return openLabels(reader, N5_DATASET_NAME);
+	}
+
+	/**
+	 * Same as {@link #openSegmentation}, but for any dataset of unsigned
+	 * integer labels, for example a level of the {@link SegmentationPyramid}.
+	 */
+	static RandomAccessibleInterval<? extends IntegerType<?>> openLabels(
+		N5Reader reader, String dataset) throws IOException
+	{
+		Long fillValue = fillValue(reader, dataset);
+		if (fillValue == null)
+			return N5Utils.open(reader, dataset);
+		return SparseDataset.open(reader, dataset, fillValue);
+	}
+
+	/**
+	 * Uses the given block size for all spatial axes, and one for all other
+	 * axes.
+	 */
+	static int[] manualCellSize(ImgPlus<?> image, Integer blockSize) {
 		int[] cellDimension = new int[image.numDimensions()];
 		for(int i = 0; i < cellDimension.length; ++i) {
 			cellDimension[i] = image.axis(i).type().isSpatial() ? blockSize : 1;
@@ -72,7 +215,34 @@ public class PrepareCommand implements Callable<Optional<Integer>> {
 		return cellDimension;
 	}
 
-	private long[] imageDimensionsWithoutChannelAxis(ImgPlus< ? > image) {
+	static String[] axesWithoutChannelAxis(ImgPlus<?> image) {
+		return IntStream.range(0, image.numDimensions())
+			.mapToObj(d -> image.axis(d).type())
+			.filter(type -> type != Axes.CHANNEL)
+			.map(AxisType::getLabel)
+			.toArray(String[]::new);
+	}
+
+	/**
+	 * Returns which axes of the dataset are spatial, as stored in the
+	 * {@link #AXES_ATTRIBUTE}. N5 folders prepared by older versions don't have
+	 * this attribute, for them the axes with a block size greater than one
+	 * are considered spatial.
+	 */
+	static boolean[] spatialAxes(N5Reader reader, String dataset)
+		throws IOException
+	{
+		String[] axes = reader.getAttribute(dataset, AXES_ATTRIBUTE,
+			String[].class);
+		int[] blockSize = reader.getDatasetAttributes(dataset).getBlockSize();
+		boolean[] spatial = new boolean[blockSize.length];
+		for (int d = 0; d < spatial.length; d++)
+			spatial[d] = axes != null ? Axes.get(axes[d]).isSpatial()
+				: blockSize[d] > 1;
+		return spatial;
+	}
+
+	static long[] imageDimensionsWithoutChannelAxis(ImgPlus< ? > image) {
 		if ( ImgPlusViewsOld.hasAxis(image, Axes.CHANNEL))
 			image = ImgPlusViewsOld.hyperSlice(image, Axes.CHANNEL, 0);
 		return Intervals.dimensionsAsLongArray(image);
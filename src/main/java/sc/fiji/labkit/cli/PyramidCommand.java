@@ -0,0 +1,112 @@
+package sc.fiji.labkit.cli;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.parallel.TaskExecutor;
+import net.imglib2.parallel.TaskExecutors;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.util.StopWatch;
+import picocli.CommandLine;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class defines the "pyramid" sub command.
+ * <p>
+ * Computes downsampled resolution levels of the segmentation stored in a N5
+ * folder, see {@link SegmentationPyramid}. Without --level, all levels are
+ * computed one after the other. With --level, only the given level is
+ * computed, which can be divided into chunks, just like the "segment-chunk"
+ * sub command.
+ */
+@CommandLine.Command(name = "pyramid",
+	description = "Computes downsampled resolution levels of the segmentation in the N5 folder. " +
+		"The levels are stored in the group \"" + SegmentationPyramid.GROUP + "\" of the N5 folder, " +
+		"and are used by the \"show\" sub command.")
+public class PyramidCommand implements Callable<Optional<Integer>> {
+
+	@CommandLine.Option(names = { "--n5" }, required = true,
+		description = "N5 folder that contains the segmentation.")
+	private File n5;
+
+	@CommandLine.Option(names = { "--levels" },
+		description = "Number of resolution levels, including the full resolution. " +
+			"(default: as many levels as needed, until a level fits into a single block)")
+	private Integer levels = null;
+
+	@CommandLine.Option(names = { "--level" },
+		description = "Only compute the given level, the previous levels need to be complete.")
+	private Integer level = null;
+
+	@CommandLine.Option(names = { "--chunks" },
+		paramLabel = "NUMBER_OF_CHUNKS",
+		description = "The computation of the level given by --level will be divided into the given number of chunks. " +
+			"Requires --level. (default: 1)")
+	private Integer number_of_chunks = null;
+
+	@CommandLine.Option(names = { "--index" },
+		paramLabel = "CHUNK_INDEX",
+		description = "Index, of the chunk to be processed. Requires --level. (default: 0)")
+	private Integer index = null;
+
+	@Override
+	public Optional<Integer> call() throws Exception {
+		if (level != null && level < 1) {
+			System.err.println("Invalid value for --level: " + level +
+				", level zero is the full resolution segmentation.");
+			return Optional.of(1);
+		}
+		if (level == null && (number_of_chunks != null || index != null)) {
+			System.err.println("--chunks and --index can only be used together with --level.");
+			return Optional.of(1);
+		}
+		SegmentationPyramid pyramid = new SegmentationPyramid(n5
+			.getAbsolutePath());
+		try (TaskExecutor taskExecutor = TaskExecutors.fixedThreadPool(Runtime
+			.getRuntime().availableProcessors()))
+		{
+			if (level != null) {
+				computeLevel(pyramid, level, taskExecutor);
+				return Optional.of(0);
+			}
+			int numberOfLevels = levels != null ? levels : pyramid
+				.defaultNumberOfLevels();
+			for (int l = 1; l < numberOfLevels; l++)
+				computeLevel(pyramid, l, taskExecutor);
+		}
+		return Optional.of(0);
+	}
+
+	private void computeLevel(SegmentationPyramid pyramid, int level,
+		TaskExecutor taskExecutor) throws IOException
+	{
+		System.out.println("Level " + level + ", downsampling factors: " + Arrays
+			.toString(pyramid.downsamplingFactors(level)));
+		pyramid.createLevel(level);
+		RandomAccessibleInterval<? extends IntegerType<?>> source = pyramid
+			.openSource(level);
+		int chunks = number_of_chunks != null ? number_of_chunks : 1;
+		int chunk = index != null ? index % chunks : 0;
+		List<Integer> blocks = IntRange.chunk(pyramid.numberOfBlocks(level), chunk,
+			chunks);
+		StopWatch watch = StopWatch.createAndStart();
+		AtomicInteger counter = new AtomicInteger(0);
+		taskExecutor.forEach(blocks, i -> {
+			try {
+				pyramid.downsampleBlock(level, i, source);
+			}
+			catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			System.out.println("Block " + counter.getAndIncrement() + " of " + blocks
+				.size() + " has been downsampled. Block coordinates: " + Arrays
+					.toString(pyramid.blockOffset(level, i)));
+		});
+		System.out.println("Time elapsed: " + watch);
+	}
+}
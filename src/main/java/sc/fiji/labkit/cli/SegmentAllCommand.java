@@ -0,0 +1,157 @@
+package sc.fiji.labkit.cli;
+
+import net.imagej.ImgPlus;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.parallel.TaskExecutor;
+import net.imglib2.type.numeric.IntegerType;
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import picocli.CommandLine;
+import sc.fiji.labkit.ui.inputimage.SpimDataInputImage;
+import sc.fiji.labkit.ui.segmentation.Segmenter;
+
+import java.io.File;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+
+/**
+ * This class defines the "segment-all" sub command.
+ * <p>
+ * Runs the whole workflow on a single computer, in one JVM: "prepare", the
+ * segmentation of all blocks, and "create-hdf5". The image and the classifier
+ * are loaded only once. The segmented blocks are kept in memory, up to
+ * --output-cache, and handed to the HDF5 export from there, see
+ * {@link SegmentedBlocks}.
+ * <p>
+ * The N5 folder serves as checkpoint. If it already contains the segmentation
+ * dataset, the command continues where a previous run stopped, only the blocks
+ * that are not yet completely written are segmented. Options that don't match
+ * the existing dataset are rejected.
+ */
+@CommandLine.Command(name = "segment-all",
+	description = "Segment the whole image on this computer, and save the result as Big Data Viewer compatible HDF5. " +
+		"Equivalent to \"prepare\", \"segment-chunk\" for all chunks, and \"create-hdf5\", but the image and classifier are loaded only once. " +
+		"Restarting the command continues an interrupted segmentation.")
+public class SegmentAllCommand implements Callable<Optional<Integer>> {
+
+	@CommandLine.Option(names = { "--image" }, required = true,
+		description = "Image to be segmented.")
+	private File imageXml;
+
+	@CommandLine.Option(names = { "--classifier" }, required = true,
+		description = "Classifier that was trained using the FIJI Labkit plugin.")
+	private File classifier;
+
+	@CommandLine.Option(names = { "--n5" }, required = true,
+		description = "N5 folder, that stores the segmented blocks. It is created if it doesn't exist, " +
+			"and used to continue an interrupted segmentation.")
+	private File n5;
+
+	@CommandLine.Option(names = { "--xml" }, required = true,
+		description = "Location to store the XML and HDF5 files, that can be opened with BigDataViewer.")
+	private File xml;
+
+	@CommandLine.Option(names = { "--use-gpu" })
+	private boolean use_gpu = false;
+
+	@CommandLine.Option(names = { "--gpu-buffers" },
+		description = "Number of blocks processed concurrently per GPU, when using --use-gpu, " +
+			"see \"segment-chunk --gpu-buffers\". (default: 2)")
+	private int gpuBuffers = 2;
+
+	@CommandLine.Mixin
+	private DatasetOptions datasetOptions = new DatasetOptions();
+
+	@CommandLine.Option(names = { "--compression" },
+		description = "Compression of the N5 dataset: raw, gzip, gzip:LEVEL, bzip2, lz4 or xz. " +
+			"The N5 dataset is only intermediate, lz4 is the fastest. (default: lz4)")
+	private String compression = null;
+
+	@CommandLine.Option(names = { "--memory-budget" },
+		paramLabel = "MEGABYTES|PERCENT%",
+		description = "Memory available for segmenting blocks, see \"segment-chunk --memory-budget\". " +
+			"Also used by --auto-tune. (default: one block per thread)")
+	private String memoryBudget = null;
+
+	@CommandLine.Option(names = { "--output-cache" },
+		paramLabel = "MEGABYTES|PERCENT%",
+		description = "Memory used to keep the segmented blocks for the HDF5 export, in megabytes or in percent of the maximum heap size. " +
+			"Blocks that don't fit, or were segmented by a previous run, are read back from the N5 folder. (default: 25%)")
+	private String outputCache = "25%";
+
+	@Override
+	public Optional<Integer> call() throws Exception {
+		Compression n5Compression = null;
+		if (compression != null) {
+			try {
+				n5Compression = PrepareCommand.parseCompression(compression);
+			}
+			catch (IllegalArgumentException e) {
+				System.err.println("Invalid value for --compression: " + compression);
+				return Optional.of(1);
+			}
+		}
+		if (!datasetOptions.check())
+			return Optional.of(1);
+		Long budget = null;
+		if (memoryBudget != null) {
+			try {
+				budget = MemoryAdmission.parseBudget(memoryBudget);
+			}
+			catch (IllegalArgumentException e) {
+				System.err.println("Invalid value for --memory-budget: " + memoryBudget);
+				return Optional.of(1);
+			}
+		}
+		long cacheBytes;
+		try {
+			cacheBytes = MemoryAdmission.parseBudget(outputCache);
+		}
+		catch (IllegalArgumentException e) {
+			System.err.println("Invalid value for --output-cache: " + outputCache);
+			return Optional.of(1);
+		}
+		ImgPlus<?> image = new SpimDataInputImage(imageXml.getAbsolutePath(), 0)
+			.imageForSegmentation();
+		Segmenter segmenter = BlockSegmentation.openSegmenter(classifier, use_gpu);
+		N5Writer writer = new N5FSWriter(n5.getAbsolutePath());
+		if (writer.datasetExists(PrepareCommand.N5_DATASET_NAME)) {
+			if (!datasetOptions.checkExistingDataset(writer, image, n5Compression))
+				return Optional.of(1);
+			System.out.println("Continue the segmentation in: " + n5);
+		}
+		else {
+			datasetOptions.createDataset(n5, image, segmenter,
+				n5Compression != null ? n5Compression : PrepareCommand
+					.parseCompression("lz4"), budget != null ? budget : Runtime
+						.getRuntime().maxMemory(), BlockSegmentation.numberOfThreads(
+							use_gpu, gpuBuffers));
+		}
+		DatasetAttributes attributes = writer.getDatasetAttributes(
+			PrepareCommand.N5_DATASET_NAME);
+		SegmentedBlocks segmentedBlocks = new SegmentedBlocks(new CellGrid(
+			attributes.getDimensions(), attributes.getBlockSize()), cacheBytes);
+		BlockSegmentation blocks = new BlockSegmentation(n5.getAbsolutePath(),
+			segmenter, image);
+		try (TaskExecutor taskExecutor = BlockSegmentation.createTaskExecutor(
+			use_gpu, gpuBuffers))
+		{
+			BlockPipeline pipeline = BlockPipeline.defaults();
+			pipeline.setSegmentedBlocks(segmentedBlocks);
+			if (budget != null)
+				pipeline.setMemoryAdmission(new MemoryAdmission(budget, taskExecutor
+					.getParallelism(), blocks.estimateBytesPerBlock()));
+			BlockMetrics metrics = SegmentChunkCommand.writeN5Range(blocks, 0, 1,
+				true, pipeline, taskExecutor);
+			metrics.writeCsv(BlockMetrics.defaultCsv(n5.toPath(), 0, 1));
+		}
+		RandomAccessibleInterval<? extends IntegerType<?>> segmentation =
+			segmentedBlocks.wrap(PrepareCommand.openSegmentation(writer));
+		CreateHdf5Command.saveHdf5(segmentation, xml);
+		System.out.print(segmentedBlocks.summary());
+		return Optional.of(0); // exit code
+	}
+}
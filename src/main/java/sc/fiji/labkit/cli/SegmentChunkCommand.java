@@ -2,54 +2,37 @@
 package sc.fiji.labkit.cli;
 
 import net.imagej.ImgPlus;
-import net.imglib2.FinalInterval;
-import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.img.Img;
-import net.imglib2.img.array.ArrayImgs;
-import net.imglib2.img.cell.CellGrid;
 import net.imglib2.parallel.TaskExecutor;
-import net.imglib2.parallel.TaskExecutors;
-import net.imglib2.type.numeric.integer.UnsignedByteType;
-import net.imglib2.util.IntervalIndexer;
-import net.imglib2.util.Intervals;
 import net.imglib2.util.StopWatch;
-import net.imglib2.view.Views;
-import org.janelia.saalfeldlab.n5.DatasetAttributes;
-import org.janelia.saalfeldlab.n5.N5FSWriter;
-import org.janelia.saalfeldlab.n5.N5Writer;
-import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
-import org.scijava.Context;
+import org.janelia.saalfeldlab.n5.N5FSReader;
 import picocli.CommandLine;
-import sc.fiji.labkit.pixel_classification.gpu.api.GpuPool;
 import sc.fiji.labkit.ui.inputimage.SpimDataInputImage;
 import sc.fiji.labkit.ui.segmentation.Segmenter;
-import sc.fiji.labkit.ui.segmentation.weka.TrainableSegmentationSegmenter;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.Callable;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.function.Consumer;
-import java.util.stream.IntStream;
 
 /**
  * This class defines the "segment-chunk" sub command.
  * <p>
  * Given an image and a classifier, this command will calculate the segmentation
  * of a part of the image. Which part, is defined by the given number of chunks
- * and the chunk index.
+ * and the chunk index. The blocks are divided into chunks in
+ * {@link BlockOrder Morton order}, such that each chunk covers a compact region
+ * of the image.
  */
 @CommandLine.Command(name = "segment-chunk",
 	description = "Segment a part (chunk) of the image using a given classifier." +
 		"Stores the results in the N5 folder.")
 public class SegmentChunkCommand implements Callable<Optional<Integer>> {
 
-	@CommandLine.Option(names = { "--image" }, required = true,
-		description = "Image to be segmented.")
+	@CommandLine.Option(names = { "--image" },
+		description = "Image to be segmented. Required, unless --input-n5 is used.")
 	private File imageXml;
 
 	@CommandLine.Option(names = { "--classifier" }, required = true,
@@ -73,116 +56,178 @@ public class SegmentChunkCommand implements Callable<Optional<Integer>> {
 	@CommandLine.Option(names = { "--use-gpu" })
 	private boolean use_gpu = false;
 
+	@CommandLine.Option(names = { "--resume" },
+		description = "Skip the blocks of the chunk that are already completely written to the N5 folder. " +
+			"Use this to continue a chunk that was interrupted.")
+	private boolean resume = false;
+
+	@CommandLine.Option(names = { "--gpu-buffers" },
+		description = "Number of blocks processed concurrently per GPU, when using --use-gpu. " +
+			"With two buffers, the input of the next block is prepared, while the current block is segmented on the GPU. (default: 2)")
+	private int gpuBuffers = 2;
+
+	@CommandLine.Option(names = { "--prefetch" },
+		paramLabel = "NUMBER_OF_BLOCKS",
+		description = "Number of blocks, whose input pixels are loaded ahead of time, while other blocks are segmented. " +
+			"Zero disables prefetching. (default: " + BlockPipeline.DEFAULT_PREFETCH + ", or the number of GPU buffers when using the GPU)")
+	private Integer prefetch = null;
+
+	@CommandLine.Option(names = { "--io-threads" },
+		description = "Number of threads that compress and write the segmented blocks to the N5 folder. " +
+			"Zero means, that the blocks are written by the segmentation threads. (default: " +
+			BlockPipeline.DEFAULT_IO_THREADS + ")")
+	private int ioThreads = BlockPipeline.DEFAULT_IO_THREADS;
+
+	@CommandLine.Option(names = { "--write-queue" },
+		paramLabel = "NUMBER_OF_BLOCKS",
+		description = "Maximal number of segmented blocks, that wait to be written. (default: " +
+			BlockPipeline.DEFAULT_WRITE_QUEUE + ")")
+	private int writeQueue = BlockPipeline.DEFAULT_WRITE_QUEUE;
+
+	@CommandLine.Option(names = { "--metrics" }, paramLabel = "CSV_FILE",
+		description = "Write the time spent to read, segment, compress and write each block, " +
+			"and the number of bytes written, to the given CSV file. " +
+			"(default: " + BlockMetrics.METRICS_DIRECTORY + "/chunk-INDEX-of-CHUNKS.csv in the N5 folder)")
+	private File metricsCsv;
+
+	@CommandLine.Option(names = { "--background-threshold" },
+		description = "Skip the classifier for blocks, where no input pixel is above the given intensity. " +
+			"Such blocks are filled with the background label. Speeds up the segmentation of sparse samples.")
+	private Double backgroundThreshold = null;
+
+	@CommandLine.Option(names = { "--background-label" },
+		description = "Label written to the blocks skipped by --background-threshold, between 0 and 255. (default: 0)")
+	private int backgroundLabel = 0;
+
+	@CommandLine.Option(names = { "--margin", "--background-margin" }, paramLabel = "PIXELS",
+		description = "Pixels around a block, that the classifier looks at. They are loaded ahead by --prefetch, " +
+			"and also checked by --background-threshold. " +
+			"Should be about the size of the largest filter used by the classifier. (default: 8)")
+	private int margin = BlockSegmentation.DEFAULT_MARGIN;
+
+	@CommandLine.Option(names = { "--input-cache" }, paramLabel = "MEGABYTES",
+		description = "Cache the decoded input pixels in memory, up to the given size, shared by all threads. " +
+			"Avoids decoding the halos of neighboring blocks repeatedly, which helps for classifiers with large filters. " +
+			"(default: no additional cache)")
+	private Long inputCache = null;
+
+	@CommandLine.Option(names = { "--input-n5" },
+		description = "Read the image from the N5 folder, where it was stored by the \"convert-input\" sub command. " +
+			"Unlike HDF5, the N5 copy can be read by many threads in parallel.")
+	private boolean inputN5 = false;
+
+	@CommandLine.Option(names = { "--memory-budget" },
+		paramLabel = "MEGABYTES|PERCENT%",
+		description = "Memory available for segmenting blocks, in megabytes or in percent of the maximum heap size. " +
+			"Only as many blocks are segmented concurrently as fit into the budget, " +
+			"based on the memory measured for the previous blocks and the observed heap usage. " +
+			"(default: one block per thread)")
+	private String memoryBudget = null;
+
 	@Override
 	public Optional<Integer> call() throws Exception {
-		SpimDataInputImage image = new SpimDataInputImage(imageXml
-			.getAbsolutePath(), 0);
-		Segmenter segmenter = openSegmenter();
-		final ImgPlus<?> imgPlus = image.imageForSegmentation();
-		Consumer<RandomAccessibleInterval<UnsignedByteType>> loader =
-				block -> segmenter.segment(imgPlus, block);
-		if(segmenter.requiresFixedCellSize())
-			loader = fixBlockSize(loader);
-		try(TaskExecutor taskExecutor = getTaskExecutor()) {
-			writeN5Range(n5.getAbsolutePath(), index % number_of_chunks,
-					number_of_chunks, loader, taskExecutor);
+		Long budget = null;
+		if (memoryBudget != null) {
+			try {
+				budget = MemoryAdmission.parseBudget(memoryBudget);
+			}
+			catch (IllegalArgumentException e) {
+				System.err.println("Invalid value for --memory-budget: " + memoryBudget);
+				return Optional.of(1);
+			}
+		}
+		if (backgroundLabel < 0 || backgroundLabel > 255) {
+			System.err.println("Invalid value for --background-label: " + backgroundLabel);
+			return Optional.of(1);
+		}
+		ImgPlus<?> image = openImage();
+		if (image == null)
+			return Optional.of(1);
+		Segmenter segmenter = BlockSegmentation.openSegmenter(classifier, use_gpu);
+		BlockSegmentation blocks = new BlockSegmentation(n5.getAbsolutePath(),
+			segmenter, image);
+		if (inputCache != null)
+			blocks.setInputCache(inputCache << 20);
+		blocks.setMargin(margin);
+		if (backgroundThreshold != null)
+			blocks.setBackgroundThreshold(backgroundThreshold, backgroundLabel);
+		try(TaskExecutor taskExecutor = BlockSegmentation.createTaskExecutor(use_gpu, gpuBuffers)) {
+			BlockPipeline pipeline = new BlockPipeline(prefetchOrDefault(taskExecutor),
+				ioThreads, writeQueue);
+			MemoryAdmission admission = budget == null ? null : new MemoryAdmission(
+				budget, taskExecutor.getParallelism(), blocks.estimateBytesPerBlock());
+			pipeline.setMemoryAdmission(admission);
+			BlockMetrics metrics = writeN5Range(blocks, index % number_of_chunks,
+				number_of_chunks, resume, pipeline, taskExecutor);
+			metrics.writeCsv(metricsCsv != null ? metricsCsv.toPath() : BlockMetrics
+				.defaultCsv(n5.toPath(), index % number_of_chunks, number_of_chunks));
+			if (admission != null)
+				System.out.println("Memory admission: " + admission.limit() + " of " +
+					taskExecutor.getParallelism() + " blocks concurrently, " + (admission
+						.bytesPerBlock() >> 20) + " MB per block.");
 		}
 		return Optional.of(0); // exit code 0
 	}
 
-	private TaskExecutor getTaskExecutor() {
-		if (use_gpu) {
-			// Use as many threads as there are parallel gpu accesses allowed with the GpuPool.
-			// Each of those treads uses standard multithreading, for fast memory copying to the GPU.
-			if(!GpuPool.isGpuAvailable()) {
-				System.err.println("No OpenCL device found. Make sure you properly install your OpenCL drivers.");
-				System.exit(1);
+	private ImgPlus<?> openImage() throws IOException {
+		if (inputN5) {
+			N5FSReader reader = new N5FSReader(n5.getAbsolutePath());
+			if (!InputN5.exists(reader)) {
+				System.err.println("The N5 folder doesn't contain the input image. " +
+					"Run the \"convert-input\" sub command first: " + n5);
+				return null;
 			}
-			TaskExecutor taskExecutor = TaskExecutors.multiThreaded();
-			ThreadFactory threadFactory = TaskExecutors.threadFactory(() -> taskExecutor);
-			return TaskExecutors.forExecutorService(Executors.newFixedThreadPool(GpuPool.size(), threadFactory));
+			return InputN5.open(reader);
 		}
-		else {
-			// Use as many threads as there are processors.
-			// Single threading inside each of those threads.
-			return TaskExecutors.fixedThreadPool(Runtime.getRuntime().availableProcessors());
+		if (imageXml == null) {
+			System.err.println("Missing required option: '--image' or '--input-n5'");
+			return null;
 		}
+		return new SpimDataInputImage(imageXml.getAbsolutePath(), 0)
+			.imageForSegmentation();
 	}
 
-	private Consumer<RandomAccessibleInterval<UnsignedByteType>> fixBlockSize(Consumer<RandomAccessibleInterval<UnsignedByteType>> loader) throws IOException {
-		int[] blockSize = new N5FSWriter(n5.getAbsolutePath())
-				.getDatasetAttributes(PrepareCommand.N5_DATASET_NAME)
-				.getBlockSize();
-		long[] size = IntStream.of(blockSize).mapToLong(x -> x).toArray();
-		return block -> {
-			if(Arrays.equals(Intervals.dimensionsAsLongArray(block), size))
-				loader.accept(block);
-			else {
-				long[] min = Intervals.minAsLongArray(block);
-				FinalInterval interval = FinalInterval.createMinSize(min, size);
-				loader.accept(Views.interval(Views.extendZero(block), interval));
-			}
-		};
-	}
-
-	private TrainableSegmentationSegmenter openSegmenter()
-	{
-		TrainableSegmentationSegmenter segmenter =
-			new TrainableSegmentationSegmenter(new Context());
-		segmenter.openModel(classifier.getAbsolutePath());
-		segmenter.setUseGpu(use_gpu);
-		return segmenter;
+	/**
+	 * In GPU mode, the input of as many blocks as there are segmentation
+	 * threads is prefetched. This way every GPU has the input of its next block
+	 * available in memory, when it finishes the current block.
+	 */
+	private int prefetchOrDefault(TaskExecutor taskExecutor) {
+		if (prefetch != null)
+			return prefetch;
+		if (use_gpu)
+			return Math.max(BlockPipeline.DEFAULT_PREFETCH, taskExecutor
+				.getParallelism());
+		return BlockPipeline.DEFAULT_PREFETCH;
 	}
 
-	private static void writeN5Range(String output, int index, int numberOfChunks,
-			Consumer<RandomAccessibleInterval<UnsignedByteType>> loader, TaskExecutor taskExecutor)
-		throws IOException
+	static BlockMetrics writeN5Range(BlockSegmentation segmentation, int index,
+			int numberOfChunks, boolean resume, BlockPipeline pipeline,
+			TaskExecutor taskExecutor)
 	{
-		N5Writer writer = new N5FSWriter(output);
-		long[] gridDimensions = getCellGrid(writer).getGridDimensions();
-		int size = (int) Intervals.numElements(gridDimensions);
-		int chunkSize = (size + numberOfChunks - 1) / numberOfChunks;
-		int start = index * chunkSize;
-		int end = Math.min(size, start + chunkSize);
+		IntRange chunk = IntRange.chunk(segmentation.numberOfBlocks(), index,
+				numberOfChunks);
+		List<Integer> chunkBlocks = segmentation.blockOrder().subList(chunk
+				.start(), chunk.start() + chunk.size());
+		List<Integer> blocks = resume ?
+				segmentation.missingBlocks(chunkBlocks, taskExecutor) :
+				chunkBlocks;
+		if (resume)
+			System.out.println((chunkBlocks.size() - blocks.size()) + " of " + chunkBlocks.size() +
+					" blocks have already been segmented and will be skipped.");
 		StopWatch watch = StopWatch.createAndStart();
-		AtomicInteger counter = new AtomicInteger(start);
-		taskExecutor.forEach(new IntRange(start, end), ignore -> {
-			int i = counter.getAndIncrement();
-			long[] blockOffset = new long[gridDimensions.length];
-			IntervalIndexer.indexToPosition(i, gridDimensions, blockOffset);
-			try {
-				saveBlock(writer, blockOffset, loader);
-			} catch (IOException e) {
-				throw new RuntimeException(e);
-			}
-			System.out.println("Block " + (i - start) + " of " + (end - start) +
+		AtomicInteger counter = new AtomicInteger(0);
+		BlockMetrics metrics = new BlockMetrics();
+		pipeline.run(segmentation, blocks, taskExecutor, metrics, i -> {
+			System.out.println("Block " + counter.getAndIncrement() + " of " + blocks.size() +
 					" has been segmented. Block coordinates: " + Arrays.toString(
-					blockOffset));
+					segmentation.blockOffset(i)));
 		});
 		System.out.println("Time elapsed: " + watch);
-	}
-
-	private static void saveBlock(N5Writer writer, long[] blockOffset,
-		Consumer<RandomAccessibleInterval<UnsignedByteType>> loader)
-		throws IOException
-	{
-		CellGrid grid = getCellGrid(writer);
-		long[] cellMin = new long[grid.numDimensions()];
-		int[] cellDims = new int[grid.numDimensions()];
-		grid.getCellDimensions(blockOffset, cellMin, cellDims);
-		Img<UnsignedByteType> block = ArrayImgs.unsignedBytes(toLongs(cellDims));
-		loader.accept(Views.translate(block, cellMin));
-		N5Utils.saveBlock(block, writer, PrepareCommand.N5_DATASET_NAME,
-			blockOffset);
-	}
-
-	private static CellGrid getCellGrid(N5Writer writer) throws IOException {
-		DatasetAttributes attributes = writer.getDatasetAttributes(
-			PrepareCommand.N5_DATASET_NAME);
-		return new CellGrid(attributes.getDimensions(), attributes.getBlockSize());
-	}
-
-	private static long[] toLongs(int[] values) {
-		return IntStream.of(values).mapToLong(x -> x).toArray();
+		System.out.print(metrics.summary());
+		if (segmentation.numberOfBackgroundBlocks() > 0)
+			System.out.println(segmentation.numberOfBackgroundBlocks() +
+					" blocks were below the background threshold and have not been classified.");
+		return metrics;
 	}
 }
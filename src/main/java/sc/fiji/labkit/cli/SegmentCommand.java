@@ -8,28 +8,38 @@ import io.scif.services.DatasetIOService;
 import net.imglib2.view.Views;
 import org.scijava.io.location.FileLocation;
 import sc.fiji.labkit.cli.dilation.FastDilation;
+import sc.fiji.labkit.cli.dilation.LabelExpansion;
+import sc.fiji.labkit.cli.dilation.SeparableDilation;
 import net.imagej.Dataset;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.algorithm.labeling.ConnectedComponents;
 import net.imglib2.algorithm.neighborhood.DiamondShape;
+import net.imglib2.algorithm.neighborhood.HyperSphereShape;
 import net.imglib2.algorithm.neighborhood.RectangleShape;
 import net.imglib2.img.ImgView;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.util.Cast;
 import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
 import org.scijava.Context;
 import org.scijava.command.CommandService;
-import org.scijava.io.location.BytesLocation;
-import org.scijava.util.ByteArray;
 import picocli.CommandLine;
 import sc.fiji.labkit.pixel_classification.RevampUtils;
 import sc.fiji.labkit.ui.plugin.SegmentImageWithLabkitPlugin;
+import sc.fiji.labkit.ui.segmentation.weka.TrainableSegmentationSegmenter;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Executors;
@@ -62,14 +72,74 @@ public class SegmentCommand implements Callable<Optional<Integer>> {
 			description = "(experimental) Performs a dilation with the given radius on the output image.")
 	private Integer dilationRadius = null;
 
+	@CommandLine.Option(names = { "--dilation-shape" },
+			description = "Shape used by --dilation: box, diamond, sphere or octagon. " +
+					"Sphere is approximated by octagon, if there are more than 16 labels. (default: octagon)")
+	private String dilationShape = "octagon";
+
+	@CommandLine.Option(names = { "--dilation-mode" },
+			description = "\"max\" dilates with the maximum pixel value, touching objects may merge. " +
+				"\"expand-labels\" grows each label into the background only, pixels between two objects " +
+				"get the label of the nearest object. The expand-labels mode always uses a sphere. (default: max)")
+	private String dilationMode = "max";
+
+	@CommandLine.Option(names = { "--tile-size" },
+			description = "(experimental) Streaming mode: the image is read lazily, segmented tile by tile, " +
+				"and the output is written plane by plane. Only a few tiles are kept in memory. " +
+				"Can not be combined with --connected-components or --dilation.")
+	private Integer tileSize = null;
+
+	@CommandLine.Option(names = { "--compression" },
+			description = "Compression of the TIFF output: none, lzw, deflate or deflate:LEVEL, " +
+				"with a level between 0 and 9. Only allowed if the output is a TIFF file. (default: lzw)")
+	private String compression = null;
+
+	@CommandLine.Option(names = { "--writer-threads" },
+			description = "Number of threads that compress the TIFF output. (default: number of processors)")
+	private int writerThreads = Runtime.getRuntime().availableProcessors();
+
+	private TiffWriter.Compression tiffCompression;
+
 	@Override
 	public Optional<Integer> call() throws Exception {
+		if(compression != null && !isTiff(outputFile)) {
+			System.err.println("--compression is only supported for TIFF output, but the output is: " + outputFile);
+			return Optional.of(1);
+		}
+		try {
+			tiffCompression = TiffWriter.Compression.parse(compression != null ? compression : "lzw");
+		}
+		catch (IllegalArgumentException e) {
+			System.err.println("Invalid value for --compression: " + compression);
+			return Optional.of(1);
+		}
+		SeparableDilation.StructuringElement structuringElement;
+		try {
+			structuringElement = SeparableDilation.StructuringElement.valueOf(dilationShape.toUpperCase());
+		}
+		catch (IllegalArgumentException e) {
+			System.err.println("Invalid value for --dilation-shape: " + dilationShape);
+			return Optional.of(1);
+		}
+		if(!dilationMode.equals("max") && !dilationMode.equals("expand-labels")) {
+			System.err.println("Invalid value for --dilation-mode: " + dilationMode);
+			return Optional.of(1);
+		}
 		Context context = new Context();
+		if(tileSize != null) {
+			if(connectedComponents || dilationRadius != null) {
+				System.err.println("--tile-size can not be combined with --connected-components or --dilation.");
+				return Optional.of(1);
+			}
+			segmentTiled(context);
+			return Optional.of(0);
+		}
 		// services
 		DatasetIOService datasetIoService = context.service(DatasetIOService.class);
 		CommandService commandService = context.service(CommandService.class);
 		System.out.println("open image");
 		Dataset input = datasetIoService.open(imageFile.getAbsolutePath());
+		List<AxisType> axes = axesWithoutChannel(input.getImgPlus());
 		System.out.println("segment");
 		RandomAccessibleInterval<? extends IntegerType<?>> segmentation = Cast.unchecked(commandService.run(
 				SegmentImageWithLabkitPlugin.class, true, "input", input,
@@ -82,14 +152,27 @@ public class SegmentCommand implements Callable<Optional<Integer>> {
 		}
 		if(dilationRadius != null) {
 			System.out.println("dilation");
-			segmentation = dilation(dilationRadius, Cast.unchecked(segmentation));
+			segmentation = dilation(dilationRadius, structuringElement, Cast.unchecked(segmentation));
 		}
 		System.out.println("write output");
-		writeImage(context, Cast.unchecked(segmentation));
+		writeImage(context, Cast.unchecked(segmentation), axes);
 		System.out.println("done");
 		return Optional.of(0);
 	}
 
+	private void segmentTiled(Context context) throws IOException {
+		DatasetIOService datasetIoService = context.service(DatasetIOService.class);
+		System.out.println("open image");
+		SCIFIOConfig openConfig = new SCIFIOConfig().imgOpenerSetImgModes(SCIFIOConfig.ImgMode.CELL);
+		ImgPlus<?> input = datasetIoService.open(imageFile.getAbsolutePath(), openConfig).getImgPlus();
+		TrainableSegmentationSegmenter segmenter = new TrainableSegmentationSegmenter(context);
+		segmenter.openModel(classifier.getAbsolutePath());
+		segmenter.setUseGpu(useGpu);
+		System.out.println("segment and write output");
+		writeImage(context, TiledSegmentation.create(segmenter, input, tileSize), axesWithoutChannel(input));
+		System.out.println("done");
+	}
+
 	private RandomAccessibleInterval<UnsignedShortType> runConnectedComponents(RandomAccessibleInterval<? extends IntegerType<?>> segmentation) {
 		RandomAccessibleInterval<UnsignedShortType> result = ArrayImgs.unsignedShorts(Intervals.dimensionsAsLongArray(segmentation));
 		int nThreads = Runtime.getRuntime().availableProcessors();
@@ -98,32 +181,101 @@ public class SegmentCommand implements Callable<Optional<Integer>> {
 		return result;
 	}
 
-	private <T extends IntegerType<T>> RandomAccessibleInterval<T> dilation(int radius, RandomAccessibleInterval<T> segmentation) {
-		if(radius <= 0)
-			return segmentation;
-		RandomAccessibleInterval<T> tmp = null;
-		for(int i = 0; i < radius / 2; i++) {
-			tmp = FastDilation.dilate(new DiamondShape(1), segmentation, tmp);
-			segmentation = FastDilation.dilate(new RectangleShape(1, true), tmp, segmentation);
+	private <T extends IntegerType<T> & NativeType<T>> RandomAccessibleInterval<T> dilation(int radius,
+			SeparableDilation.StructuringElement structuringElement, RandomAccessibleInterval<T> segmentation) {
+		if(dilationMode.equals("expand-labels")) {
+			ArrayImg<T, ?> result = new ArrayImgFactory<>(Util.getTypeFromInterval(segmentation)).create(segmentation);
+			LabelExpansion.expand(segmentation, Views.translate(result, Intervals.minAsLongArray(segmentation)), radius);
+			return result;
 		}
-		if(radius % 2 == 0)
+		ArrayImg<T, ?> image = asArrayImg(segmentation);
+		if(image == null) {
+			dilateInPlace(radius, structuringElement, segmentation);
 			return segmentation;
-		else {
-			FastDilation.dilate(new DiamondShape(1), segmentation, tmp);
-			return tmp;
 		}
+		if(!SeparableDilation.isExact(image, structuringElement))
+			System.err.println("Warning: The segmentation has more than " + SeparableDilation.MAX_LEVELS +
+					" labels, --dilation-shape sphere is approximated by octagon. " +
+					"Use --dilation-mode expand-labels for an exact euclidean distance.");
+		SeparableDilation.dilate(image, structuringElement, radius);
+		return image;
 	}
 
-	private <T extends IntegerType<T>> void writeImage(Context context, RandomAccessibleInterval<T> segmentation) throws IOException {
-		try(FileOutputStream os = new FileOutputStream(outputFile)) {
-			ByteArray bytes = new ByteArray();
-			SCIFIOConfig config = new SCIFIOConfig();
-			config.writerSetCompression("LZW");
-			config.writerSetSequential(true);
-			config.writerSetFailIfOverwriting(false);
-			new ImgSaver(context).saveImg(new BytesLocation(bytes, outputFile.getName()), ImgView.wrap(segmentation), config);
-			os.write(bytes.getArray(), 0, bytes.size());
+	/**
+	 * Returns the ArrayImg that stores the pixels of the segmentation, or null
+	 * if the segmentation is stored differently.
+	 */
+	private static <T extends NativeType<T>> ArrayImg<T, ?> asArrayImg(RandomAccessibleInterval<T> segmentation) {
+		RandomAccessibleInterval<T> image = segmentation instanceof ImgPlus ?
+				((ImgPlus<T>) segmentation).getImg() : segmentation;
+		return image instanceof ArrayImg ? (ArrayImg<T, ?>) image : null;
+	}
+
+	/**
+	 * Dilation of segmentations that are not stored in an ArrayImg, for
+	 * example cell images larger than 2^31 pixels. They are dilated in place,
+	 * plane by plane, with one pass per neighborhood offset. This is slower
+	 * than {@link SeparableDilation}, but doesn't need a copy of the image.
+	 */
+	private static <T extends IntegerType<T>> void dilateInPlace(int radius,
+			SeparableDilation.StructuringElement structuringElement, RandomAccessibleInterval<T> segmentation) {
+		if(radius <= 0)
+			return;
+		switch (structuringElement) {
+			case BOX:
+				FastDilation.dilate(new RectangleShape(radius, false), segmentation, segmentation);
+				break;
+			case DIAMOND:
+				FastDilation.dilate(new DiamondShape(radius), segmentation, segmentation);
+				break;
+			case SPHERE:
+				FastDilation.dilate(new HyperSphereShape(radius), segmentation, segmentation);
+				break;
+			case OCTAGON:
+				for(int i = 0; i < radius / 2; i++) {
+					FastDilation.dilate(new DiamondShape(1), segmentation, segmentation);
+					FastDilation.dilate(new RectangleShape(1, true), segmentation, segmentation);
+				}
+				if(radius % 2 != 0)
+					FastDilation.dilate(new DiamondShape(1), segmentation, segmentation);
+				break;
 		}
 	}
 
+	/**
+	 * TIFF files are written strip by strip directly to the output file, other
+	 * formats are written with SCIFIO.
+	 */
+	private <T extends IntegerType<T>> void writeImage(Context context, RandomAccessibleInterval<T> segmentation,
+			List<AxisType> axes) throws IOException {
+		if(isTiff(outputFile))
+			TiffWriter.write(segmentation, axes, outputFile.toPath(), tiffCompression, writerThreads);
+		else
+			new ImgSaver(context).saveImg(new FileLocation(outputFile), ImgView.wrap(segmentation), writerConfig());
+	}
+
+	private static boolean isTiff(File file) {
+		String name = file.getName().toLowerCase();
+		return name.endsWith(".tif") || name.endsWith(".tiff");
+	}
+
+	/**
+	 * The segmentation has the axes of the image, except for the channel axis.
+	 */
+	private static List<AxisType> axesWithoutChannel(ImgPlus<?> image) {
+		List<AxisType> axes = new ArrayList<>();
+		for(int d = 0; d < image.numDimensions(); d++)
+			if(image.axis(d).type() != Axes.CHANNEL)
+				axes.add(image.axis(d).type());
+		return axes;
+	}
+
+	private static SCIFIOConfig writerConfig() {
+		SCIFIOConfig config = new SCIFIOConfig();
+		config.writerSetCompression("LZW");
+		config.writerSetSequential(true);
+		config.writerSetFailIfOverwriting(false);
+		return config;
+	}
+
 }
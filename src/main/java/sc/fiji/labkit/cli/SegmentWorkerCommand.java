@@ -0,0 +1,164 @@
+package sc.fiji.labkit.cli;
+
+import net.imglib2.parallel.TaskExecutor;
+import net.imglib2.util.StopWatch;
+import picocli.CommandLine;
+import sc.fiji.labkit.ui.inputimage.SpimDataInputImage;
+import sc.fiji.labkit.ui.segmentation.Segmenter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * This class defines the "segment-worker" sub command.
+ * <p>
+ * Similar to {@link SegmentChunkCommand}, but instead of processing a fixed
+ * range of blocks, the worker repeatedly claims the next block that is not yet
+ * claimed by another worker. Any number of workers, on any number of cluster
+ * nodes, can be started on the same N5 folder. The claims are stored in the N5
+ * folder, see {@link BlockClaims}.
+ * <p>
+ * A worker only terminates when all blocks of the image are segmented. Blocks
+ * claimed by a worker that died, are taken over after the lease timeout.
+ */
+@CommandLine.Command(name = "segment-worker",
+	description = "Segment the image using a given classifier. Blocks are dynamically distributed " +
+		"among all workers running on the same N5 folder. Stores the results in the N5 folder.")
+public class SegmentWorkerCommand implements Callable<Optional<Integer>> {
+
+	@CommandLine.Option(names = { "--image" }, required = true,
+		description = "Image to be segmented.")
+	private File imageXml;
+
+	@CommandLine.Option(names = { "--classifier" }, required = true,
+		description = "Classifier that was trained using the FIJI Labkit plugin.")
+	private File classifier;
+
+	@CommandLine.Option(names = { "--n5" }, required = true,
+		description = "N5 folder that was created using the \"prepare\" sub command.")
+	private File n5;
+
+	@CommandLine.Option(names = { "--use-gpu" })
+	private boolean use_gpu = false;
+
+	@CommandLine.Option(names = { "--lease-timeout" },
+		paramLabel = "SECONDS",
+		description = "A block claimed by a worker that didn't show any sign of life for the given time, " +
+			"is taken over by another worker. (default: 600)")
+	private long leaseTimeout = 600;
+
+	@CommandLine.Option(names = { "--input-cache" }, paramLabel = "MEGABYTES",
+		description = "Cache the decoded input pixels in memory, up to the given size, shared by all threads. " +
+			"(default: no additional cache)")
+	private Long inputCache = null;
+
+	@Override
+	public Optional<Integer> call() throws Exception {
+		SpimDataInputImage image = new SpimDataInputImage(imageXml
+			.getAbsolutePath(), 0);
+		Segmenter segmenter = BlockSegmentation.openSegmenter(classifier, use_gpu);
+		BlockSegmentation blocks = new BlockSegmentation(n5.getAbsolutePath(),
+			segmenter, image.imageForSegmentation());
+		if (inputCache != null)
+			blocks.setInputCache(inputCache << 20);
+		BlockClaims claims = new BlockClaims(n5.toPath(), leaseTimeout,
+			TimeUnit.SECONDS);
+		long renewPeriod = Math.max(1, claims.leaseTimeoutMillis() / 4);
+		ScheduledExecutorService heartbeat = Executors
+			.newSingleThreadScheduledExecutor();
+		heartbeat.scheduleAtFixedRate(claims::renewLeases, renewPeriod,
+			renewPeriod, TimeUnit.MILLISECONDS);
+		try (TaskExecutor taskExecutor = BlockSegmentation.createTaskExecutor(
+			use_gpu))
+		{
+			StopWatch watch = StopWatch.createAndStart();
+			processUnclaimedBlocks(blocks, claims, taskExecutor);
+			processRemainingBlocks(blocks, claims, taskExecutor, renewPeriod);
+			System.out.println("Time elapsed: " + watch);
+		}
+		finally {
+			heartbeat.shutdownNow();
+		}
+		return Optional.of(0); // exit code 0
+	}
+
+	/**
+	 * Each thread claims and segments blocks, until all blocks are claimed.
+	 */
+	private static void processUnclaimedBlocks(BlockSegmentation blocks,
+		BlockClaims claims, TaskExecutor taskExecutor)
+	{
+		AtomicInteger next = new AtomicInteger(0);
+		List<Integer> order = blocks.blockOrder();
+		taskExecutor.forEach(new IntRange(0, taskExecutor.getParallelism()),
+			ignore -> {
+				for (int n = next.getAndIncrement(); n < order.size(); n = next
+					.getAndIncrement())
+				{
+					int i = order.get(n);
+					if (claims.tryClaim(i))
+						process(blocks, claims, i);
+				}
+			});
+	}
+
+	/**
+	 * Waits for the blocks that are claimed by other workers. Takes over the
+	 * blocks whose claims become stale. A block that is logged as finished, but
+	 * whose block file is missing or incomplete, is segmented again: the block
+	 * file wins over the log.
+	 */
+	private static void processRemainingBlocks(BlockSegmentation blocks,
+		BlockClaims claims, TaskExecutor taskExecutor, long pollingPeriod)
+		throws InterruptedException
+	{
+		List<Integer> remaining = blocks.missingBlocks(blocks.blockOrder(),
+			taskExecutor);
+		while (true) {
+			taskExecutor.forEach(remaining, i -> {
+				claims.forgetFinished(i);
+				if (claims.tryClaim(i))
+					process(blocks, claims, i);
+			});
+			blocks.refreshEmptyBlocks();
+			remaining = remaining.stream().filter(i -> !blocks.isBlockComplete(i))
+				.collect(Collectors.toList());
+			if (remaining.isEmpty())
+				return;
+			System.out.println("Waiting for " + remaining.size() +
+				" blocks, that are processed by other workers.");
+			Thread.sleep(pollingPeriod);
+		}
+	}
+
+	private static void process(BlockSegmentation blocks, BlockClaims claims,
+		int i)
+	{
+		try {
+			if (!blocks.isBlockComplete(i)) {
+				blocks.segmentBlock(i);
+				System.out.println("Block " + i + " of " + blocks.numberOfBlocks() +
+					" has been segmented. Block coordinates: " + Arrays.toString(blocks
+						.blockOffset(i)));
+			}
+			claims.finish(i);
+		}
+		catch (IOException e) {
+			claims.release(i);
+			throw new RuntimeException(e);
+		}
+		catch (RuntimeException e) {
+			claims.release(i);
+			throw e;
+		}
+	}
+}
@@ -0,0 +1,320 @@
+package sc.fiji.labkit.cli;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.janelia.saalfeldlab.n5.ByteArrayDataBlock;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.IntArrayDataBlock;
+import org.janelia.saalfeldlab.n5.LongArrayDataBlock;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.ShortArrayDataBlock;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Downsampled resolution levels of the segmentation in a N5 folder.
+ * <p>
+ * Level zero is the {@link PrepareCommand#N5_DATASET_NAME segmentation}
+ * dataset itself. Level n is stored in the dataset "segmentation-pyramid/sn"
+ * and is computed from level n-1, by downsampling with a factor of two. The
+ * value of a downsampled pixel is the most frequent label (mode) of the
+ * corresponding pixels, such that no new labels are introduced. Only the
+ * spatial axes are downsampled, as stored by "prepare", see
+ * {@link PrepareCommand#spatialAxes}.
+ * <p>
+ * Each level has the same block size, data type, compression and fill value
+ * as the segmentation. The blocks of a level can be computed in parallel and
+ * on different cluster nodes, but a level requires the previous level to be
+ * complete. The downsampling factors of a level, relative to level zero, are
+ * stored in the "downsamplingFactors" attribute, as used by the n5-viewer.
+ */
+class SegmentationPyramid {
+
+	static final String GROUP = "segmentation-pyramid";
+
+	static final String DOWNSAMPLING_FACTORS_ATTRIBUTE = "downsamplingFactors";
+
+	private final String n5;
+
+	private final N5Writer writer;
+
+	private final DatasetAttributes segmentationAttributes;
+
+	private final boolean[] downsampled;
+
+	SegmentationPyramid(String n5) throws IOException {
+		this.n5 = n5;
+		this.writer = new N5FSWriter(n5);
+		this.segmentationAttributes = writer.getDatasetAttributes(
+			PrepareCommand.N5_DATASET_NAME);
+		this.downsampled = PrepareCommand.spatialAxes(writer,
+			PrepareCommand.N5_DATASET_NAME);
+	}
+
+	static String dataset(int level) {
+		return level == 0 ? PrepareCommand.N5_DATASET_NAME : GROUP + "/s" + level;
+	}
+
+	/**
+	 * Returns the number of levels, including level zero, that are needed
+	 * until a level fits into a single block.
+	 */
+	int defaultNumberOfLevels() {
+		int[] blockSize = segmentationAttributes.getBlockSize();
+		int levels = 1;
+		while (!fitsIntoOneBlock(dimensions(levels - 1), blockSize))
+			levels++;
+		return levels;
+	}
+
+	private boolean fitsIntoOneBlock(long[] dimensions, int[] blockSize) {
+		for (int d = 0; d < dimensions.length; d++)
+			if (downsampled[d] && dimensions[d] > blockSize[d])
+				return false;
+		return true;
+	}
+
+	long[] dimensions(int level) {
+		long[] dimensions = segmentationAttributes.getDimensions().clone();
+		for (int d = 0; d < dimensions.length; d++)
+			if (downsampled[d])
+				dimensions[d] = Math.max(1, (dimensions[d] + (1L << level) - 1) >> level);
+		return dimensions;
+	}
+
+	long[] downsamplingFactors(int level) {
+		long[] factors = new long[downsampled.length];
+		for (int d = 0; d < factors.length; d++)
+			factors[d] = downsampled[d] ? 1L << level : 1;
+		return factors;
+	}
+
+	/**
+	 * Creates the dataset for the given level, if it doesn't exist yet.
+	 */
+	void createLevel(int level) throws IOException {
+		String dataset = dataset(level);
+		if (writer.datasetExists(dataset))
+			return;
+		writer.createDataset(dataset, dimensions(level), segmentationAttributes
+			.getBlockSize(), segmentationAttributes.getDataType(),
+			segmentationAttributes.getCompression());
+		writer.setAttribute(dataset, DOWNSAMPLING_FACTORS_ATTRIBUTE,
+			downsamplingFactors(level));
+		Long fillValue = PrepareCommand.fillValue(writer);
+		if (fillValue != null)
+			writer.setAttribute(dataset, PrepareCommand.FILL_VALUE_ATTRIBUTE,
+				fillValue);
+		String[] axes = writer.getAttribute(PrepareCommand.N5_DATASET_NAME,
+			PrepareCommand.AXES_ATTRIBUTE, String[].class);
+		if (axes != null)
+			writer.setAttribute(dataset, PrepareCommand.AXES_ATTRIBUTE, axes);
+	}
+
+	int numberOfBlocks(int level) {
+		return (int) Intervals.numElements(grid(level).getGridDimensions());
+	}
+
+	long[] blockOffset(int level, int index) {
+		long[] gridDimensions = grid(level).getGridDimensions();
+		long[] blockOffset = new long[gridDimensions.length];
+		IntervalIndexer.indexToPosition(index, gridDimensions, blockOffset);
+		return blockOffset;
+	}
+
+	private CellGrid grid(int level) {
+		return new CellGrid(dimensions(level), segmentationAttributes
+			.getBlockSize());
+	}
+
+	/**
+	 * Opens the level that is the source for computing the given level.
+	 */
+	RandomAccessibleInterval<? extends IntegerType<?>> openSource(int level)
+		throws IOException
+	{
+		return PrepareCommand.openLabels(writer, dataset(level - 1));
+	}
+
+	/**
+	 * Computes the block with the given index of the given level, from the
+	 * previous level. In a sparse dataset, blocks that only contain the fill
+	 * value are not written.
+	 */
+	void downsampleBlock(int level, int index,
+		RandomAccessibleInterval<? extends IntegerType<?>> source)
+		throws IOException
+	{
+		long[] gridPosition = blockOffset(level, index);
+		CellGrid grid = grid(level);
+		int n = gridPosition.length;
+		long[] min = new long[n];
+		int[] size = new int[n];
+		grid.getCellDimensions(gridPosition, min, size);
+		long[] sourceMin = new long[n];
+		long[] sourceMax = new long[n];
+		int[] factors = new int[n];
+		for (int d = 0; d < n; d++) {
+			factors[d] = downsampled[d] ? 2 : 1;
+			sourceMin[d] = min[d] * factors[d];
+			sourceMax[d] = Math.min(source.max(d), (min[d] + size[d]) * factors[d] -
+				1);
+		}
+		FinalInterval sourceInterval = new FinalInterval(sourceMin, sourceMax);
+		int[] sourceSize = Intervals.dimensionsAsIntArray(sourceInterval);
+		long[] values = new long[(int) Intervals.numElements(sourceInterval)];
+		Cursor<? extends IntegerType<?>> cursor = Views.flatIterable(Views
+			.interval(source, sourceInterval)).cursor();
+		for (int i = 0; i < values.length; i++)
+			values[i] = cursor.next().getIntegerLong();
+		long[] modes = modes(values, sourceSize, size, factors);
+		DatasetAttributes attributes = writer.getDatasetAttributes(dataset(level));
+		Long fillValue = PrepareCommand.fillValue(writer, dataset(level));
+		if (fillValue != null && isUniform(modes, fillValue)) {
+			// remove the block, in case it was written by a previous run
+			Files.deleteIfExists(N5BlockFiles.blockPath(n5, dataset(level),
+				gridPosition));
+			return;
+		}
+		writer.writeBlock(dataset(level), attributes, toDataBlock(attributes,
+			size, gridPosition, modes));
+	}
+
+	/**
+	 * Returns the most frequent value of each cell of the given factors. Cells
+	 * at the border of the image may be smaller. If two values are equally
+	 * frequent, the smaller one is used.
+	 */
+	static long[] modes(long[] values, int[] sourceSize, int[] size,
+		int[] factors)
+	{
+		int n = size.length;
+		int[] strides = new int[n];
+		int stride = 1;
+		for (int d = 0; d < n; d++) {
+			strides[d] = stride;
+			stride *= sourceSize[d];
+		}
+		int cellSize = 1;
+		for (int factor : factors)
+			cellSize *= factor;
+		long[] cell = new long[cellSize];
+		long[] modes = new long[(int) Intervals.numElements(size)];
+		int[] position = new int[n];
+		int[] offset = new int[n];
+		for (int o = 0; o < modes.length; o++) {
+			IntervalIndexer.indexToPosition(o, size, position);
+			int count = 0;
+			for (int c = 0; c < cellSize; c++) {
+				IntervalIndexer.indexToPosition(c, factors, offset);
+				int index = 0;
+				boolean inside = true;
+				for (int d = 0; d < n; d++) {
+					int x = position[d] * factors[d] + offset[d];
+					if (x >= sourceSize[d]) {
+						inside = false;
+						break;
+					}
+					index += x * strides[d];
+				}
+				if (inside)
+					cell[count++] = values[index];
+			}
+			modes[o] = mode(cell, count);
+		}
+		return modes;
+	}
+
+	private static long mode(long[] values, int count) {
+		Arrays.sort(values, 0, count);
+		long mode = values[0];
+		int modeCount = 0;
+		for (int i = 0; i < count;) {
+			int j = i;
+			while (j < count && values[j] == values[i])
+				j++;
+			if (j - i > modeCount) {
+				mode = values[i];
+				modeCount = j - i;
+			}
+			i = j;
+		}
+		return mode;
+	}
+
+	private static boolean isUniform(long[] values, long value) {
+		for (long v : values)
+			if (v != value)
+				return false;
+		return true;
+	}
+
+	private static DataBlock<?> toDataBlock(DatasetAttributes attributes,
+		int[] size, long[] gridPosition, long[] values)
+	{
+		switch (attributes.getDataType()) {
+			case UINT8: {
+				byte[] data = new byte[values.length];
+				for (int i = 0; i < values.length; i++)
+					data[i] = (byte) values[i];
+				return new ByteArrayDataBlock(size, gridPosition, data);
+			}
+			case UINT16: {
+				short[] data = new short[values.length];
+				for (int i = 0; i < values.length; i++)
+					data[i] = (short) values[i];
+				return new ShortArrayDataBlock(size, gridPosition, data);
+			}
+			case UINT32: {
+				int[] data = new int[values.length];
+				for (int i = 0; i < values.length; i++)
+					data[i] = (int) values[i];
+				return new IntArrayDataBlock(size, gridPosition, data);
+			}
+			case UINT64:
+				return new LongArrayDataBlock(size, gridPosition, values);
+			default:
+				throw new UnsupportedOperationException(
+					"Unsupported data type of the segmentation dataset: " + attributes
+						.getDataType());
+		}
+	}
+
+	/**
+	 * Opens all existing levels, starting with level zero, and returns them
+	 * together with their downsampling factors.
+	 */
+	static List<RandomAccessibleInterval<? extends IntegerType<?>>> openLevels(
+		N5Reader reader, List<long[]> downsamplingFactors) throws IOException
+	{
+		List<RandomAccessibleInterval<? extends IntegerType<?>>> levels =
+			new ArrayList<>();
+		levels.add(PrepareCommand.openSegmentation(reader));
+		downsamplingFactors.add(ones(levels.get(0).numDimensions()));
+		for (int level = 1; reader.datasetExists(dataset(level)); level++) {
+			levels.add(PrepareCommand.openLabels(reader, dataset(level)));
+			downsamplingFactors.add(reader.getAttribute(dataset(level),
+				DOWNSAMPLING_FACTORS_ATTRIBUTE, long[].class));
+		}
+		return levels;
+	}
+
+	private static long[] ones(int n) {
+		long[] ones = new long[n];
+		Arrays.fill(ones, 1);
+		return ones;
+	}
+}
@@ -0,0 +1,120 @@
+package sc.fiji.labkit.cli;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.util.Cast;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the blocks segmented by "segment-all" in memory, up to a size limit.
+ * The HDF5 export reads these blocks from memory, instead of reading back and
+ * decompressing them from the N5 dataset. Blocks that were segmented by a
+ * previous run, or didn't fit into the limit, are read from the N5 dataset.
+ * <p>
+ * The N5 dataset is still written, it is the checkpoint to continue an
+ * interrupted run.
+ */
+class SegmentedBlocks {
+
+	private final CellGrid grid;
+
+	private final long maxBytes;
+
+	private final Map<Integer, byte[]> blocks = new ConcurrentHashMap<>();
+
+	private final AtomicLong bytes = new AtomicLong();
+
+	private final AtomicLong blocksFromMemory = new AtomicLong();
+
+	private final AtomicLong blocksFromN5 = new AtomicLong();
+
+	private final AtomicLong n5Nanos = new AtomicLong();
+
+	/**
+	 * @param grid Block grid of the N5 dataset.
+	 * @param maxBytes Memory used to keep segmented blocks.
+	 */
+	SegmentedBlocks(CellGrid grid, long maxBytes) {
+		this.grid = grid;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Keeps a copy of the pixels of the segmented block, if it fits into the
+	 * size limit.
+	 *
+	 * @param length Number of pixels of the block, the buffer may be larger.
+	 */
+	void offer(int index, byte[] pixels, int length) {
+		if (bytes.addAndGet(length) > maxBytes) {
+			bytes.addAndGet(-length);
+			return;
+		}
+		blocks.put(index, Arrays.copyOf(pixels, length));
+	}
+
+	/**
+	 * Returns an image with the same content as the given N5 image, whose cells
+	 * are taken from memory where possible.
+	 */
+	RandomAccessibleInterval<? extends IntegerType<?>> wrap(
+		RandomAccessibleInterval<? extends IntegerType<?>> n5Image)
+	{
+		return wrapNative(Cast.unchecked(n5Image));
+	}
+
+	private <T extends IntegerType<T> & NativeType<T>>
+		RandomAccessibleInterval<T> wrapNative(RandomAccessibleInterval<T> n5Image)
+	{
+		int[] cellDimensions = new int[grid.numDimensions()];
+		grid.cellDimensions(cellDimensions);
+		long[] gridDimensions = grid.getGridDimensions();
+		ReadOnlyCachedCellImgOptions options = ReadOnlyCachedCellImgOptions
+			.options().cellDimensions(cellDimensions);
+		T type = Util.getTypeFromInterval(n5Image).createVariable();
+		return new ReadOnlyCachedCellImgFactory(options).create(grid
+			.getImgDimensions(), type, cell -> {
+				long[] gridPosition = new long[cell.numDimensions()];
+				for (int d = 0; d < gridPosition.length; d++)
+					gridPosition[d] = cell.min(d) / cellDimensions[d];
+				byte[] pixels = blocks.get((int) IntervalIndexer.positionToIndex(
+					gridPosition, gridDimensions));
+				if (pixels != null) {
+					Cursor<T> cursor = cell.cursor();
+					for (byte pixel : pixels)
+						cursor.next().setInteger(pixel & 0xff);
+					blocksFromMemory.incrementAndGet();
+					return;
+				}
+				long start = System.nanoTime();
+				LoopBuilder.setImages(Views.interval(n5Image, cell), cell)
+					.forEachPixel((i, o) -> o.set(i));
+				n5Nanos.addAndGet(System.nanoTime() - start);
+				blocksFromN5.incrementAndGet();
+			});
+	}
+
+	/**
+	 * Returns how many blocks were read from memory, and how many, and how
+	 * long, from the N5 dataset.
+	 */
+	String summary() {
+		return String.format(Locale.ROOT,
+			"Blocks read from memory: %d, read back from the N5 dataset: %d in %.1f s%n",
+			blocksFromMemory.get(), blocksFromN5.get(), n5Nanos.get() * 1e-9);
+	}
+}
@@ -0,0 +1,218 @@
+package sc.fiji.labkit.cli;
+
+import net.imagej.ImgPlus;
+import net.imglib2.parallel.TaskExecutor;
+import picocli.CommandLine;
+import sc.fiji.labkit.ui.inputimage.SpimDataInputImage;
+import sc.fiji.labkit.ui.segmentation.Segmenter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class defines the "serve" sub command.
+ * <p>
+ * The command opens the image and the classifier once, and then processes
+ * segment-chunk jobs, that are submitted to a spool directory, until it is
+ * stopped. This avoids the start up costs (JVM, SciJava context, loading the
+ * classifier, opening the image) for every chunk.
+ * <p>
+ * A job is a properties file with the extension ".job", see
+ * {@link SubmitChunkCommand}. The server claims a job by renaming it to
+ * ".running". When the job is finished it is renamed to ".done", if it failed
+ * to ".failed" and the stack trace is appended. Creating a file named "stop"
+ * in the spool directory stops the server.
+ * <p>
+ * While running, the server regularly touches the file "heartbeat" in the
+ * spool directory. This allows submitters to detect a server that died.
+ */
+@CommandLine.Command(name = "serve",
+	description = "Keep the classifier and image loaded, and process segment-chunk jobs " +
+		"that are submitted to the spool directory using \"submit-chunk\".")
+public class ServeCommand implements Callable<Optional<Integer>> {
+
+	static final String JOB = ".job";
+
+	static final String RUNNING = ".running";
+
+	static final String DONE = ".done";
+
+	static final String FAILED = ".failed";
+
+	static final String STOP = "stop";
+
+	static final String HEARTBEAT = "heartbeat";
+
+	/**
+	 * Period, in which the heartbeat file is touched.
+	 */
+	static final long HEARTBEAT_MILLIS = 5000;
+
+	static final String N5_KEY = "n5";
+
+	static final String CHUNKS_KEY = "chunks";
+
+	static final String INDEX_KEY = "index";
+
+	static final String RESUME_KEY = "resume";
+
+	@CommandLine.Option(names = { "--image" }, required = true,
+		description = "Image to be segmented.")
+	private File imageXml;
+
+	@CommandLine.Option(names = { "--classifier" }, required = true,
+		description = "Classifier that was trained using the FIJI Labkit plugin.")
+	private File classifier;
+
+	@CommandLine.Option(names = { "--spool" }, required = true,
+		description = "Directory that is watched for new jobs.")
+	private File spool;
+
+	@CommandLine.Option(names = { "--use-gpu" })
+	private boolean use_gpu = false;
+
+	@CommandLine.Option(names = { "--poll-interval" }, paramLabel = "MILLISECONDS",
+		description = "Time to wait before checking the spool directory again. (default: 100)")
+	private long pollInterval = 100;
+
+	@Override
+	public Optional<Integer> call() throws Exception {
+		Path directory = spool.toPath();
+		Files.createDirectories(directory);
+		Files.deleteIfExists(directory.resolve(STOP));
+		SpimDataInputImage image = new SpimDataInputImage(imageXml
+			.getAbsolutePath(), 0);
+		ImgPlus<?> imgPlus = image.imageForSegmentation();
+		Segmenter segmenter = BlockSegmentation.openSegmenter(classifier, use_gpu);
+		System.out.println("Waiting for jobs in: " + directory);
+		Path heartbeatFile = directory.resolve(HEARTBEAT);
+		ScheduledExecutorService heartbeat = Executors
+			.newSingleThreadScheduledExecutor();
+		heartbeat.scheduleAtFixedRate(() -> touch(heartbeatFile), 0,
+			HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+		try (TaskExecutor taskExecutor = BlockSegmentation.createTaskExecutor(
+			use_gpu))
+		{
+			while (!Files.exists(directory.resolve(STOP))) {
+				Path job = claimNextJob(directory);
+				if (job == null)
+					Thread.sleep(pollInterval);
+				else
+					runJob(job, segmenter, imgPlus, taskExecutor);
+			}
+		}
+		finally {
+			heartbeat.shutdownNow();
+			Files.deleteIfExists(heartbeatFile);
+		}
+		return Optional.of(0); // exit code 0
+	}
+
+	private static void touch(Path file) {
+		try {
+			if (!Files.exists(file))
+				Files.createFile(file);
+			Files.setLastModifiedTime(file, FileTime.fromMillis(System
+				.currentTimeMillis()));
+		}
+		catch (IOException e) {
+			System.err.println("Failed to touch " + file + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Renames the oldest ".job" file to ".running" and returns the new path.
+	 * Returns null if there is no job. Renaming is atomic, therefore multiple
+	 * servers can share the same spool directory.
+	 */
+	private static Path claimNextJob(Path directory) throws IOException {
+		for (Path job : listJobs(directory)) {
+			Path running = replaceExtension(job, JOB, RUNNING);
+			try {
+				Files.move(job, running, StandardCopyOption.ATOMIC_MOVE);
+				return running;
+			}
+			catch (NoSuchFileException e) {
+				// claimed by another server
+			}
+		}
+		return null;
+	}
+
+	private static List<Path> listJobs(Path directory) throws IOException {
+		List<Path> jobs = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+			"*" + JOB))
+		{
+			stream.forEach(jobs::add);
+		}
+		Collections.sort(jobs);
+		return jobs;
+	}
+
+	/**
+	 * Runs the job and renames it to ".done" or ".failed". Errors, like an
+	 * {@link OutOfMemoryError}, also mark the job as failed, and are rethrown
+	 * afterwards, because the server might not be able to continue.
+	 */
+	private static void runJob(Path job, Segmenter segmenter, ImgPlus<?> image,
+		TaskExecutor taskExecutor) throws IOException
+	{
+		System.out.println("Start job: " + job.getFileName());
+		try {
+			Properties properties = new Properties();
+			try (InputStream in = Files.newInputStream(job)) {
+				properties.load(in);
+			}
+			String n5 = properties.getProperty(N5_KEY);
+			int chunks = Integer.parseInt(properties.getProperty(CHUNKS_KEY));
+			int index = Integer.parseInt(properties.getProperty(INDEX_KEY));
+			boolean resume = Boolean.parseBoolean(properties.getProperty(RESUME_KEY));
+			BlockSegmentation blocks = new BlockSegmentation(n5, segmenter, image);
+			SegmentChunkCommand.writeN5Range(blocks, index % chunks, chunks, resume,
+				BlockPipeline.defaults(), taskExecutor);
+			Files.move(job, replaceExtension(job, RUNNING, DONE),
+				StandardCopyOption.ATOMIC_MOVE);
+			System.out.println("Job done: " + job.getFileName());
+		}
+		catch (Throwable e) {
+			e.printStackTrace();
+			StringWriter stackTrace = new StringWriter();
+			e.printStackTrace(new PrintWriter(stackTrace));
+			Files.write(job, ("\n# " + stackTrace.toString().replace("\n", "\n# "))
+				.getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+			Files.move(job, replaceExtension(job, RUNNING, FAILED),
+				StandardCopyOption.ATOMIC_MOVE);
+			if (e instanceof Error)
+				throw (Error) e;
+		}
+	}
+
+	static Path replaceExtension(Path file, String oldExtension,
+		String newExtension)
+	{
+		String name = file.getFileName().toString();
+		return file.resolveSibling(name.substring(0, name.length() - oldExtension
+			.length()) + newExtension);
+	}
+}
@@ -1,21 +1,30 @@
-
 package sc.fiji.labkit.cli;
 
 import bdv.util.BdvFunctions;
+import bdv.util.RandomAccessibleIntervalMipmapSource;
+import mpicbg.spim.data.sequence.FinalVoxelDimensions;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.NumericType;
+import net.imglib2.util.Cast;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
 import org.janelia.saalfeldlab.n5.N5FSReader;
-import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 import picocli.CommandLine;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.Callable;
 
 /**
  * This class defines the "show" sub command.
  * <p>
- * Uses BigDataViewer to show the content of the given N5 dataset.
+ * Uses BigDataViewer to show the content of the given N5 dataset. If the
+ * resolution levels of the {@link SegmentationPyramid} have been computed,
+ * they are shown as multi resolution source, which makes navigating large
+ * datasets fast.
  */
 @CommandLine.Command(name = "show",
 	description = "Show the segmentation stored in the N5 folder using Big Data Viewer.")
@@ -29,10 +38,40 @@ public class ShowCommand implements Callable<Optional<Integer>> {
 	@Override
 	public Optional<Integer> call() throws Exception {
 		N5FSReader reader = new N5FSReader(n5.getAbsolutePath());
-		RandomAccessibleInterval<UnsignedByteType> result = N5Utils.open(reader,
-			PrepareCommand.N5_DATASET_NAME, new UnsignedByteType());
-		BdvFunctions.show(result, "N5").setDisplayRange(0, 5);
+		List<long[]> factors = new ArrayList<>();
+		List<RandomAccessibleInterval<? extends IntegerType<?>>> levels =
+			SegmentationPyramid.openLevels(reader, factors);
+		RandomAccessibleInterval<? extends IntegerType<?>> result = levels.get(0);
+		if (levels.size() > 1 && (result.numDimensions() == 2 || result
+			.numDimensions() == 3))
+			BdvFunctions.show(mipmapSource(Cast.unchecked(levels), factors))
+				.setDisplayRange(0, 5);
+		else
+			BdvFunctions.show(result, "N5").setDisplayRange(0, 5);
 		return Optional.empty(); // No exit code, because System exit should not be
 		// called
 	}
+
+	/**
+	 * BigDataViewer multi resolution sources are three dimensional, 2D levels
+	 * get an additional axis of size one.
+	 */
+	private static <T extends NumericType<T>> RandomAccessibleIntervalMipmapSource<T>
+		mipmapSource(List<RandomAccessibleInterval<T>> levels, List<long[]> factors)
+	{
+		@SuppressWarnings("unchecked")
+		RandomAccessibleInterval<T>[] images = new RandomAccessibleInterval[levels
+			.size()];
+		double[][] scales = new double[levels.size()][3];
+		for (int l = 0; l < images.length; l++) {
+			RandomAccessibleInterval<T> image = levels.get(l);
+			images[l] = image.numDimensions() == 3 ? image : Views.addDimension(image,
+				0, 0);
+			for (int d = 0; d < 3; d++)
+				scales[l][d] = d < factors.get(l).length ? factors.get(l)[d] : 1;
+		}
+		T type = Util.getTypeFromInterval(images[0]).createVariable();
+		return new RandomAccessibleIntervalMipmapSource<>(images, type, scales,
+			new FinalVoxelDimensions("pixel", 1, 1, 1), "N5");
+	}
 }
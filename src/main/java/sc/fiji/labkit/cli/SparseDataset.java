@@ -0,0 +1,134 @@
+package sc.fiji.labkit.cli;
+
+import net.imglib2.cache.Cache;
+import net.imglib2.cache.CacheLoader;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.ref.SoftRefLoaderCache;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.img.basictypeaccess.array.IntArray;
+import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedLongType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Reader;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+/**
+ * Opens a sparse N5 dataset, see {@link PrepareCommand#FILL_VALUE_ATTRIBUTE},
+ * for reading.
+ * <p>
+ * Absent blocks are neither read nor decompressed. They become constant
+ * cells, and all constant cells of the same size share a single array, that
+ * is filled with the fill value. A sparse segmentation therefore only uses
+ * memory for the blocks that were actually written. The returned image must
+ * not be modified.
+ */
+class SparseDataset {
+
+	private SparseDataset() {
+		// prevent from instantiation
+	}
+
+	static CachedCellImg<? extends IntegerType<?>, ?> open(N5Reader reader,
+		String dataset, long fillValue) throws IOException
+	{
+		DatasetAttributes attributes = reader.getDatasetAttributes(dataset);
+		switch (attributes.getDataType()) {
+			case UINT8:
+				return open(reader, dataset, attributes, new UnsignedByteType(),
+					new ByteArray(0), size -> {
+						byte[] values = new byte[size];
+						Arrays.fill(values, (byte) fillValue);
+						return new ByteArray(values);
+					}, data -> new ByteArray((byte[]) data));
+			case UINT16:
+				return open(reader, dataset, attributes, new UnsignedShortType(),
+					new ShortArray(0), size -> {
+						short[] values = new short[size];
+						Arrays.fill(values, (short) fillValue);
+						return new ShortArray(values);
+					}, data -> new ShortArray((short[]) data));
+			case UINT32:
+				return open(reader, dataset, attributes, new UnsignedIntType(),
+					new IntArray(0), size -> {
+						int[] values = new int[size];
+						Arrays.fill(values, (int) fillValue);
+						return new IntArray(values);
+					}, data -> new IntArray((int[]) data));
+			case UINT64:
+				return open(reader, dataset, attributes, new UnsignedLongType(),
+					new LongArray(0), size -> {
+						long[] values = new long[size];
+						Arrays.fill(values, fillValue);
+						return new LongArray(values);
+					}, data -> new LongArray((long[]) data));
+			default:
+				throw new UnsupportedOperationException(
+					"Unsupported data type of a sparse dataset: " + attributes
+						.getDataType());
+		}
+	}
+
+	private static <T extends NativeType<T>, A> CachedCellImg<T, A> open(
+		N5Reader reader, String dataset, DatasetAttributes attributes, T type,
+		A accessType, IntFunction<A> constant, Function<Object, A> wrap)
+	{
+		CellGrid grid = new CellGrid(attributes.getDimensions(), attributes
+			.getBlockSize());
+		Map<Integer, A> constants = new ConcurrentHashMap<>();
+		CacheLoader<Long, Cell<A>> loader = index -> {
+			int n = grid.numDimensions();
+			long[] cellMin = new long[n];
+			int[] cellDims = new int[n];
+			grid.getCellDimensions(index, cellMin, cellDims);
+			long[] gridPosition = new long[n];
+			grid.getCellGridPositionFlat(index, gridPosition);
+			DataBlock<?> block = reader.readBlock(dataset, attributes, gridPosition);
+			A data = block == null ? constants.computeIfAbsent((int) Intervals
+				.numElements(cellDims), constant::apply) : wrap.apply(crop(block,
+					cellDims));
+			return new Cell<>(cellDims, cellMin, data);
+		};
+		Cache<Long, Cell<A>> cache = new SoftRefLoaderCache<Long, Cell<A>>()
+			.withLoader(loader);
+		return new CachedCellImg<>(grid, type, cache, accessType);
+	}
+
+	/**
+	 * Blocks at the border of the dataset may be stored with the full block
+	 * size. Returns the pixels that lie within the cell.
+	 */
+	private static Object crop(DataBlock<?> block, int[] cellDims) {
+		Object data = block.getData();
+		int[] size = block.getSize();
+		if (Arrays.equals(size, cellDims))
+			return data;
+		int length = (int) Intervals.numElements(cellDims);
+		Object cropped = Array.newInstance(data.getClass().getComponentType(),
+			length);
+		int[] position = new int[cellDims.length];
+		for (int i = 0; i < length; i += cellDims[0]) {
+			IntervalIndexer.indexToPosition(i, cellDims, position);
+			System.arraycopy(data, IntervalIndexer.positionToIndex(position, size),
+				cropped, i, cellDims[0]);
+		}
+		return cropped;
+	}
+}
@@ -0,0 +1,143 @@
+package sc.fiji.labkit.cli;
+
+import picocli.CommandLine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class defines the "submit-chunk" sub command.
+ * <p>
+ * Submits a segment-chunk job to the spool directory of a running
+ * {@link ServeCommand server}, and waits for the job to be finished. The exit
+ * code is zero if the job succeeded. This command doesn't load the image or
+ * the classifier and therefore starts quickly.
+ * <p>
+ * The command gives up with a non-zero exit code, if the server's heartbeat
+ * stops for longer than --server-timeout, or if the job takes longer than
+ * --timeout. A job that was not yet picked up by a server, is withdrawn.
+ */
+@CommandLine.Command(name = "submit-chunk",
+	description = "Submit a segment-chunk job to a server, that was started with the \"serve\" sub command, " +
+		"and wait for it to finish.")
+public class SubmitChunkCommand implements Callable<Optional<Integer>> {
+
+	@CommandLine.Option(names = { "--spool" }, required = true,
+		description = "Spool directory of the server.")
+	private File spool;
+
+	@CommandLine.Option(names = { "--n5" }, required = true,
+		description = "N5 folder that was created using the \"prepare\" sub command.")
+	private File n5;
+
+	@CommandLine.Option(names = { "--chunks" }, required = true,
+		paramLabel = "NUMBER_OF_CHUNKS",
+		description = "The segmentation task will be divided into the given number of chunks.")
+	private int number_of_chunks;
+
+	@CommandLine.Option(names = { "--index" }, required = true,
+		paramLabel = "CHUNK_INDEX",
+		description = "Index, of the chunk to be processed. Integer value greater or equal to zero, but smaller than the number of chunks.")
+	private int index;
+
+	@CommandLine.Option(names = { "--resume" },
+		description = "Skip the blocks of the chunk that are already completely written to the N5 folder.")
+	private boolean resume = false;
+
+	@CommandLine.Option(names = { "--poll-interval" }, paramLabel = "MILLISECONDS",
+		description = "Time to wait before checking again if the job is finished. (default: 100)")
+	private long pollInterval = 100;
+
+	@CommandLine.Option(names = { "--server-timeout" }, paramLabel = "SECONDS",
+		description = "Give up, if no server was alive in the spool directory for the given time. " +
+			"A server touches the file \"" + ServeCommand.HEARTBEAT + "\" every few seconds. (default: 60)")
+	private long serverTimeout = 60;
+
+	@CommandLine.Option(names = { "--timeout" }, paramLabel = "SECONDS",
+		description = "Give up, if the job isn't finished after the given time. (default: no limit)")
+	private Long timeout = null;
+
+	@Override
+	public Optional<Integer> call() throws Exception {
+		Path directory = spool.toPath();
+		String name = "chunk-" + index + "-of-" + number_of_chunks + "-" + UUID
+			.randomUUID();
+		Path job = directory.resolve(name + ServeCommand.JOB);
+		writeJob(directory.resolve(name + ".tmp"), job);
+		Path done = ServeCommand.replaceExtension(job, ServeCommand.JOB,
+			ServeCommand.DONE);
+		Path failed = ServeCommand.replaceExtension(job, ServeCommand.JOB,
+			ServeCommand.FAILED);
+		Path heartbeat = directory.resolve(ServeCommand.HEARTBEAT);
+		long start = System.currentTimeMillis();
+		while (true) {
+			if (Files.exists(done)) {
+				Files.delete(done);
+				return Optional.of(0);
+			}
+			if (Files.exists(failed)) {
+				System.err.println("Job failed, see: " + failed);
+				return Optional.of(1);
+			}
+			long now = System.currentTimeMillis();
+			long lastSignOfLife = Math.max(start, lastModified(heartbeat));
+			if (now - lastSignOfLife > TimeUnit.SECONDS.toMillis(serverTimeout)) {
+				System.err.println("No server is running in the spool directory: " +
+					directory);
+				return giveUp(job);
+			}
+			if (timeout != null && now - start > TimeUnit.SECONDS.toMillis(
+				timeout))
+			{
+				System.err.println("The job didn't finish within " + timeout +
+					" seconds.");
+				return giveUp(job);
+			}
+			Thread.sleep(pollInterval);
+		}
+	}
+
+	private static long lastModified(Path file) throws IOException {
+		try {
+			return Files.getLastModifiedTime(file).toMillis();
+		}
+		catch (NoSuchFileException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Withdraws the job, if it is not yet picked up by a server.
+	 */
+	private static Optional<Integer> giveUp(Path job) throws IOException {
+		Files.deleteIfExists(job);
+		return Optional.of(1);
+	}
+
+	/**
+	 * Writes the job to a temporary file, and renames it afterwards. This way
+	 * the server never sees an incomplete job file.
+	 */
+	private void writeJob(Path tmp, Path job) throws IOException {
+		Properties properties = new Properties();
+		properties.setProperty(ServeCommand.N5_KEY, n5.getAbsolutePath());
+		properties.setProperty(ServeCommand.CHUNKS_KEY, Integer.toString(
+			number_of_chunks));
+		properties.setProperty(ServeCommand.INDEX_KEY, Integer.toString(index));
+		properties.setProperty(ServeCommand.RESUME_KEY, Boolean.toString(resume));
+		try (OutputStream out = Files.newOutputStream(tmp)) {
+			properties.store(out, "segment-chunk job");
+		}
+		Files.move(tmp, job, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
@@ -0,0 +1,542 @@
+package sc.fiji.labkit.cli;
+
+import io.scif.FormatException;
+import io.scif.codec.CodecOptions;
+import io.scif.codec.LZWCodec;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+/**
+ * Writes an integer image as compressed, multi page TIFF file.
+ * <p>
+ * The image is written plane by plane and strip by strip. The strips are read
+ * and compressed concurrently, and written to the {@link FileChannel} in
+ * order, followed by the IFD of the plane. Only a few strips are kept in
+ * memory at a time. The pixels are read in roughly the order they are
+ * written, this allows to write lazily computed images.
+ * <p>
+ * Dimensions beyond X and Y are written as pages, in the order of an ImageJ
+ * hyperstack: channels, slices, frames. The ImageJ style image description
+ * contains their numbers. BigTIFF is used if the image is too large for a
+ * classic TIFF file.
+ */
+class TiffWriter {
+
+	private static final int STRIP_BYTES = 1 << 18;
+
+	private static final long BIG_TIFF_THRESHOLD = Integer.MAX_VALUE;
+
+	private static final short SHORT = 3;
+
+	private static final short LONG = 4;
+
+	private static final short ASCII = 2;
+
+	private static final short LONG8 = 16;
+
+	private final FileChannel channel;
+
+	private final boolean bigTiff;
+
+	private final Compression compression;
+
+	private final int numberOfThreads;
+
+	private long position;
+
+	private long nextIfdPointer;
+
+	private TiffWriter(FileChannel channel, boolean bigTiff,
+		Compression compression, int numberOfThreads)
+	{
+		this.channel = channel;
+		this.bigTiff = bigTiff;
+		this.compression = compression;
+		this.numberOfThreads = numberOfThreads;
+	}
+
+	/**
+	 * Writes the image LZW compressed, using as many threads as there are
+	 * processors.
+	 */
+	static <T extends IntegerType<T>> void write(
+		RandomAccessibleInterval<T> image, Path file) throws IOException
+	{
+		write(image, file, Compression.LZW, Runtime.getRuntime()
+			.availableProcessors());
+	}
+
+	/**
+	 * Same as {@link #write(RandomAccessibleInterval, List, Path, Compression,
+	 * int)}, the axes are taken from the image if it is an {@link ImgPlus}.
+	 * Otherwise the axes are X, Y, Z, time.
+	 */
+	static <T extends IntegerType<T>> void write(
+		RandomAccessibleInterval<T> image, Path file, Compression compression,
+		int numberOfThreads) throws IOException
+	{
+		write(image, axes(image), file, compression, numberOfThreads);
+	}
+
+	/**
+	 * @param axes Axis types of the image. The first two axes are written as
+	 *          X and Y. Axes other than channel and time are written as slices.
+	 * @param compression Compression used for the strips.
+	 * @param numberOfThreads Number of threads that read and compress strips.
+	 */
+	static <T extends IntegerType<T>> void write(
+		RandomAccessibleInterval<T> image, List<AxisType> axes, Path file,
+		Compression compression, int numberOfThreads) throws IOException
+	{
+		if (image.numDimensions() < 2 || image.numDimensions() > 5)
+			throw new IllegalArgumentException(
+				"Only images with two to five dimensions can be written as TIFF.");
+		if (axes.size() != image.numDimensions())
+			throw new IllegalArgumentException("Expected " + image.numDimensions() +
+				" axes, but got: " + axes);
+		long[] pages = new long[3];
+		image = hyperstackOrder(image, axes, pages);
+		String description = image.numDimensions() > 2 ? imageJDescription(pages)
+			: null;
+		int bytesPerPixel = bytesPerPixel(Util.getTypeFromInterval(image));
+		boolean bigTiff = Intervals.numElements(image) *
+			bytesPerPixel > BIG_TIFF_THRESHOLD;
+		try (FileChannel channel = FileChannel.open(file,
+			StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+			StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			TiffWriter writer = new TiffWriter(channel, bigTiff, compression, Math
+				.max(1, numberOfThreads));
+			writer.writeHeader();
+			writer.writePlanes(image, bytesPerPixel, description);
+		}
+	}
+
+	private static List<AxisType> axes(RandomAccessibleInterval<?> image) {
+		List<AxisType> axes = new ArrayList<>();
+		if (image instanceof ImgPlus) {
+			ImgPlus<?> imgPlus = (ImgPlus<?>) image;
+			for (int d = 0; d < imgPlus.numDimensions(); d++)
+				axes.add(imgPlus.axis(d).type());
+			return axes;
+		}
+		List<AxisType> defaults = image.numDimensions() == 5 ? Arrays.asList(
+			Axes.X, Axes.Y, Axes.CHANNEL, Axes.Z, Axes.TIME) : Arrays.asList(Axes.X,
+				Axes.Y, Axes.Z, Axes.TIME);
+		return new ArrayList<>(defaults.subList(0, Math.min(defaults.size(), image
+			.numDimensions())));
+	}
+
+	/**
+	 * Moves the axes beyond X and Y into the order channel, slice, frame.
+	 *
+	 * @param pages Is set to the number of channels, slices and frames.
+	 */
+	private static <T> RandomAccessibleInterval<T> hyperstackOrder(
+		RandomAccessibleInterval<T> image, List<AxisType> axes, long[] pages)
+	{
+		Arrays.fill(pages, 1);
+		int[] source = { -1, -1, -1 };
+		for (int d = 2; d < axes.size(); d++) {
+			AxisType type = axes.get(d);
+			int page = type == Axes.CHANNEL ? 0 : type == Axes.TIME ? 2 : 1;
+			if (source[page] >= 0)
+				throw new IllegalArgumentException(
+					"The axes can't be written as ImageJ hyperstack: " + axes);
+			source[page] = d;
+			pages[page] = image.dimension(d);
+		}
+		List<Integer> order = new ArrayList<>();
+		for (int d = 0; d < axes.size(); d++)
+			order.add(d);
+		int target = 2;
+		for (int page = 0; page < 3; page++) {
+			if (source[page] < 0)
+				continue;
+			int from = order.indexOf(source[page]);
+			image = Views.moveAxis(image, from, target);
+			order.add(target, order.remove(from));
+			target++;
+		}
+		return image;
+	}
+
+	private static int bytesPerPixel(IntegerType<?> type) {
+		if (type instanceof UnsignedByteType)
+			return 1;
+		if (type instanceof UnsignedShortType)
+			return 2;
+		if (type instanceof UnsignedIntType)
+			return 4;
+		throw new IllegalArgumentException("Pixel type not supported: " + type
+			.getClass().getSimpleName());
+	}
+
+	private void writeHeader() throws IOException {
+		ByteBuffer header = allocate(bigTiff ? 16 : 8);
+		header.put((byte) 'I').put((byte) 'I');
+		if (bigTiff) {
+			header.putShort((short) 43).putShort((short) 8).putShort((short) 0);
+			nextIfdPointer = 8;
+			header.putLong(0);
+		}
+		else {
+			header.putShort((short) 42);
+			nextIfdPointer = 4;
+			header.putInt(0);
+		}
+		header.flip();
+		write(header);
+	}
+
+	/**
+	 * Reads and compresses the strips on a thread pool, and writes them in
+	 * order. At most {@code 2 * numberOfThreads} compressed strips are kept in
+	 * memory.
+	 */
+	private <T extends IntegerType<T>> void writePlanes(
+		RandomAccessibleInterval<T> image, int bytesPerPixel, String description)
+		throws IOException
+	{
+		long width = image.dimension(0);
+		long height = image.dimension(1);
+		long[] planeDimensions = Arrays.copyOfRange(Intervals
+			.dimensionsAsLongArray(image), 2, image.numDimensions());
+		int numberOfPlanes = (int) Intervals.numElements(planeDimensions);
+		int rowsPerStrip = (int) Math.max(1, Math.min(height, STRIP_BYTES /
+			(width * bytesPerPixel)));
+		int stripsPerPlane = (int) ((height + rowsPerStrip - 1) / rowsPerStrip);
+		long numberOfStrips = (long) numberOfPlanes * stripsPerPlane;
+		ExecutorService pool = Executors.newFixedThreadPool(numberOfThreads);
+		try {
+			Queue<Future<byte[]>> window = new ArrayDeque<>();
+			long submitted = 0;
+			long[] offsets = new long[stripsPerPlane];
+			long[] byteCounts = new long[stripsPerPlane];
+			for (long s = 0; s < numberOfStrips; s++) {
+				for (; submitted < numberOfStrips && submitted < s + 2 *
+					numberOfThreads; submitted++)
+				{
+					long[] planePosition = new long[planeDimensions.length];
+					IntervalIndexer.indexToPosition(submitted / stripsPerPlane,
+						planeDimensions, planePosition);
+					long firstRow = submitted % stripsPerPlane * rowsPerStrip;
+					long rows = Math.min(rowsPerStrip, height - firstRow);
+					window.add(pool.submit(() -> compression.compress(readStrip(image,
+						planePosition, firstRow, rows, bytesPerPixel))));
+				}
+				byte[] bytes = await(window.remove());
+				int strip = (int) (s % stripsPerPlane);
+				offsets[strip] = position;
+				byteCounts[strip] = bytes.length;
+				write(ByteBuffer.wrap(bytes));
+				if (strip == stripsPerPlane - 1) {
+					writeIfd(width, height, bytesPerPixel, rowsPerStrip, offsets,
+						byteCounts, s < stripsPerPlane ? description : null);
+				}
+			}
+		}
+		finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private static <T> T await(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			throw new RuntimeException(cause);
+		}
+	}
+
+	private static <T extends IntegerType<T>> byte[] readStrip(
+		RandomAccessibleInterval<T> image, long[] planePosition, long firstRow,
+		long rows, int bytesPerPixel)
+	{
+		int n = image.numDimensions();
+		long[] min = new long[n];
+		long[] max = new long[n];
+		min[0] = image.min(0);
+		max[0] = image.max(0);
+		min[1] = image.min(1) + firstRow;
+		max[1] = min[1] + rows - 1;
+		for (int d = 2; d < n; d++)
+			min[d] = max[d] = image.min(d) + planePosition[d - 2];
+		byte[] bytes = new byte[(int) (image.dimension(0) * rows * bytesPerPixel)];
+		Cursor<T> cursor = Views.flatIterable(Views.interval(image,
+			new FinalInterval(min, max))).cursor();
+		int i = 0;
+		while (cursor.hasNext()) {
+			long value = cursor.next().getIntegerLong();
+			for (int b = 0; b < bytesPerPixel; b++)
+				bytes[i++] = (byte) (value >> (8 * b));
+		}
+		return bytes;
+	}
+
+	/**
+	 * @param pages Number of channels, slices and frames.
+	 */
+	private static String imageJDescription(long[] pages) {
+		StringBuilder description = new StringBuilder("ImageJ=1.53t\n");
+		description.append("images=").append(Intervals.numElements(pages))
+			.append('\n');
+		if (pages[0] > 1)
+			description.append("channels=").append(pages[0]).append('\n');
+		if (pages[1] > 1)
+			description.append("slices=").append(pages[1]).append('\n');
+		if (pages[2] > 1)
+			description.append("frames=").append(pages[2]).append('\n');
+		long axes = Arrays.stream(pages).filter(size -> size > 1).count();
+		if (axes > 1)
+			description.append("hyperstack=true\n");
+		return description.toString();
+	}
+
+	private void writeIfd(long width, long height, int bytesPerPixel,
+		int rowsPerStrip, long[] offsets, long[] byteCounts, String description)
+		throws IOException
+	{
+		List<Entry> entries = new ArrayList<>();
+		entries.add(Entry.longs(256, width));
+		entries.add(Entry.longs(257, height));
+		entries.add(Entry.shorts(258, 8 * bytesPerPixel));
+		entries.add(Entry.shorts(259, compression.tag));
+		entries.add(Entry.shorts(262, 1)); // black is zero
+		if (description != null)
+			entries.add(Entry.ascii(270, description));
+		entries.add(offsets(273, offsets));
+		entries.add(Entry.shorts(277, 1));
+		entries.add(Entry.longs(278, rowsPerStrip));
+		entries.add(offsets(279, byteCounts));
+		entries.add(Entry.shorts(284, 1)); // chunky
+		entries.add(Entry.shorts(339, 1)); // unsigned integer
+		if (position % 2 != 0)
+			write(ByteBuffer.wrap(new byte[1]));
+		long ifdStart = position;
+		int countSize = bigTiff ? 8 : 2;
+		int entrySize = bigTiff ? 20 : 12;
+		int valueSize = bigTiff ? 8 : 4;
+		long pointerPosition = ifdStart + countSize + (long) entries.size() *
+			entrySize;
+		long extraStart = pointerPosition + valueSize;
+		ByteBuffer ifd = allocate((int) (extraStart - ifdStart));
+		ByteArrayOutputStream extra = new ByteArrayOutputStream();
+		if (bigTiff)
+			ifd.putLong(entries.size());
+		else
+			ifd.putShort((short) entries.size());
+		for (Entry entry : entries) {
+			ifd.putShort((short) entry.tag);
+			ifd.putShort(entry.type);
+			putPointer(ifd, entry.count);
+			if (entry.data.length <= valueSize) {
+				ifd.put(entry.data);
+				ifd.put(new byte[valueSize - entry.data.length]);
+			}
+			else {
+				putPointer(ifd, extraStart + extra.size());
+				extra.write(entry.data);
+				if (extra.size() % 2 != 0)
+					extra.write(0);
+			}
+		}
+		putPointer(ifd, 0);
+		ifd.flip();
+		write(ifd);
+		write(ByteBuffer.wrap(extra.toByteArray()));
+		ByteBuffer pointer = allocate(valueSize);
+		putPointer(pointer, ifdStart);
+		pointer.flip();
+		writeFully(pointer, nextIfdPointer);
+		nextIfdPointer = pointerPosition;
+	}
+
+	private Entry offsets(int tag, long[] values) {
+		return bigTiff ? Entry.longs8(tag, values) : Entry.longs(tag, values);
+	}
+
+	/**
+	 * Puts a file offset or a value count, that has four bytes in classic TIFF
+	 * and eight bytes in BigTIFF.
+	 */
+	private void putPointer(ByteBuffer buffer, long pointer) {
+		if (bigTiff)
+			buffer.putLong(pointer);
+		else
+			buffer.putInt((int) pointer);
+	}
+
+	private void write(ByteBuffer buffer) throws IOException {
+		int length = buffer.remaining();
+		writeFully(buffer, position);
+		position += length;
+	}
+
+	private void writeFully(ByteBuffer buffer, long at) throws IOException {
+		while (buffer.hasRemaining())
+			at += channel.write(buffer, at);
+	}
+
+	private static ByteBuffer allocate(int size) {
+		return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static class Entry {
+
+		private final int tag;
+
+		private final short type;
+
+		private final long count;
+
+		private final byte[] data;
+
+		private Entry(int tag, short type, long count, byte[] data) {
+			this.tag = tag;
+			this.type = type;
+			this.count = count;
+			this.data = data;
+		}
+
+		private static Entry shorts(int tag, int value) {
+			return new Entry(tag, SHORT, 1, allocate(2).putShort((short) value)
+				.array());
+		}
+
+		private static Entry longs(int tag, long... values) {
+			ByteBuffer buffer = allocate(4 * values.length);
+			for (long value : values)
+				buffer.putInt((int) value);
+			return new Entry(tag, LONG, values.length, buffer.array());
+		}
+
+		private static Entry longs8(int tag, long... values) {
+			ByteBuffer buffer = allocate(8 * values.length);
+			for (long value : values)
+				buffer.putLong(value);
+			return new Entry(tag, LONG8, values.length, buffer.array());
+		}
+
+		private static Entry ascii(int tag, String value) {
+			byte[] bytes = (value + '\0').getBytes(StandardCharsets.US_ASCII);
+			return new Entry(tag, ASCII, bytes.length, bytes);
+		}
+	}
+
+	/**
+	 * Compression of the TIFF strips: none, LZW or deflate with a given level.
+	 */
+	static class Compression {
+
+		static final Compression NONE = new Compression(1, -1);
+
+		static final Compression LZW = new Compression(5, -1);
+
+		static final int DEFAULT_DEFLATE_LEVEL = 6;
+
+		private final int tag;
+
+		private final int level;
+
+		private Compression(int tag, int level) {
+			this.tag = tag;
+			this.level = level;
+		}
+
+		static Compression deflate(int level) {
+			if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+				throw new IllegalArgumentException(
+					"Deflate level must be between 0 and 9: " + level);
+			return new Compression(8, level);
+		}
+
+		/**
+		 * Parses "none", "lzw", "deflate" or "deflate:LEVEL".
+		 */
+		static Compression parse(String text) {
+			String[] parts = text.toLowerCase().split(":", 2);
+			switch (parts[0]) {
+				case "none":
+					return NONE;
+				case "lzw":
+					return LZW;
+				case "deflate":
+					return deflate(parts.length > 1 ? Integer.parseInt(parts[1]) :
+						DEFAULT_DEFLATE_LEVEL);
+				default:
+					throw new IllegalArgumentException("Unknown compression: " + text);
+			}
+		}
+
+		private byte[] compress(byte[] bytes) {
+			if (this == NONE)
+				return bytes;
+			if (this == LZW)
+				return compressLzw(bytes);
+			Deflater deflater = new Deflater(level);
+			try {
+				deflater.setInput(bytes);
+				deflater.finish();
+				ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2 +
+					64);
+				byte[] buffer = new byte[1 << 16];
+				while (!deflater.finished())
+					out.write(buffer, 0, deflater.deflate(buffer));
+				return out.toByteArray();
+			}
+			finally {
+				deflater.end();
+			}
+		}
+
+		private static byte[] compressLzw(byte[] bytes) {
+			try {
+				return new LZWCodec().compress(bytes, new CodecOptions());
+			}
+			catch (FormatException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,276 @@
+package sc.fiji.labkit.cli;
+
+import bdv.export.ExportMipmapInfo;
+import bdv.export.ProgressWriter;
+import bdv.export.ProgressWriterConsole;
+import bdv.export.ProposeMipmaps;
+import bdv.export.WriteSequenceToHdf5;
+import bdv.img.hdf5.Hdf5ImageLoader;
+import bdv.img.hdf5.Partition;
+import bdv.spimdata.SequenceDescriptionMinimal;
+import bdv.spimdata.SpimDataMinimal;
+import bdv.spimdata.XmlIoSpimDataMinimal;
+import mpicbg.spim.data.SpimDataException;
+import mpicbg.spim.data.generic.sequence.BasicImgLoader;
+import mpicbg.spim.data.generic.sequence.BasicSetupImgLoader;
+import mpicbg.spim.data.generic.sequence.BasicViewSetup;
+import mpicbg.spim.data.generic.sequence.ImgLoaderHint;
+import mpicbg.spim.data.registration.ViewRegistration;
+import mpicbg.spim.data.registration.ViewRegistrations;
+import mpicbg.spim.data.sequence.FinalVoxelDimensions;
+import mpicbg.spim.data.sequence.TimePoint;
+import mpicbg.spim.data.sequence.TimePoints;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.FinalDimensions;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.util.Cast;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Saves a label image as Big Data Viewer HDF5, divided into spatial tiles.
+ * <p>
+ * The BDV HDF5 format only allows to partition a dataset by timepoints and
+ * setups. In order to split a single large volume into many partition files,
+ * each tile of the volume is stored as a separate setup, which is placed by a
+ * translation in the view registrations. Every (timepoint, tile) pair is
+ * written into its own partition file. The partitions can therefore be
+ * written independently by separate cluster jobs. The header HDF5 file links
+ * all the partitions, and the XML file makes BigDataViewer show the tiles
+ * side by side.
+ * <p>
+ * Readers therefore see one source per tile, instead of a single
+ * segmentation. The resolution levels are proposed for each tile separately,
+ * by {@link ProposeMipmaps}, and are computed within the tile.
+ * <p>
+ * The tiles cover the spatial axes, 2D images are saved as a single slice. A
+ * non-spatial axis is interpreted as time. Labels are stored as unsigned 16
+ * bit, like the untiled HDF5 output. Images with a wider pixel type are
+ * rejected, because their labels could exceed this range.
+ */
+class TiledHdf5Saver {
+
+	private final File xml;
+
+	private final File hdf5;
+
+	private final List<RandomAccessibleInterval<? extends IntegerType<?>>> volumes;
+
+	private final CellGrid tiles;
+
+	private final List<TimePoint> timepoints = new ArrayList<>();
+
+	private final List<BasicViewSetup> setups = new ArrayList<>();
+
+	private final Map<Integer, ExportMipmapInfo> perSetupMipmapInfo =
+		new HashMap<>();
+
+	private final ArrayList<Partition> partitions;
+
+	private final SequenceDescriptionMinimal sequence;
+
+	private ProgressWriter progressWriter = new ProgressWriterConsole();
+
+	/**
+	 * @param spatial Which axes of the image are spatial, see
+	 *          {@link PrepareCommand#spatialAxes}.
+	 * @throws IllegalArgumentException If the image can't be saved.
+	 */
+	TiledHdf5Saver(RandomAccessibleInterval<? extends IntegerType<?>> image,
+		boolean[] spatial, String xmlFilename, int tileSize)
+	{
+		int bits = Util.getTypeFromInterval(image).getBitsPerPixel();
+		if (bits > 16)
+			throw new IllegalArgumentException("The segmentation has " + bits +
+				" bit labels, but HDF5 stores labels as unsigned 16 bit. " +
+				"Labels above 65535 would be corrupted.");
+		this.xml = new File(xmlFilename);
+		String basename = xmlFilename.endsWith(".xml") ? xmlFilename.substring(0,
+			xmlFilename.length() - ".xml".length()) : xmlFilename;
+		this.hdf5 = new File(basename + ".h5");
+		this.volumes = volumes(image, spatial);
+		long[] dimensions = Intervals.dimensionsAsLongArray(volumes.get(0));
+		int numberOfSpatialAxes = countSpatialAxes(spatial);
+		int[] tileDimensions = new int[3];
+		for (int d = 0; d < tileDimensions.length; d++)
+			tileDimensions[d] = d < numberOfSpatialAxes ? tileSize : 1;
+		this.tiles = new CellGrid(dimensions, tileDimensions);
+		for (int t = 0; t < volumes.size(); t++)
+			timepoints.add(new TimePoint(t));
+		FinalVoxelDimensions voxelSize = new FinalVoxelDimensions("pixel", 1, 1,
+			1);
+		for (int setup = 0; setup < numberOfTiles(); setup++) {
+			FinalInterval tile = tile(setup);
+			BasicViewSetup viewSetup = new BasicViewSetup(setup, "tile " + setup,
+				new FinalDimensions(Intervals.dimensionsAsLongArray(tile)), voxelSize);
+			setups.add(viewSetup);
+			perSetupMipmapInfo.put(setup, ProposeMipmaps.proposeMipmaps(viewSetup));
+		}
+		this.partitions = Partition.split(timepoints, setups, 1, 1, basename);
+		this.sequence = new SequenceDescriptionMinimal(new TimePoints(timepoints),
+			setupsMap(), new TileImgLoader(), null);
+	}
+
+	void setProgressWriter(ProgressWriter progressWriter) {
+		this.progressWriter = progressWriter;
+	}
+
+	int numberOfPartitions() {
+		return partitions.size();
+	}
+
+	/**
+	 * Writes the XML file, and the header HDF5 file that links the partitions.
+	 */
+	void writeXmlAndHdf5() {
+		WriteSequenceToHdf5.writeHdf5PartitionLinkFile(sequence, perSetupMipmapInfo,
+			partitions, hdf5);
+		SequenceDescriptionMinimal xmlSequence = new SequenceDescriptionMinimal(
+			new TimePoints(timepoints), setupsMap(), null, null);
+		xmlSequence.setImgLoader(new Hdf5ImageLoader(hdf5, partitions, xmlSequence,
+			false));
+		SpimDataMinimal spimData = new SpimDataMinimal(xml.getAbsoluteFile()
+			.getParentFile(), xmlSequence, registrations());
+		try {
+			new XmlIoSpimDataMinimal().save(spimData, xml.getAbsolutePath());
+		}
+		catch (SpimDataException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	void writePartition(int index) {
+		WriteSequenceToHdf5.writeHdf5PartitionFile(sequence, perSetupMipmapInfo,
+			true, partitions.get(index), null, null, Runtime.getRuntime()
+				.availableProcessors(), progressWriter);
+	}
+
+	void writeAll() {
+		writeXmlAndHdf5();
+		for (int i = 0; i < partitions.size(); i++)
+			writePartition(i);
+	}
+
+	private int numberOfTiles() {
+		return (int) Intervals.numElements(tiles.getGridDimensions());
+	}
+
+	private FinalInterval tile(int setup) {
+		int n = tiles.numDimensions();
+		long[] min = new long[n];
+		int[] size = new int[n];
+		tiles.getCellDimensions(setup, min, size);
+		long[] max = new long[n];
+		for (int d = 0; d < n; d++)
+			max[d] = min[d] + size[d] - 1;
+		return new FinalInterval(min, max);
+	}
+
+	private Map<Integer, BasicViewSetup> setupsMap() {
+		Map<Integer, BasicViewSetup> map = new HashMap<>();
+		for (BasicViewSetup setup : setups)
+			map.put(setup.getId(), setup);
+		return map;
+	}
+
+	private ViewRegistrations registrations() {
+		Map<ViewId, ViewRegistration> registrations = new HashMap<>();
+		for (TimePoint timepoint : timepoints)
+			for (BasicViewSetup setup : setups) {
+				AffineTransform3D transform = new AffineTransform3D();
+				long[] min = Intervals.minAsLongArray(tile(setup.getId()));
+				transform.translate(min[0], min[1], min[2]);
+				ViewRegistration registration = new ViewRegistration(timepoint
+					.getId(), setup.getId(), transform);
+				registrations.put(registration, registration);
+			}
+		return new ViewRegistrations(registrations);
+	}
+
+	/**
+	 * Returns one 3D volume per timepoint. The spatial axes come first, a 2D
+	 * image gets a third axis of size one.
+	 */
+	private static List<RandomAccessibleInterval<? extends IntegerType<?>>>
+		volumes(RandomAccessibleInterval<? extends IntegerType<?>> image,
+			boolean[] spatial)
+	{
+		int numberOfSpatialAxes = countSpatialAxes(spatial);
+		int numberOfOtherAxes = spatial.length - numberOfSpatialAxes;
+		if (numberOfSpatialAxes < 2 || numberOfSpatialAxes > 3 ||
+			numberOfOtherAxes > 1)
+			throw new IllegalArgumentException(
+				"Only images with two or three spatial axes, and optionally a time axis, can be saved as HDF5.");
+		RandomAccessibleInterval<? extends IntegerType<?>> view = image;
+		for (int d = 0; d < spatial.length; d++)
+			if (!spatial[d])
+				view = Views.moveAxis(view, d, spatial.length - 1);
+		if (numberOfSpatialAxes == 2) {
+			RandomAccessibleInterval<IntegerType<?>> slice = Views.addDimension(Cast
+				.unchecked(view), 0, 0);
+			view = Views.moveAxis(slice, spatial.length, 2);
+		}
+		List<RandomAccessibleInterval<? extends IntegerType<?>>> volumes =
+			new ArrayList<>();
+		if (numberOfOtherAxes == 0)
+			volumes.add(view);
+		else
+			for (long t = view.min(3); t <= view.max(3); t++)
+				volumes.add(Views.hyperSlice(view, 3, t));
+		return volumes;
+	}
+
+	private static int countSpatialAxes(boolean[] spatial) {
+		int count = 0;
+		for (boolean s : spatial)
+			if (s)
+				count++;
+		return count;
+	}
+
+	private RandomAccessibleInterval<UnsignedShortType> tileImage(int timepoint,
+		int setup)
+	{
+		RandomAccessibleInterval<? extends IntegerType<?>> volume = volumes.get(
+			timepoint);
+		RandomAccessibleInterval<? extends IntegerType<?>> tile = Views.zeroMin(
+			Views.interval(volume, Intervals.translate(tile(setup), Intervals
+				.minAsLongArray(volume))));
+		return Converters.convert(tile, (i, o) -> o.setInteger(i.getIntegerLong()),
+			new UnsignedShortType());
+	}
+
+	private class TileImgLoader implements BasicImgLoader {
+
+		@Override
+		public BasicSetupImgLoader<?> getSetupImgLoader(int setupId) {
+			return new BasicSetupImgLoader<UnsignedShortType>() {
+
+				@Override
+				public RandomAccessibleInterval<UnsignedShortType> getImage(
+					int timepointId, ImgLoaderHint... hints)
+				{
+					return tileImage(timepointId, setupId);
+				}
+
+				@Override
+				public UnsignedShortType getImageType() {
+					return new UnsignedShortType();
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package sc.fiji.labkit.cli;
+
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.DiskCachedCellImgOptions;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import sc.fiji.labkit.ui.segmentation.Segmenter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Lazily segments an image tile by tile.
+ * <p>
+ * The segmentation is a {@link CachedCellImg}, each cell is segmented when it
+ * is first accessed. The cache is bounded to the number of tiles, that cover
+ * one slab of XY planes. This is sufficient to write the segmentation plane by
+ * plane, without segmenting a tile twice.
+ */
+class TiledSegmentation {
+
+	private TiledSegmentation() {
+		// prevent from instantiation
+	}
+
+	/**
+	 * @param segmenter Segmenter used to segment the tiles.
+	 * @param image Image to be segmented, ideally opened lazily.
+	 * @param tileSize Tile size for the spatial axes, for all other axes the
+	 *          tile size is one.
+	 * @return The segmentation, it has the same dimensions as the image, except
+	 *         for the channel axis.
+	 */
+	static CachedCellImg<UnsignedByteType, ?> create(Segmenter segmenter,
+		ImgPlus<?> image, int tileSize)
+	{
+		List<Long> dimensions = new ArrayList<>();
+		List<Integer> cellDimensions = new ArrayList<>();
+		for (int d = 0; d < image.numDimensions(); d++) {
+			if (image.axis(d).type() == Axes.CHANNEL)
+				continue;
+			dimensions.add(image.dimension(d));
+			cellDimensions.add(image.axis(d).type().isSpatial() ? (int) Math.min(
+				tileSize, image.dimension(d)) : 1);
+		}
+		long[] dims = dimensions.stream().mapToLong(x -> x).toArray();
+		int[] cellDims = cellDimensions.stream().mapToInt(x -> x).toArray();
+		CellGrid grid = new CellGrid(dims, cellDims);
+		long tilesPerSlab = 1;
+		for (int d = 0; d < Math.min(2, dims.length); d++)
+			tilesPerSlab *= grid.getGridDimensions()[d];
+		ReadOnlyCachedCellImgOptions options = ReadOnlyCachedCellImgOptions
+			.options()
+			.cellDimensions(cellDims)
+			.cacheType(DiskCachedCellImgOptions.CacheType.BOUNDED)
+			.maxCacheSize(tilesPerSlab);
+		Consumer<RandomAccessibleInterval<UnsignedByteType>> loader =
+			cell -> segmenter.segment(image, cell);
+		if (segmenter.requiresFixedCellSize())
+			loader = BlockSegmentation.fixBlockSize(loader, cellDims);
+		Consumer<RandomAccessibleInterval<UnsignedByteType>> finalLoader = loader;
+		CellLoader<UnsignedByteType> cellLoader = finalLoader::accept;
+		return new ReadOnlyCachedCellImgFactory(options).create(dims,
+			new UnsignedByteType(), cellLoader);
+	}
+}
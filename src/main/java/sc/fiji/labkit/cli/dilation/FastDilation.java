@@ -15,13 +15,21 @@ import net.imglib2.util.Localizables;
 import net.imglib2.util.Util;
 import net.imglib2.view.Views;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 public class FastDilation {
 
 	public static <T extends IntegerType<T>> RandomAccessibleInterval<T> dilate(Shape shape, RandomAccessibleInterval<T> image, RandomAccessibleInterval<T> output) {
 		if (image == output) {
-			RandomAccessibleInterval<T> tmp = createSameSizeImage(image);
-			copyFromTo(image, tmp);
-			dilateDiamondShapeStep2(shape, tmp, image);
+			if (image.numDimensions() > 1)
+				dilateInPlace(shape, image);
+			else {
+				RandomAccessibleInterval<T> tmp = createSameSizeImage(image);
+				copyFromTo(image, tmp);
+				dilateDiamondShapeStep2(shape, tmp, image);
+			}
 		}
 		else {
 			if (output == null)
@@ -32,6 +40,48 @@ public class FastDilation {
 		return output;
 	}
 
+	/**
+	 * Dilates the image plane by plane, along the last dimension. The original
+	 * values of the last planes, that are still needed as input, are kept in a
+	 * ring buffer. The memory overhead is radius + 2 planes, instead of a copy
+	 * of the whole image.
+	 */
+	private static <T extends IntegerType<T>> void dilateInPlace(Shape shape, RandomAccessibleInterval<T> image) {
+		int last = image.numDimensions() - 1;
+		List<long[]> offsets = offsets(shape, image.numDimensions());
+		int radius = 0;
+		for (long[] offset : offsets)
+			radius = Math.max(radius, (int) Math.abs(offset[last]));
+		List<RandomAccessibleInterval<T>> ring = new ArrayList<>();
+		for (int i = 0; i <= radius; i++)
+			ring.add(createSamePlane(image));
+		RandomAccessibleInterval<T> result = createSamePlane(image);
+		for (long z = image.min(last); z <= image.max(last); z++) {
+			RandomAccessibleInterval<T> original = ring.get(ringIndex(z, radius));
+			copyFromTo(Views.hyperSlice(image, last, z), original);
+			copyFromTo(original, result);
+			for (long[] offset : offsets) {
+				long sourceZ = z - offset[last];
+				if (isZero(offset) || sourceZ < image.min(last) || sourceZ > image.max(last))
+					continue;
+				RandomAccessibleInterval<T> source = sourceZ <= z ?
+						ring.get(ringIndex(sourceZ, radius)) :
+						Views.hyperSlice(image, last, sourceZ);
+				dilateByOffset(source, result, Arrays.copyOf(offset, last));
+			}
+			copyFromTo(result, Views.hyperSlice(image, last, z));
+		}
+	}
+
+	private static int ringIndex(long z, int radius) {
+		return (int) Math.floorMod(z, (long) radius + 1);
+	}
+
+	private static <T extends IntegerType<T>> RandomAccessibleInterval<T> createSamePlane(RandomAccessibleInterval<T> image) {
+		RandomAccessibleInterval<T> slice = Views.hyperSlice(image, image.numDimensions() - 1, image.min(image.numDimensions() - 1));
+		return Views.translate(createSameSizeImage(slice), Intervals.minAsLongArray(slice));
+	}
+
 	@SuppressWarnings("unchecked")
 	private static <T extends IntegerType<T>> RandomAccessibleInterval<T> createSameSizeImage(RandomAccessibleInterval<T> image) {
 		T type = Util.getTypeFromInterval(image);
@@ -47,21 +97,34 @@ public class FastDilation {
 	private static <T extends IntegerType<T>> void dilateDiamondShapeStep2(Shape shape, RandomAccessibleInterval<T> input,
 			RandomAccessibleInterval<T> output)
 	{
-		int n = output.numDimensions();
-		Neighborhood<Localizable> neighborhood = shape.neighborhoodsRandomAccessible(Localizables.randomAccessible(n)).randomAccess().setPositionAndGet(new long[n]);
-		for(Localizable position : neighborhood) {
-			long[] offset = Localizables.asLongArray(position);
+		for(long[] offset : offsets(shape, output.numDimensions())) {
 			if(isZero(offset))
 				continue;
-			Interval dest = Intervals.intersect(output, Intervals.translate(input, offset));
-			Interval source = Intervals.translateInverse(dest, offset);
-			LoopBuilder.setImages(Views.interval(input, source), Views.interval(output, dest)).multiThreaded().forEachPixel((i, o) -> {
-				if (i.compareTo(o) > 0)
-					o.set(i);
-			});
+			dilateByOffset(input, output, offset);
 		}
 	}
 
+	private static List<long[]> offsets(Shape shape, int n) {
+		Neighborhood<Localizable> neighborhood = shape.neighborhoodsRandomAccessible(Localizables.randomAccessible(n)).randomAccess().setPositionAndGet(new long[n]);
+		List<long[]> offsets = new ArrayList<>();
+		for(Localizable position : neighborhood)
+			offsets.add(Localizables.asLongArray(position));
+		return offsets;
+	}
+
+	private static <T extends IntegerType<T>> void dilateByOffset(RandomAccessibleInterval<T> input,
+			RandomAccessibleInterval<T> output, long[] offset)
+	{
+		Interval dest = Intervals.intersect(output, Intervals.translate(input, offset));
+		if(Intervals.isEmpty(dest))
+			return;
+		Interval source = Intervals.translateInverse(dest, offset);
+		LoopBuilder.setImages(Views.interval(input, source), Views.interval(output, dest)).multiThreaded().forEachPixel((i, o) -> {
+			if (i.compareTo(o) > 0)
+				o.set(i);
+		});
+	}
+
 	private static boolean isZero(long[] array) {
 		for(long value : array)
 			if(value != 0)
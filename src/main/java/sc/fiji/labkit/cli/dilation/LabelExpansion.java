@@ -0,0 +1,126 @@
+package sc.fiji.labkit.cli.dilation;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.parallel.Parallelization;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Grows the labels of a label image into the background, up to the given
+ * euclidean distance. Other than {@link FastDilation} and
+ * {@link SeparableDilation}, labels never overwrite each other. A background
+ * pixel gets the label of the nearest labeled pixel, therefore touching
+ * objects are separated halfway between them, independent of the label ids.
+ * <p>
+ * The image is processed in tiles, in parallel. Each tile is extended by the
+ * radius, and the separable distance transform by Felzenszwalb and
+ * Huttenlocher is calculated for the extended tile, propagating the label of
+ * the nearest labeled pixel.
+ */
+public class LabelExpansion {
+
+	private static final int MIN_TILE_SIZE = 64;
+
+	/**
+	 * @param input Label image, zero is background.
+	 * @param output Result, must have the same interval as the input, but must
+	 *          not be the same image.
+	 * @param radius Maximal euclidean distance a label is grown.
+	 */
+	public static <T extends IntegerType<T>> void expand(
+		RandomAccessibleInterval<T> input, RandomAccessibleInterval<T> output,
+		int radius)
+	{
+		if (input == output)
+			throw new IllegalArgumentException(
+				"Label expansion can not be done in place.");
+		int n = input.numDimensions();
+		int tileSize = Math.max(MIN_TILE_SIZE, 4 * radius);
+		int[] cellDimensions = new int[n];
+		for (int d = 0; d < n; d++)
+			cellDimensions[d] = (int) Math.min(tileSize, input.dimension(d));
+		CellGrid grid = new CellGrid(Intervals.dimensionsAsLongArray(input),
+			cellDimensions);
+		List<Interval> tiles = new ArrayList<>();
+		long numberOfTiles = Intervals.numElements(grid.getGridDimensions());
+		for (long i = 0; i < numberOfTiles; i++) {
+			long[] min = new long[n];
+			int[] size = new int[n];
+			grid.getCellDimensions(i, min, size);
+			for (int d = 0; d < n; d++)
+				min[d] += input.min(d);
+			tiles.add(FinalInterval.createMinSize(min, toLongs(size)));
+		}
+		Parallelization.getTaskExecutor().forEach(tiles, tile -> expandTile(input,
+			output, tile, radius));
+	}
+
+	private static <T extends IntegerType<T>> void expandTile(
+		RandomAccessibleInterval<T> input, RandomAccessibleInterval<T> output,
+		Interval tile, int radius)
+	{
+		Interval region = Intervals.intersect(Intervals.expand(tile, radius),
+			input);
+		int n = region.numDimensions();
+		int size = (int) Intervals.numElements(region);
+		int infinity = radius * radius + 1;
+		long[] labels = new long[size];
+		int[] distance = new int[size];
+		Cursor<T> in = Views.flatIterable(Views.interval(input, region)).cursor();
+		for (int i = 0; i < size; i++) {
+			labels[i] = in.next().getIntegerLong();
+			distance[i] = labels[i] != 0 ? 0 : infinity;
+		}
+		int stride = 1;
+		for (int d = 0; d < n; d++) {
+			int length = (int) region.dimension(d);
+			int[] line = new int[length];
+			long[] lineLabels = new long[length];
+			int[] parabolas = new int[length];
+			double[] boundaries = new double[length + 1];
+			int[] result = new int[length];
+			long[] resultLabels = new long[length];
+			for (int l = 0; l < size / length; l++) {
+				int offset = l / stride * stride * length + l % stride;
+				for (int k = 0, i = offset; k < length; k++, i += stride) {
+					line[k] = distance[i];
+					lineLabels[k] = labels[i];
+				}
+				SeparableDilation.squaredDistance(line, lineLabels, infinity, parabolas,
+					boundaries, result, resultLabels);
+				for (int k = 0, i = offset; k < length; k++, i += stride) {
+					distance[i] = result[k];
+					labels[i] = resultLabels[k];
+				}
+			}
+			stride *= length;
+		}
+		long[] position = new long[n];
+		Cursor<T> out = Views.flatIterable(Views.interval(output, tile))
+			.localizingCursor();
+		while (out.hasNext()) {
+			out.fwd();
+			out.localize(position);
+			int index = 0;
+			for (int d = n - 1; d >= 0; d--)
+				index = index * (int) region.dimension(d) + (int) (position[d] - region
+					.min(d));
+			out.get().setInteger(labels[index]);
+		}
+	}
+
+	private static long[] toLongs(int[] values) {
+		long[] result = new long[values.length];
+		for (int i = 0; i < values.length; i++)
+			result[i] = values[i];
+		return result;
+	}
+}
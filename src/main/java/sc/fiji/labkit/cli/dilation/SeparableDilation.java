@@ -0,0 +1,574 @@
+package sc.fiji.labkit.cli.dilation;
+
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.parallel.Parallelization;
+import net.imglib2.parallel.TaskExecutor;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedLongType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Dilation of an {@link ArrayImg} with unsigned integer pixels, that uses
+ * separable one dimensional passes over the primitive array, instead of one
+ * pass over the image per neighborhood offset. The runtime of
+ * {@link StructuringElement#BOX} is independent of the radius, the other
+ * structuring elements grow at most linearly with the radius.
+ * <p>
+ * Like {@link FastDilation}, the highest pixel value in the neighborhood wins.
+ */
+public class SeparableDilation {
+
+	/**
+	 * Diamond and sphere dilations are computed by thresholding a distance
+	 * transform for each pixel value. This is done if the image has at most
+	 * this number of non zero pixel values.
+	 */
+	public static final int MAX_LEVELS = 16;
+
+	/**
+	 * Diamond and sphere dilations process the image in slabs of about this
+	 * number of pixels, such that the distance transform doesn't need a
+	 * temporary image of the full size.
+	 */
+	static final int SLAB_SIZE = 1 << 22;
+
+	public enum StructuringElement {
+		/** Hypercube with side length 2 * radius + 1. */
+		BOX,
+		/**
+		 * All pixels within the given L1 distance. If the image has more than
+		 * {@link #MAX_LEVELS} pixel values, this is computed exactly by radius
+		 * dilations with a diamond of radius one, which is slower for large radii.
+		 */
+		DIAMOND,
+		/**
+		 * All pixels within the given euclidean distance. If the image has more
+		 * than {@link #MAX_LEVELS} pixel values, this is approximated by
+		 * {@link #OCTAGON}, see {@link #isExact}.
+		 */
+		SPHERE,
+		/**
+		 * Alternating diamond and box steps of radius one. This is what the
+		 * segment command has always used, it approximates a sphere.
+		 */
+		OCTAGON
+	}
+
+	public static <T extends IntegerType<T> & NativeType<T>> void dilate(
+		ArrayImg<T, ?> image, StructuringElement structuringElement, int radius)
+	{
+		dilate(image, structuringElement, radius, SLAB_SIZE);
+	}
+
+	/**
+	 * Returns false, if {@link #dilate} only approximates the given structuring
+	 * element for this image. This is the case for {@link StructuringElement#SPHERE},
+	 * if the image has more than {@link #MAX_LEVELS} pixel values.
+	 */
+	public static <T extends IntegerType<T> & NativeType<T>> boolean isExact(
+		ArrayImg<T, ?> image, StructuringElement structuringElement)
+	{
+		return structuringElement != StructuringElement.SPHERE || new Lines(image,
+			SLAB_SIZE).levels().size() <= MAX_LEVELS;
+	}
+
+	static <T extends IntegerType<T> & NativeType<T>> void dilate(
+		ArrayImg<T, ?> image, StructuringElement structuringElement, int radius,
+		int slabSize)
+	{
+		if (radius <= 0)
+			return;
+		Lines lines = new Lines(image, slabSize);
+		switch (structuringElement) {
+			case BOX:
+				lines.box(radius);
+				break;
+			case DIAMOND:
+				if (lines.levels().size() <= MAX_LEVELS)
+					lines.thresholdDistance(radius, false);
+				else
+					for (int i = 0; i < radius; i++)
+						lines.cross();
+				break;
+			case SPHERE:
+				if (lines.levels().size() <= MAX_LEVELS)
+					lines.thresholdDistance(radius, true);
+				else
+					lines.octagon(radius);
+				break;
+			case OCTAGON:
+				lines.octagon(radius);
+				break;
+		}
+	}
+
+	/**
+	 * Gives access to the lines of the image along each dimension. A line is
+	 * copied into a long[] buffer, processed and copied back.
+	 */
+	private static class Lines {
+
+		private final Object data;
+
+		private final int bits;
+
+		private final long[] dimensions;
+
+		private final int size;
+
+		private final int slabSize;
+
+		private Lines(ArrayImg<?, ?> image, int slabSize) {
+			this.data = ((ArrayDataAccess<?>) image.update(null))
+				.getCurrentStorageArray();
+			this.bits = bits(Util.getTypeFromInterval(image));
+			this.dimensions = image.dimensionsAsLongArray();
+			this.size = (int) image.size();
+			this.slabSize = slabSize;
+		}
+
+		private static int bits(Object type) {
+			if (type instanceof UnsignedByteType)
+				return 8;
+			if (type instanceof UnsignedShortType)
+				return 16;
+			if (type instanceof UnsignedIntType)
+				return 32;
+			if (type instanceof UnsignedLongType)
+				return 64;
+			throw new IllegalArgumentException("Pixel type not supported: " + type
+				.getClass().getSimpleName());
+		}
+
+		private long get(Object array, int index) {
+			switch (bits) {
+				case 8:
+					return ((byte[]) array)[index] & 0xffL;
+				case 16:
+					return ((short[]) array)[index] & 0xffffL;
+				case 32:
+					return ((int[]) array)[index] & 0xffffffffL;
+				default:
+					return ((long[]) array)[index];
+			}
+		}
+
+		private void set(int index, long value) {
+			switch (bits) {
+				case 8:
+					((byte[]) data)[index] = (byte) value;
+					break;
+				case 16:
+					((short[]) data)[index] = (short) value;
+					break;
+				case 32:
+					((int[]) data)[index] = (int) value;
+					break;
+				default:
+					((long[]) data)[index] = value;
+			}
+		}
+
+		private void read(Object array, int offset, int stride, long[] line) {
+			switch (bits) {
+				case 8: {
+					byte[] values = (byte[]) array;
+					for (int k = 0, i = offset; k < line.length; k++, i += stride)
+						line[k] = values[i] & 0xffL;
+					break;
+				}
+				case 16: {
+					short[] values = (short[]) array;
+					for (int k = 0, i = offset; k < line.length; k++, i += stride)
+						line[k] = values[i] & 0xffffL;
+					break;
+				}
+				case 32: {
+					int[] values = (int[]) array;
+					for (int k = 0, i = offset; k < line.length; k++, i += stride)
+						line[k] = values[i] & 0xffffffffL;
+					break;
+				}
+				default: {
+					long[] values = (long[]) array;
+					for (int k = 0, i = offset; k < line.length; k++, i += stride)
+						line[k] = values[i];
+				}
+			}
+		}
+
+		private void write(int offset, int stride, long[] line) {
+			switch (bits) {
+				case 8: {
+					byte[] values = (byte[]) data;
+					for (int k = 0, i = offset; k < line.length; k++, i += stride)
+						values[i] = (byte) line[k];
+					break;
+				}
+				case 16: {
+					short[] values = (short[]) data;
+					for (int k = 0, i = offset; k < line.length; k++, i += stride)
+						values[i] = (short) line[k];
+					break;
+				}
+				case 32: {
+					int[] values = (int[]) data;
+					for (int k = 0, i = offset; k < line.length; k++, i += stride)
+						values[i] = (int) line[k];
+					break;
+				}
+				default: {
+					long[] values = (long[]) data;
+					for (int k = 0, i = offset; k < line.length; k++, i += stride)
+						values[i] = line[k];
+				}
+			}
+		}
+
+		/**
+		 * Returns the distinct non zero pixel values, at most
+		 * {@link #MAX_LEVELS} + 1 of them.
+		 */
+		private TreeSet<Long> levels() {
+			TreeSet<Long> levels = new TreeSet<>();
+			for (int i = 0; i < size && levels.size() <= MAX_LEVELS; i++) {
+				long value = get(data, i);
+				if (value != 0)
+					levels.add(value);
+			}
+			return levels;
+		}
+
+		/**
+		 * Dilation with a box of the given radius. Uses the van Herk / Gil-Werman
+		 * algorithm for each line, which needs three comparisons per pixel,
+		 * independent of the radius.
+		 */
+		private void box(int radius) {
+			for (int d = 0; d < dimensions.length; d++)
+				forEachLine(dimensions, d, (offset, stride, length) -> {
+					long[] line = new long[length];
+					long[] prefix = new long[length + 2 * radius];
+					long[] suffix = new long[length + 2 * radius];
+					return () -> {
+						read(data, offset.get(), stride, line);
+						runningMax(line, radius, prefix, suffix);
+						write(offset.get(), stride, line);
+					};
+				});
+		}
+
+		/**
+		 * Dilation with a diamond of radius one. The image is processed plane by
+		 * plane along the last dimension. Only the original values of the
+		 * previous, current and next plane are buffered.
+		 */
+		private void cross() {
+			int last = dimensions.length - 1;
+			int depth = (int) dimensions[last];
+			int planeSize = size / depth;
+			long[] previous = new long[planeSize];
+			long[] current = new long[planeSize];
+			long[] next = new long[planeSize];
+			long[] result = new long[planeSize];
+			read(data, 0, 1, current);
+			for (int z = 0; z < depth; z++) {
+				if (z + 1 < depth)
+					read(data, (z + 1) * planeSize, 1, next);
+				crossPlane(z > 0 ? previous : null, current, z + 1 < depth ? next
+					: null, result);
+				write(z * planeSize, 1, result);
+				long[] tmp = previous;
+				previous = current;
+				current = next;
+				next = tmp;
+			}
+		}
+
+		private void crossPlane(long[] previous, long[] current, long[] next,
+			long[] result)
+		{
+			int last = dimensions.length - 1;
+			int[] strides = new int[last];
+			for (int d = 0, stride = 1; d < last; d++) {
+				strides[d] = stride;
+				stride *= dimensions[d];
+			}
+			TaskExecutor taskExecutor = Parallelization.getTaskExecutor();
+			int numberOfTasks = Math.max(1, Math.min(current.length / 4096,
+				taskExecutor.getParallelism()));
+			List<Integer> tasks = new ArrayList<>();
+			for (int t = 0; t < numberOfTasks; t++)
+				tasks.add(t);
+			taskExecutor.forEach(tasks, t -> {
+				int first = (int) ((long) current.length * t / numberOfTasks);
+				int end = (int) ((long) current.length * (t + 1) / numberOfTasks);
+				for (int i = first; i < end; i++) {
+					long value = current[i];
+					if (previous != null)
+						value = Math.max(value, previous[i]);
+					if (next != null)
+						value = Math.max(value, next[i]);
+					for (int d = 0; d < last; d++) {
+						long position = i / strides[d] % dimensions[d];
+						if (position > 0)
+							value = Math.max(value, current[i - strides[d]]);
+						if (position < dimensions[d] - 1)
+							value = Math.max(value, current[i + strides[d]]);
+					}
+					result[i] = value;
+				}
+			});
+		}
+
+		private void octagon(int radius) {
+			for (int i = 0; i < radius / 2; i++) {
+				cross();
+				box(1);
+			}
+			if (radius % 2 != 0)
+				cross();
+		}
+
+		/**
+		 * For each pixel value, in ascending order, computes the distance
+		 * transform of the pixels with at least that value. Pixels within the
+		 * given radius, that have a lower value, are set to the value.
+		 * <p>
+		 * Because of the ascending order, only pixels with a lower value have
+		 * been changed so far. The pixels with at least the current value are
+		 * therefore exactly the original ones, and no copy of the image is
+		 * needed.
+		 * <p>
+		 * The image is processed in slabs along the last dimension. The distance
+		 * transform of a slab includes radius planes above and below, which is
+		 * exact, because pixels that are further away along the last dimension
+		 * are also further away than the radius. The planes below a slab already
+		 * belong to the previous slab, and have been changed. Their original
+		 * values are copied before the previous slab is processed.
+		 */
+		private void thresholdDistance(int radius, boolean euclidean) {
+			List<Long> levels = new ArrayList<>(levels());
+			int threshold = euclidean ? radius * radius : radius;
+			int infinity = threshold + 1;
+			int last = dimensions.length - 1;
+			int depth = (int) dimensions[last];
+			int planeSize = size / depth;
+			int slabDepth = Math.max(radius, Math.max(1, slabSize / planeSize));
+			int[] distance = new int[Math.min(depth, slabDepth + 2 * radius) *
+				planeSize];
+			int overlap = Math.min(depth, radius) * planeSize;
+			Object below = newArray(overlap);
+			Object copy = newArray(overlap);
+			for (int z0 = 0; z0 < depth; z0 += slabDepth) {
+				int z1 = Math.min(depth, z0 + slabDepth);
+				int start = Math.max(0, z0 - radius);
+				int end = Math.min(depth, z1 + radius);
+				// original values of the planes below the next slab
+				int copyStart = Math.max(z0, z1 - radius);
+				System.arraycopy(data, copyStart * planeSize, copy, 0, (z1 -
+					copyStart) * planeSize);
+				long[] slabDimensions = dimensions.clone();
+				slabDimensions[last] = end - start;
+				int offset = start * planeSize;
+				int first = (z0 - start) * planeSize;
+				int stop = (z1 - start) * planeSize;
+				int slabPixels = (end - start) * planeSize;
+				for (long level : levels) {
+					for (int j = 0; j < slabPixels; j++) {
+						long value = j < first ? get(below, j) : get(data, offset + j);
+						distance[j] = value >= level ? 0 : infinity;
+					}
+					for (int d = 0; d < dimensions.length; d++)
+						forEachLine(slabDimensions, d, (lineOffset, stride, length) -> {
+							int[] line = new int[length];
+							int[] parabolas = new int[length];
+							double[] boundaries = new double[length + 1];
+							int[] result = new int[length];
+							return () -> {
+								for (int k = 0, i = lineOffset.get(); k < length; k++, i += stride)
+									line[k] = distance[i];
+								if (euclidean)
+									squaredDistance(line, infinity, parabolas, boundaries, result);
+								else
+									manhattanDistance(line, infinity, result);
+								for (int k = 0, i = lineOffset.get(); k < length; k++, i += stride)
+									distance[i] = result[k];
+							};
+						});
+					for (int j = first; j < stop; j++)
+						if (distance[j] <= threshold && get(data, offset + j) < level)
+							set(offset + j, level);
+				}
+				Object tmp = below;
+				below = copy;
+				copy = tmp;
+			}
+		}
+
+		private Object newArray(int length) {
+			return Array.newInstance(data.getClass().getComponentType(), length);
+		}
+
+		/**
+		 * Calls the task for each line along dimension d, of an array with the
+		 * given dimensions, in parallel. The factory is called once per thread, such that the buffers can be
+		 * reused for many lines.
+		 */
+		private void forEachLine(long[] dimensions, int d,
+			LineTaskFactory factory)
+		{
+			int size = (int) Intervals.numElements(dimensions);
+			int stride = 1;
+			for (int e = 0; e < d; e++)
+				stride *= dimensions[e];
+			int length = (int) dimensions[d];
+			int numberOfLines = size / length;
+			TaskExecutor taskExecutor = Parallelization.getTaskExecutor();
+			int numberOfTasks = Math.max(1, Math.min(numberOfLines, 4 * taskExecutor
+				.getParallelism()));
+			List<Integer> tasks = new ArrayList<>();
+			for (int t = 0; t < numberOfTasks; t++)
+				tasks.add(t);
+			int lineStride = stride;
+			taskExecutor.forEach(tasks, t -> {
+				Offset offset = new Offset();
+				Runnable lineTask = factory.create(offset, lineStride, length);
+				long first = (long) numberOfLines * t / numberOfTasks;
+				long last = (long) numberOfLines * (t + 1) / numberOfTasks;
+				for (long l = first; l < last; l++) {
+					long inner = l % lineStride;
+					long outer = l / lineStride;
+					offset.value = (int) (outer * lineStride * length + inner);
+					lineTask.run();
+				}
+			});
+		}
+	}
+
+	private interface LineTaskFactory {
+
+		Runnable create(Offset offset, int stride, int length);
+	}
+
+	/**
+	 * Offset of the current line within the primitive array.
+	 */
+	private static class Offset {
+
+		private int value;
+
+		private int get() {
+			return value;
+		}
+	}
+
+	/**
+	 * Replaces each value of the line, by the maximum within the given radius.
+	 */
+	static void runningMax(long[] line, int radius, long[] prefix,
+		long[] suffix)
+	{
+		int window = 2 * radius + 1;
+		int padded = line.length + 2 * radius;
+		// The line is padded with zeros, the smallest unsigned value.
+		for (int i = 0; i < padded; i++) {
+			long value = i < radius || i >= radius + line.length ? 0 : line[i -
+				radius];
+			prefix[i] = i % window == 0 ? value : Math.max(prefix[i - 1], value);
+		}
+		for (int i = padded - 1; i >= 0; i--) {
+			long value = i < radius || i >= radius + line.length ? 0 : line[i -
+				radius];
+			suffix[i] = i == padded - 1 || (i + 1) % window == 0 ? value : Math.max(
+				suffix[i + 1], value);
+		}
+		for (int k = 0; k < line.length; k++)
+			line[k] = Math.max(suffix[k], prefix[k + 2 * radius]);
+	}
+
+	/**
+	 * One dimensional pass of the L1 distance transform. Values are clamped to
+	 * the given infinity.
+	 */
+	static void manhattanDistance(int[] line, int infinity, int[] result) {
+		int n = line.length;
+		result[0] = Math.min(line[0], infinity);
+		for (int k = 1; k < n; k++)
+			result[k] = Math.min(line[k], result[k - 1] + 1);
+		for (int k = n - 2; k >= 0; k--)
+			result[k] = Math.min(result[k], result[k + 1] + 1);
+		for (int k = 0; k < n; k++)
+			result[k] = Math.min(result[k], infinity);
+	}
+
+	/**
+	 * One dimensional pass of the squared euclidean distance transform, as
+	 * described by Felzenszwalb and Huttenlocher. Values greater or equal to
+	 * infinity are ignored, the result is clamped to infinity.
+	 */
+	static void squaredDistance(int[] line, int infinity, int[] parabolas,
+		double[] boundaries, int[] result)
+	{
+		squaredDistance(line, null, infinity, parabolas, boundaries, result, null);
+	}
+
+	/**
+	 * Same as above, but additionally propagates the labels of the line. Each
+	 * position gets the label of the position with minimal distance. If labels
+	 * is null, no labels are propagated.
+	 */
+	static void squaredDistance(int[] line, long[] labels, int infinity,
+		int[] parabolas, double[] boundaries, int[] result, long[] resultLabels)
+	{
+		int n = line.length;
+		int count = 0;
+		for (int q = 0; q < n; q++) {
+			if (line[q] >= infinity)
+				continue;
+			double s = Double.NEGATIVE_INFINITY;
+			while (count > 0) {
+				int p = parabolas[count - 1];
+				s = ((line[q] + (double) q * q) - (line[p] + (double) p * p)) / (2.0 *
+					(q - p));
+				if (s > boundaries[count - 1])
+					break;
+				count--;
+				s = Double.NEGATIVE_INFINITY;
+			}
+			parabolas[count] = q;
+			boundaries[count] = s;
+			count++;
+		}
+		if (count == 0) {
+			for (int k = 0; k < n; k++) {
+				result[k] = infinity;
+				if (labels != null)
+					resultLabels[k] = 0;
+			}
+			return;
+		}
+		boundaries[count] = Double.POSITIVE_INFINITY;
+		int j = 0;
+		for (int k = 0; k < n; k++) {
+			while (boundaries[j + 1] < k)
+				j++;
+			int p = parabolas[j];
+			long value = (long) (k - p) * (k - p) + line[p];
+			result[k] = (int) Math.min(value, infinity);
+			if (labels != null)
+				resultLabels[k] = value < infinity ? labels[p] : 0;
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package sc.fiji.labkit.cli;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BlockClaimsTest {
+
+	@Test
+	public void testClaim() throws IOException {
+		Path n5 = Files.createTempDirectory("test-claims");
+		BlockClaims a = new BlockClaims(n5, 600, TimeUnit.SECONDS);
+		BlockClaims b = new BlockClaims(n5, 600, TimeUnit.SECONDS);
+		assertTrue(a.tryClaim(0));
+		assertFalse(b.tryClaim(0));
+		a.release(0);
+		assertTrue(b.tryClaim(0));
+	}
+
+	@Test
+	public void testFinishedBlockIsNotClaimedAgain() throws IOException {
+		Path n5 = Files.createTempDirectory("test-claims");
+		BlockClaims a = new BlockClaims(n5, 0, TimeUnit.SECONDS);
+		BlockClaims b = new BlockClaims(n5, 0, TimeUnit.SECONDS);
+		assertTrue(a.tryClaim(0));
+		a.finish(0);
+		// The claim file is deleted, but the block is logged as finished.
+		assertFalse(Files.exists(n5.resolve(BlockClaims.CLAIMS_DIRECTORY).resolve(
+			"0")));
+		assertFalse(b.tryClaim(0));
+		assertFalse(new BlockClaims(n5, 0, TimeUnit.SECONDS).tryClaim(0));
+	}
+
+	@Test
+	public void testTakeOverStaleClaim() throws IOException {
+		Path n5 = Files.createTempDirectory("test-claims");
+		BlockClaims a = new BlockClaims(n5, 0, TimeUnit.SECONDS);
+		BlockClaims b = new BlockClaims(n5, 0, TimeUnit.SECONDS);
+		assertTrue(a.tryClaim(0));
+		Files.setLastModifiedTime(n5.resolve(BlockClaims.CLAIMS_DIRECTORY).resolve(
+			"0"), FileTime.fromMillis(0));
+		assertTrue(b.tryClaim(0));
+	}
+}
@@ -0,0 +1,41 @@
+package sc.fiji.labkit.cli;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class BlockOrderTest {
+
+	@Test
+	public void testMorton2d() {
+		List<Integer> order = BlockOrder.morton(new long[] { 4, 2 }, new boolean[] {
+			true, true });
+		assertEquals(Arrays.asList(0, 1, 4, 5, 2, 3, 6, 7), order);
+	}
+
+	@Test
+	public void testTimeAxisIsNotInterleaved() {
+		List<Integer> order = BlockOrder.morton(new long[] { 2, 2, 3 },
+			new boolean[] { true, true, false });
+		assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11), order);
+	}
+
+	@Test
+	public void testPermutation() {
+		List<Integer> order = new ArrayList<>(BlockOrder.morton(new long[] { 5, 3,
+			7 }, new boolean[] { true, true, true }));
+		order.sort(Integer::compare);
+		assertEquals(new IntRange(0, 5 * 3 * 7), order);
+	}
+
+	@Test
+	public void testSubList() {
+		List<Integer> order = BlockOrder.morton(new long[] { 4, 4 }, new boolean[] {
+			true, true });
+		assertEquals(Arrays.asList(4, 5, 2, 3), order.subList(2, 6));
+	}
+}
@@ -0,0 +1,129 @@
+package sc.fiji.labkit.cli;
+
+import net.imglib2.algorithm.labeling.ConnectedComponents;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.parallel.TaskExecutor;
+import net.imglib2.parallel.TaskExecutors;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the blockwise connected component analysis of the
+ * "connected-components" sub command with the connected component analysis of
+ * imglib2-algorithm, that is used by the "segment" sub command.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 2, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@BenchmarkMode(value = Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ConnectedComponentsBenchmark {
+
+	@Param({ "64", "128" })
+	private int blockSize;
+
+	@Param({ "1", "4" })
+	private int threads;
+
+	private final ArrayImg<UnsignedByteType, ByteArray> segmentation =
+		N5WriteBenchmark.randomSpheres(256, 42);
+
+	private N5Writer writer;
+
+	private BlockwiseConnectedComponents cc;
+
+	private TaskExecutor taskExecutor;
+
+	private ExecutorService executorService;
+
+	@Setup
+	public void setup() throws IOException {
+		String n5 = Files.createTempDirectory("connected-components-benchmark")
+			.toString();
+		writer = new N5FSWriter(n5);
+		N5Utils.save(segmentation, writer, PrepareCommand.N5_DATASET_NAME,
+			new int[] { blockSize, blockSize, blockSize }, new GzipCompression());
+		cc = new BlockwiseConnectedComponents(n5);
+		cc.createLocalDataset();
+		cc.createOutputDataset(DataType.UINT32);
+		taskExecutor = TaskExecutors.fixedThreadPool(threads);
+		executorService = Executors.newFixedThreadPool(threads);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		taskExecutor.close();
+		executorService.shutdown();
+		writer.remove();
+	}
+
+	@Benchmark
+	public long benchmarkBlockwise() throws IOException {
+		IntRange blocks = new IntRange(0, cc.numberOfBlocks());
+		taskExecutor.forEach(blocks, i -> {
+			try {
+				cc.labelBlock(i);
+			}
+			catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		});
+		long numberOfLabels = cc.merge();
+		BlockwiseConnectedComponents.Mapping mapping = cc.readMapping();
+		taskExecutor.forEach(blocks, i -> {
+			try {
+				cc.relabelBlock(i, mapping);
+			}
+			catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		});
+		return numberOfLabels;
+	}
+
+	@Benchmark
+	public ArrayImg<UnsignedIntType, ?> benchmarkImgLib2() {
+		ArrayImg<UnsignedIntType, ?> labels = ArrayImgs.unsignedInts(segmentation
+			.dimensionsAsLongArray());
+		ConnectedComponents.labelAllConnectedComponents(segmentation, labels,
+			ConnectedComponents.StructuringElement.FOUR_CONNECTED, executorService);
+		return labels;
+	}
+
+	public static void main(String... args) throws RunnerException {
+		Options options = new OptionsBuilder()
+			.include(ConnectedComponentsBenchmark.class.getName())
+			.build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,38 @@
+package sc.fiji.labkit.cli;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.results.format.ResultFormatType;
+
+/**
+ * Runs all benchmarks of Labkit CLI: {@link SegmentationBenchmark},
+ * {@link N5WriteBenchmark}, {@link ConnectedComponentsBenchmark},
+ * {@link sc.fiji.labkit.cli.dilation.DilationBenchmark} and
+ * {@link sc.fiji.labkit.cli.dilation.FastDilationBenchmark}.
+ * <p>
+ * By default, the results are written to "benchmark-results.json", which can be compared
+ * between releases. The usual JMH command line arguments are supported, for
+ * example "-p threads=1,8,32" to measure with the number of threads of a
+ * cluster node, or "SegmentationBenchmark" to run a single benchmark.
+ */
+public class LabkitBenchmarks {
+
+	public static void main(String... args) throws RunnerException,
+		CommandLineOptionException
+	{
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+		OptionsBuilder builder = new OptionsBuilder();
+		if (commandLine.getIncludes().isEmpty())
+			builder.include("sc\\.fiji\\.labkit\\.cli\\..*Benchmark");
+		if (!commandLine.getResultFormat().hasValue())
+			builder.resultFormat(ResultFormatType.JSON);
+		if (!commandLine.getResult().hasValue())
+			builder.result("benchmark-results.json");
+		Options options = builder.parent(commandLine).build();
+		new Runner(options).run();
+	}
+}
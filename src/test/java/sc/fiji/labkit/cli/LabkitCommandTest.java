@@ -1,16 +1,47 @@
 
 package sc.fiji.labkit.cli;
 
+import bdv.spimdata.SpimDataMinimal;
+import bdv.spimdata.XmlIoSpimDataMinimal;
+import mpicbg.spim.data.SpimDataException;
+import mpicbg.spim.data.generic.sequence.BasicViewSetup;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.labeling.ConnectedComponents;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.test.ImgLib2Assert;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.util.Cast;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 import org.junit.Ignore;
 import org.junit.Test;
+import sc.fiji.labkit.ui.inputimage.SpimDataInputImage;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -26,6 +57,41 @@ public class LabkitCommandTest {
 		assertTrue(files.contains("segmentation"));
 	}
 
+	@Test
+	public void testPrepareAutoTune() throws IOException {
+		Path tmpN5 = Files.createTempDirectory("test-dataset");
+		runCommandLine("prepare", "--image", TestData.imageXml, "--classifier",
+				TestData.classifier, "--n5", tmpN5.toString(), "--auto-tune",
+				"--auto-tune-sizes", "16,32");
+		String attributes = new String(Files.readAllBytes(tmpN5.resolve(
+				PrepareCommand.N5_DATASET_NAME).resolve("attributes.json")));
+		assertTrue(attributes.contains(PrepareCommand.AUTO_TUNE_ATTRIBUTE));
+	}
+
+	@Test
+	public void testPrepareCompressionAndDataType() throws IOException {
+		Path expectedN5 = Files.createTempDirectory("test-dataset");
+		runCommandLine("prepare", "--image", TestData.imageXml, "--classifier",
+				TestData.classifier, "--n5", expectedN5.toString(), "--block-size", "32");
+		runCommandLine("segment-chunk", "--image", TestData.imageXml, "--classifier",
+			TestData.classifier, "--n5", expectedN5.toString(), "--chunks", "1", "--index", "0");
+		Path tmpN5 = Files.createTempDirectory("test-dataset");
+		runCommandLine("prepare", "--image", TestData.imageXml, "--classifier",
+				TestData.classifier, "--n5", tmpN5.toString(), "--block-size", "32",
+				"--compression", "lz4", "--data-type", "uint16");
+		runCommandLine("segment-chunk", "--image", TestData.imageXml, "--classifier",
+			TestData.classifier, "--n5", tmpN5.toString(), "--chunks", "1", "--index", "0");
+		N5FSReader reader = new N5FSReader(tmpN5.toString());
+		assertEquals(DataType.UINT16, reader.getDatasetAttributes(
+			PrepareCommand.N5_DATASET_NAME).getDataType());
+		RandomAccessibleInterval<UnsignedByteType> expected = N5Utils.open(
+			new N5FSReader(expectedN5.toString()), PrepareCommand.N5_DATASET_NAME);
+		RandomAccessibleInterval<UnsignedShortType> actual = N5Utils.open(reader,
+			PrepareCommand.N5_DATASET_NAME);
+		LoopBuilder.setImages(expected, actual).forEachPixel((e, a) -> assertEquals(
+			e.get(), a.get()));
+	}
+
 	private static Path prepare() throws IOException {
 		Path tmpN5 = Files.createTempDirectory("test-dataset");
 		runCommandLine("prepare", "--image", TestData.imageXml, "--classifier",
@@ -44,6 +110,393 @@ public class LabkitCommandTest {
 			.toFile().exists());
 	}
 
+	@Test
+	public void testSegmentRangePipelineSettings() throws IOException {
+		Path tmpN5 = prepare();
+		runCommandLine("segment-chunk", "--image", TestData.imageXml, "--classifier",
+			TestData.classifier, "--n5", tmpN5.toString(), "--chunks", "2", "--index", "0",
+			"--prefetch", "0", "--io-threads", "0");
+		runCommandLine("segment-chunk", "--image", TestData.imageXml, "--classifier",
+			TestData.classifier, "--n5", tmpN5.toString(), "--chunks", "2", "--index", "1",
+			"--prefetch", "8", "--io-threads", "4", "--write-queue", "1");
+		assertTrue(tmpN5.resolve( PrepareCommand.N5_DATASET_NAME).resolve("0/0/0")
+			.toFile().exists());
+	}
+
+	@Test
+	public void testSegmentRangeMemoryBudget() throws IOException {
+		Path tmpN5 = prepare();
+		// A budget of one megabyte admits only one block at a time.
+		runCommandLine("segment-chunk", "--image", TestData.imageXml, "--classifier",
+			TestData.classifier, "--n5", tmpN5.toString(), "--chunks", "2", "--index", "0",
+			"--memory-budget", "1");
+		runCommandLine("segment-chunk", "--image", TestData.imageXml, "--classifier",
+			TestData.classifier, "--n5", tmpN5.toString(), "--chunks", "2", "--index", "1",
+			"--memory-budget", "50%");
+		assertTrue(tmpN5.resolve( PrepareCommand.N5_DATASET_NAME).resolve("0/0/0")
+			.toFile().exists());
+	}
+
+	@Test
+	public void testSegmentRangeMetrics() throws IOException {
+		Path tmpN5 = prepare();
+		Path metrics = Files.createTempDirectory("test-metrics").resolve("metrics.csv");
+		runCommandLine("segment-chunk", "--image", TestData.imageXml, "--classifier",
+			TestData.classifier, "--n5", tmpN5.toString(), "--chunks", "1", "--index", "0",
+			"--metrics", metrics.toString());
+		List<String> lines = Files.readAllLines(metrics);
+		assertTrue(lines.get(0).startsWith("block_index,"));
+		assertTrue(lines.size() > 1);
+	}
+
+	@Test
+	public void testSegmentRangeResumeDeletesStaleTemporaryFiles() throws IOException {
+		Path tmpN5 = prepare();
+		Path block = N5BlockFiles.blockPath(tmpN5.toString(), PrepareCommand.N5_DATASET_NAME,
+			new long[] { 0, 0, 0 });
+		Files.createDirectories(block.getParent());
+		Path stale = block.resolveSibling("0" + N5BlockFiles.TEMPORARY_INFIX + "stale");
+		Files.write(stale, new byte[] { 0 });
+		Files.setLastModifiedTime(stale, FileTime.fromMillis(0));
+		runCommandLine("segment-chunk", "--image", TestData.imageXml, "--classifier",
+			TestData.classifier, "--n5", tmpN5.toString(), "--chunks", "1", "--index", "0",
+			"--resume");
+		assertFalse(Files.exists(stale));
+		assertTrue(Files.exists(block));
+	}
+
+	@Test
+	public void testSegmentRangeDefaultMetrics() throws IOException {
+		Path tmpN5 = prepare();
+		runCommandLine("segment-chunk", "--image", TestData.imageXml, "--classifier",
+			TestData.classifier, "--n5", tmpN5.toString(), "--chunks", "2", "--index", "1",
+			"--prefetch", "0");
+		List<String> lines = Files.readAllLines(BlockMetrics.defaultCsv(tmpN5, 1, 2));
+		assertTrue(lines.size() > 1);
+		// Without prefetching, the read time is not measured.
+		assertEquals("", lines.get(1).split(",")[3]);
+	}
+
+	@Test
+	public void testSegmentRangeResume() throws IOException {
+		Path tmpN5 = Files.createTempDirectory("test-dataset");
+		runCommandLine("prepare", "--image", TestData.imageXml, "--classifier",
+				TestData.classifier, "--n5", tmpN5.toString(), "--block-size", "32");
+		runCommandLine("segment-chunk", "--image", TestData.imageXml, "--classifier",
+			TestData.classifier, "--n5", tmpN5.toString(), "--chunks", "1", "--index", "0");
+		File block = tmpN5.resolve(PrepareCommand.N5_DATASET_NAME).resolve("0/0/0").toFile();
+		File truncated = tmpN5.resolve(PrepareCommand.N5_DATASET_NAME).resolve("1/1/1").toFile();
+		long lastModified = tmpN5.resolve(PrepareCommand.N5_DATASET_NAME).resolve("2/2/1").toFile().lastModified();
+		assertTrue(block.delete());
+		Files.write(truncated.toPath(), new byte[] { 0, 0, 0 });
+		runCommandLine("segment-chunk", "--image", TestData.imageXml, "--classifier",
+			TestData.classifier, "--n5", tmpN5.toString(), "--chunks", "1", "--index", "0",
+			"--resume");
+		assertTrue(block.exists());
+		assertTrue(truncated.length() > 3);
+		assertEquals(lastModified, tmpN5.resolve(PrepareCommand.N5_DATASET_NAME).resolve("2/2/1").toFile().lastModified());
+	}
+
+	@Test
+	public void testSegmentRangeInputCache() throws IOException {
+		Path expected = Files.createTempDirectory("test-dataset");
+		Path actual = Files.createTempDirectory("test-dataset");
+		for (Path tmpN5 : Arrays.asList(expected, actual))
+			runCommandLine("prepare", "--image", TestData.imageXml, "--classifier",
+				TestData.classifier, "--n5", tmpN5.toString(), "--block-size", "32");
+		runCommandLine("segment-chunk", "--image", TestData.imageXml, "--classifier",
+			TestData.classifier, "--n5", expected.toString(), "--chunks", "1", "--index", "0");
+		// A cache of one megabyte holds only a few cells, and evicts cells often.
+		for (int index = 0; index < 2; index++)
+			runCommandLine("segment-chunk", "--image", TestData.imageXml, "--classifier",
+				TestData.classifier, "--n5", actual.toString(), "--chunks", "2", "--index",
+				Integer.toString(index), "--input-cache", "1");
+		RandomAccessibleInterval<UnsignedByteType> expectedImage = N5Utils.open(
+			new N5FSReader(expected.toString()), PrepareCommand.N5_DATASET_NAME);
+		RandomAccessibleInterval<UnsignedByteType> actualImage = N5Utils.open(
+			new N5FSReader(actual.toString()), PrepareCommand.N5_DATASET_NAME);
+		ImgLib2Assert.assertImageEquals(expectedImage, actualImage);
+	}
+
+	@Test
+	public void testSegmentRangeInputN5() throws IOException {
+		Path expected = Files.createTempDirectory("test-dataset");
+		Path actual = Files.createTempDirectory("test-dataset");
+		for (Path tmpN5 : Arrays.asList(expected, actual))
+			runCommandLine("prepare", "--image", TestData.imageXml, "--classifier",
+				TestData.classifier, "--n5", tmpN5.toString(), "--block-size", "32");
+		runCommandLine("segment-chunk", "--image", TestData.imageXml, "--classifier",
+			TestData.classifier, "--n5", expected.toString(), "--chunks", "1", "--index", "0");
+		for (int index = 0; index < 2; index++)
+			runCommandLine("convert-input", "--image", TestData.imageXml, "--n5",
+				actual.toString(), "--chunks", "2", "--index", Integer.toString(index));
+		assertTrue(actual.resolve(InputN5.DATASET).resolve("0/0/0").toFile().exists());
+		runCommandLine("segment-chunk", "--input-n5", "--classifier",
+			TestData.classifier, "--n5", actual.toString(), "--chunks", "1", "--index", "0");
+		RandomAccessibleInterval<UnsignedByteType> expectedImage = N5Utils.open(
+			new N5FSReader(expected.toString()), PrepareCommand.N5_DATASET_NAME);
+		RandomAccessibleInterval<UnsignedByteType> actualImage = N5Utils.open(
+			new N5FSReader(actual.toString()), PrepareCommand.N5_DATASET_NAME);
+		ImgLib2Assert.assertImageEquals(expectedImage, actualImage);
+	}
+
+	@Test
+	public void testSegmentRangeBackgroundThreshold() throws IOException {
+		Path tmpN5 = prepare();
+		// All pixels are below the threshold, no block is classified.
+		runCommandLine("segment-chunk", "--image", TestData.imageXml, "--classifier",
+			TestData.classifier, "--n5", tmpN5.toString(), "--chunks", "1", "--index", "0",
+			"--background-threshold", "1e9", "--background-label", "1");
+		RandomAccessibleInterval<UnsignedByteType> segmentation = N5Utils.open(
+			new N5FSReader(tmpN5.toString()), PrepareCommand.N5_DATASET_NAME);
+		for (UnsignedByteType pixel : Views.iterable(segmentation))
+			assertEquals(1, pixel.get());
+	}
+
+	@Test
+	public void testSegmentRangeRejectsBackgroundLabelAbove255() throws IOException {
+		Path tmpN5 = prepare();
+		assertEquals(Optional.of(1), LabkitCommand.parseAndExecuteCommandLine(
+			"segment-chunk", "--image", TestData.imageXml, "--classifier",
+			TestData.classifier, "--n5", tmpN5.toString(), "--chunks", "1", "--index", "0",
+			"--background-threshold", "1e9", "--background-label", "300"));
+	}
+
+	@Test
+	public void testSegmentRangePartialBackground() throws IOException {
+		Path expected = Files.createTempDirectory("test-dataset");
+		Path actual = Files.createTempDirectory("test-dataset");
+		for (Path n5 : Arrays.asList(expected, actual))
+			runCommandLine("prepare", "--image", TestData.imageXml, "--classifier",
+				TestData.classifier, "--n5", n5.toString(), "--block-size", "32");
+		runCommandLine("segment-chunk", "--image", TestData.imageXml, "--classifier",
+			TestData.classifier, "--n5", expected.toString(), "--chunks", "1", "--index", "0");
+		// Use the darkest block as threshold, such that some blocks are skipped and
+		// the others are classified.
+		RandomAccessibleInterval<? extends RealType<?>> image = Cast.unchecked(
+			new SpimDataInputImage(TestData.imageXml, 0).imageForSegmentation());
+		CellGrid grid = new CellGrid(Intervals.dimensionsAsLongArray(image),
+			new int[] { 32, 32, 32 });
+		int numberOfBlocks = (int) Intervals.numElements(grid.getGridDimensions());
+		double[] maxima = new double[numberOfBlocks];
+		for (int i = 0; i < numberOfBlocks; i++)
+			maxima[i] = max(image, withMargin(image, blockInterval(grid, i),
+				BlockSegmentation.DEFAULT_MARGIN));
+		double threshold = Arrays.stream(maxima).min().getAsDouble();
+		runCommandLine("segment-chunk", "--image", TestData.imageXml, "--classifier",
+			TestData.classifier, "--n5", actual.toString(), "--chunks", "1", "--index", "0",
+			"--background-threshold", Double.toString(threshold), "--background-label", "1");
+		RandomAccessibleInterval<UnsignedByteType> expectedImage = N5Utils.open(
+			new N5FSReader(expected.toString()), PrepareCommand.N5_DATASET_NAME);
+		RandomAccessibleInterval<UnsignedByteType> actualImage = N5Utils.open(
+			new N5FSReader(actual.toString()), PrepareCommand.N5_DATASET_NAME);
+		int skipped = 0;
+		for (int i = 0; i < numberOfBlocks; i++) {
+			Interval block = blockInterval(grid, i);
+			if (maxima[i] > threshold) {
+				ImgLib2Assert.assertImageEquals(Views.interval(expectedImage, block),
+					Views.interval(actualImage, block));
+				continue;
+			}
+			skipped++;
+			for (UnsignedByteType pixel : Views.interval(actualImage, block))
+				assertEquals(1, pixel.get());
+		}
+		assertTrue(skipped > 0);
+		assertTrue(skipped < numberOfBlocks);
+	}
+
+	private static Interval blockInterval(CellGrid grid, int index) {
+		long[] min = new long[grid.numDimensions()];
+		int[] size = new int[grid.numDimensions()];
+		grid.getCellDimensions(index, min, size);
+		return FinalInterval.createMinSize(min, Arrays.stream(size).asLongStream()
+			.toArray());
+	}
+
+	private static Interval withMargin(Interval image, Interval block,
+		int margin)
+	{
+		return Intervals.intersect(image, Intervals.expand(block, margin));
+	}
+
+	private static double max(RandomAccessibleInterval<? extends RealType<?>> image,
+		Interval interval)
+	{
+		double max = Double.NEGATIVE_INFINITY;
+		for (RealType<?> pixel : Views.interval(image, interval))
+			max = Math.max(max, pixel.getRealDouble());
+		return max;
+	}
+
+	@Test
+	public void testSparseDataset() throws IOException {
+		Path tmpN5 = Files.createTempDirectory("test-dataset");
+		runCommandLine("prepare", "--image", TestData.imageXml, "--classifier",
+				TestData.classifier, "--n5", tmpN5.toString(), "--block-size", "32",
+				"--fill-value", "1");
+		for (int i = 0; i < 2; i++)
+			runCommandLine("segment-chunk", "--image", TestData.imageXml, "--classifier",
+				TestData.classifier, "--n5", tmpN5.toString(), "--chunks", "1", "--index", "0",
+				"--background-threshold", "1e9", "--background-label", "1", "--resume");
+		// All blocks only contain the fill value, none of them is written.
+		assertFalse(tmpN5.resolve(PrepareCommand.N5_DATASET_NAME).resolve("0/0/0")
+			.toFile().exists());
+		RandomAccessibleInterval<? extends IntegerType<?>> segmentation =
+			PrepareCommand.openSegmentation(new N5FSReader(tmpN5.toString()));
+		for (IntegerType<?> pixel : Views.iterable(segmentation))
+			assertEquals(1, pixel.getInteger());
+	}
+
+	@Test
+	public void testFillValueMustFitTheDataType() throws IOException {
+		Path tmpN5 = Files.createTempDirectory("test-dataset");
+		assertEquals(Optional.of(1), LabkitCommand.parseAndExecuteCommandLine(
+			"prepare", "--image", TestData.imageXml, "--classifier",
+			TestData.classifier, "--n5", tmpN5.toString(), "--fill-value", "256"));
+		assertEquals(Optional.of(1), LabkitCommand.parseAndExecuteCommandLine(
+			"prepare", "--image", TestData.imageXml, "--classifier",
+			TestData.classifier, "--n5", tmpN5.toString(), "--fill-value", "-1"));
+		runCommandLine("prepare", "--image", TestData.imageXml, "--classifier",
+			TestData.classifier, "--n5", tmpN5.toString(), "--data-type", "uint16",
+			"--fill-value", "256");
+	}
+
+	@Test
+	public void testSegmentWorker() throws IOException {
+		Path tmpN5 = prepare();
+		runCommandLine("segment-worker", "--image", TestData.imageXml, "--classifier",
+			TestData.classifier, "--n5", tmpN5.toString());
+		assertTrue(tmpN5.resolve(PrepareCommand.N5_DATASET_NAME).resolve("0/0/0")
+			.toFile().exists());
+		// Claims of finished blocks are deleted, the blocks are logged instead.
+		assertFalse(tmpN5.resolve(BlockClaims.CLAIMS_DIRECTORY).resolve("0")
+			.toFile().exists());
+		// A worker started late finds all blocks claimed and finishes.
+		runCommandLine("segment-worker", "--image", TestData.imageXml, "--classifier",
+			TestData.classifier, "--n5", tmpN5.toString());
+		// A lost block file wins over the log of finished blocks.
+		File block = tmpN5.resolve(PrepareCommand.N5_DATASET_NAME).resolve("0/0/0")
+			.toFile();
+		assertTrue(block.delete());
+		runCommandLine("segment-worker", "--image", TestData.imageXml, "--classifier",
+			TestData.classifier, "--n5", tmpN5.toString());
+		assertTrue(block.exists());
+		// Preparing the N5 folder again deletes the claims and logs.
+		runCommandLine("prepare", "--image", TestData.imageXml, "--classifier",
+			TestData.classifier, "--n5", tmpN5.toString());
+		assertFalse(tmpN5.resolve(BlockClaims.CLAIMS_DIRECTORY).toFile().exists());
+	}
+
+	@Test
+	public void testServe() throws Exception {
+		Path tmpN5 = prepare();
+		Path spool = Files.createTempDirectory("test-spool");
+		Thread server = new Thread(() -> runCommandLine("serve", "--image",
+			TestData.imageXml, "--classifier", TestData.classifier, "--spool", spool
+				.toString()));
+		server.start();
+		runCommandLine("submit-chunk", "--spool", spool.toString(), "--n5", tmpN5
+			.toString(), "--chunks", "2", "--index", "0");
+		runCommandLine("submit-chunk", "--spool", spool.toString(), "--n5", tmpN5
+			.toString(), "--chunks", "2", "--index", "1");
+		Files.createFile(spool.resolve(ServeCommand.STOP));
+		server.join();
+		assertTrue(tmpN5.resolve(PrepareCommand.N5_DATASET_NAME).resolve("0/0/0")
+			.toFile().exists());
+	}
+
+	@Test
+	public void testSubmitChunkWithoutServer() throws IOException {
+		Path tmpN5 = prepare();
+		Path spool = Files.createTempDirectory("test-spool");
+		assertEquals(Optional.of(1), LabkitCommand.parseAndExecuteCommandLine(
+			"submit-chunk", "--spool", spool.toString(), "--n5", tmpN5.toString(),
+			"--chunks", "1", "--index", "0", "--server-timeout", "0"));
+		try (Stream<Path> files = Files.list(spool)) {
+			assertEquals(0, files.count());
+		}
+	}
+
+	@Test
+	public void testConnectedComponents() throws IOException {
+		Path tmpN5 = Files.createTempDirectory("test-dataset");
+		runCommandLine("prepare", "--image", TestData.imageXml, "--classifier",
+				TestData.classifier, "--n5", tmpN5.toString(), "--block-size", "32");
+		runCommandLine("segment-chunk", "--image", TestData.imageXml, "--classifier",
+			TestData.classifier, "--n5", tmpN5.toString(), "--chunks", "1", "--index", "0");
+		for (String phase : new String[] { "label", "merge", "relabel" })
+			for (int index = 0; index < 2; index++)
+				runCommandLine("connected-components", "--n5", tmpN5.toString(),
+					"--phase", phase, "--chunks", "2", "--index", Integer.toString(index));
+		assertEquals(Optional.of(1), LabkitCommand.parseAndExecuteCommandLine(
+			"connected-components", "--n5", tmpN5.toString(), "--phase", "relabel",
+			"--output-type", "uint64"));
+		N5FSReader reader = new N5FSReader(tmpN5.toString());
+		RandomAccessibleInterval<UnsignedByteType> segmentation = N5Utils.open(
+			reader, PrepareCommand.N5_DATASET_NAME);
+		RandomAccessibleInterval<UnsignedIntType> labels = N5Utils.open(reader,
+			BlockwiseConnectedComponents.OUTPUT_DATASET);
+		Img<UnsignedIntType> expected = ArrayImgs.unsignedInts(Intervals
+			.dimensionsAsLongArray(segmentation));
+		ConnectedComponents.labelAllConnectedComponents(segmentation, expected,
+			ConnectedComponents.StructuringElement.FOUR_CONNECTED, Executors
+				.newSingleThreadExecutor());
+		// The labels may differ, but there must be a one to one correspondence.
+		Map<Long, Long> forward = new HashMap<>();
+		Map<Long, Long> backward = new HashMap<>();
+		LoopBuilder.setImages(expected, labels).forEachPixel((e, a) -> {
+			assertEquals(e.get(), forward.computeIfAbsent(a.get(), k -> e.get()).longValue());
+			assertEquals(a.get(), backward.computeIfAbsent(e.get(), k -> a.get()).longValue());
+		});
+	}
+
+	@Test
+	public void testPyramid() throws IOException {
+		Path tmpN5 = Files.createTempDirectory("test-dataset");
+		runCommandLine("prepare", "--image", TestData.imageXml, "--classifier",
+				TestData.classifier, "--n5", tmpN5.toString(), "--block-size", "16");
+		runCommandLine("segment-chunk", "--image", TestData.imageXml, "--classifier",
+			TestData.classifier, "--n5", tmpN5.toString(), "--chunks", "1", "--index", "0");
+		assertEquals(Optional.of(1), LabkitCommand.parseAndExecuteCommandLine(
+			"pyramid", "--n5", tmpN5.toString(), "--chunks", "2", "--index", "0"));
+		for (int index = 0; index < 2; index++)
+			runCommandLine("pyramid", "--n5", tmpN5.toString(), "--level", "1",
+				"--chunks", "2", "--index", Integer.toString(index));
+		N5FSReader reader = new N5FSReader(tmpN5.toString());
+		RandomAccessibleInterval<UnsignedByteType> chunked = copy(N5Utils.open(
+			reader, SegmentationPyramid.dataset(1)));
+		runCommandLine("pyramid", "--n5", tmpN5.toString());
+		RandomAccessibleInterval<UnsignedByteType> segmentation = N5Utils.open(
+			reader, PrepareCommand.N5_DATASET_NAME);
+		RandomAccessibleInterval<UnsignedByteType> level1 = N5Utils.open(reader,
+			SegmentationPyramid.dataset(1));
+		ImgLib2Assert.assertImageEquals(chunked, level1);
+		for (int d = 0; d < segmentation.numDimensions(); d++)
+			assertEquals((segmentation.dimension(d) + 1) / 2, level1.dimension(d));
+		assertTrue(reader.datasetExists(SegmentationPyramid.dataset(2)));
+		boolean[] spatial = PrepareCommand.spatialAxes(reader, SegmentationPyramid
+			.dataset(1));
+		for (boolean s : spatial)
+			assertTrue(s);
+	}
+
+	private static RandomAccessibleInterval<? extends RealType<?>> openHdf5(
+		File xml)
+	{
+		return Cast.unchecked(new SpimDataInputImage(xml.getAbsolutePath(), 0)
+			.imageForSegmentation());
+	}
+
+	private static RandomAccessibleInterval<UnsignedByteType> copy(
+		RandomAccessibleInterval<UnsignedByteType> image)
+	{
+		Img<UnsignedByteType> copy = ArrayImgs.unsignedBytes(Intervals
+			.dimensionsAsLongArray(image));
+		LoopBuilder.setImages(image, copy).forEachPixel((i, o) -> o.set(i));
+		return copy;
+	}
+
 	@Test
 	public void testSaveHdf5() throws IOException {
 		File file = File.createTempFile("test-data", ".xml");
@@ -52,6 +505,37 @@ public class LabkitCommandTest {
 		assertTrue(file.exists());
 	}
 
+	@Test
+	public void testSegmentAll() throws IOException {
+		Path tmpN5 = Files.createTempDirectory("test-dataset");
+		File directory = Files.createTempDirectory("test-segment-all").toFile();
+		File xml = new File(directory, "test.xml");
+		runCommandLine("segment-all", "--image", TestData.imageXml, "--classifier",
+			TestData.classifier, "--n5", tmpN5.toString(), "--xml", xml
+				.getAbsolutePath(), "--block-size", "32");
+		assertTrue(xml.exists());
+		assertTrue(new File(directory, "test.h5").exists());
+		ImgLib2Assert.assertImageEqualsRealType(PrepareCommand.openSegmentation(
+			new N5FSReader(tmpN5.toString())), openHdf5(xml), 0);
+		// Options that don't match the N5 folder are rejected.
+		assertEquals(Optional.of(1), LabkitCommand.parseAndExecuteCommandLine(
+			"segment-all", "--image", TestData.imageXml, "--classifier",
+			TestData.classifier, "--n5", tmpN5.toString(), "--xml", xml
+				.getAbsolutePath(), "--block-size", "16"));
+		// Restarting continues from the N5 folder, only missing blocks are segmented.
+		File block = tmpN5.resolve(PrepareCommand.N5_DATASET_NAME).resolve("0/0/0")
+			.toFile();
+		long lastModified = tmpN5.resolve(PrepareCommand.N5_DATASET_NAME).resolve(
+			"1/1/1").toFile().lastModified();
+		assertTrue(block.delete());
+		runCommandLine("segment-all", "--image", TestData.imageXml, "--classifier",
+			TestData.classifier, "--n5", tmpN5.toString(), "--xml", xml
+				.getAbsolutePath());
+		assertTrue(block.exists());
+		assertEquals(lastModified, tmpN5.resolve(PrepareCommand.N5_DATASET_NAME)
+			.resolve("1/1/1").toFile().lastModified());
+	}
+
 	@Test
 	public void testSavePartitionedHdf5() throws IOException {
 		File directory = Files.createTempDirectory("test-partitioned-hdf5")
@@ -100,6 +584,73 @@ public class LabkitCommandTest {
 		assertFalse(new File(directory, "test-00-00.h5").exists());
 	}
 
+	@Test
+	public void testSaveTiledHdf5() throws Exception {
+		File directory = Files.createTempDirectory("test-partitioned-hdf5")
+			.toFile();
+		File xml = new File(directory, "test.xml");
+		runCommandLine("create-partitioned-hdf5", "--n5", TestData.n5, "--xml", xml
+			.getAbsolutePath(), "--tile-size", "64", "--partition", "1");
+		assertFalse(xml.exists());
+		assertTrue(new File(directory, "test-00-01.h5").exists());
+		runCommandLine("create-partitioned-hdf5", "--n5", TestData.n5, "--xml", xml
+			.getAbsolutePath(), "--tile-size", "64", "--header");
+		assertTrue(xml.exists());
+		assertTrue(new File(directory, "test.h5").exists());
+		assertFalse(new File(directory, "test-00-00.h5").exists());
+		// 97 x 108 x 65 pixels, divided into tiles of 64^3
+		for (int partition = 0; partition < 8; partition++)
+			if (partition != 1)
+				runCommandLine("create-partitioned-hdf5", "--n5", TestData.n5, "--xml",
+					xml.getAbsolutePath(), "--tile-size", "64", "--partition", Integer
+						.toString(partition));
+		assertTilesEqual(PrepareCommand.openSegmentation(new N5FSReader(
+			TestData.n5)), xml, 8);
+	}
+
+	@Test
+	public void testSaveTiledHdf5RejectsWideLabels() throws IOException {
+		Path tmpN5 = Files.createTempDirectory("test-dataset");
+		runCommandLine("prepare", "--image", TestData.imageXml, "--classifier",
+			TestData.classifier, "--n5", tmpN5.toString(), "--data-type", "uint32");
+		File xml = new File(Files.createTempDirectory("test-partitioned-hdf5")
+			.toFile(), "test.xml");
+		assertEquals(Optional.of(1), LabkitCommand.parseAndExecuteCommandLine(
+			"create-partitioned-hdf5", "--n5", tmpN5.toString(), "--xml", xml
+				.getAbsolutePath(), "--tile-size", "64", "--header"));
+		assertFalse(xml.exists());
+	}
+
+	/**
+	 * Opens the tiled BDV XML, places every tile by its view registration, and
+	 * compares it with the expected image.
+	 */
+	private static void assertTilesEqual(
+		RandomAccessibleInterval<? extends IntegerType<?>> expected, File xml,
+		int numberOfTiles) throws SpimDataException
+	{
+		SpimDataMinimal spimData = new XmlIoSpimDataMinimal().load(xml
+			.getAbsolutePath());
+		List<BasicViewSetup> setups = spimData.getSequenceDescription()
+			.getViewSetupsOrdered();
+		assertEquals(numberOfTiles, setups.size());
+		long voxels = 0;
+		for (BasicViewSetup setup : setups) {
+			RandomAccessibleInterval<? extends RealType<?>> tile = Cast.unchecked(
+				spimData.getSequenceDescription().getImgLoader().getSetupImgLoader(
+					setup.getId()).getImage(0));
+			AffineTransform3D transform = spimData.getViewRegistrations()
+				.getViewRegistration(0, setup.getId()).getModel();
+			RandomAccessibleInterval<? extends RealType<?>> placed = Views.translate(
+				tile, (long) transform.get(0, 3), (long) transform.get(1, 3),
+				(long) transform.get(2, 3));
+			ImgLib2Assert.assertImageEqualsRealType(Views.interval(expected, placed),
+				placed, 0);
+			voxels += Intervals.numElements(tile);
+		}
+		assertEquals(Intervals.numElements(expected), voxels);
+	}
+
 	public static void main(String... args) {
 		LabkitCommand.main("show", "--n5", TestData.n5);
 	}
@@ -0,0 +1,93 @@
+package sc.fiji.labkit.cli;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class MemoryAdmissionTest {
+
+	private static final long MB = 1 << 20;
+
+	private static final long BASELINE = 1000 * MB;
+
+	private static final long MAX_HEAP = 10000 * MB;
+
+	@Test
+	public void testInitialEstimate() {
+		MemoryAdmission admission = new MemoryAdmission(1000 * MB, 8, 300 * MB,
+			BASELINE, MAX_HEAP);
+		assertEquals(3, admission.limit());
+	}
+
+	@Test
+	public void testAtLeastOneBlock() {
+		MemoryAdmission admission = new MemoryAdmission(100 * MB, 8, 300 * MB,
+			BASELINE, MAX_HEAP);
+		assertEquals(1, admission.limit());
+	}
+
+	@Test
+	public void testFirstMeasurementReplacesEstimate() {
+		MemoryAdmission admission = new MemoryAdmission(1000 * MB, 16, 1000 * MB,
+			BASELINE, MAX_HEAP);
+		// four blocks in flight hold 400 MB of live heap above the baseline
+		admission.observe(BASELINE + 400 * MB, 4);
+		assertEquals(100 * MB, admission.bytesPerBlock());
+		assertEquals(10, admission.limit());
+	}
+
+	@Test
+	public void testEstimateIsSmoothedAndDecreases() {
+		MemoryAdmission admission = new MemoryAdmission(1000 * MB, 16, 1000 * MB,
+			BASELINE, MAX_HEAP);
+		admission.observe(BASELINE + 200 * MB, 1);
+		admission.observe(BASELINE + 100 * MB, 2);
+		// 0.25 * 50 MB + 0.75 * 200 MB
+		assertEquals(Math.round(162.5 * MB), admission.bytesPerBlock());
+		for (int i = 0; i < 50; i++)
+			admission.observe(BASELINE + 100 * MB, 2);
+		assertEquals(50 * MB, admission.bytesPerBlock(), MB);
+		assertEquals(16, admission.limit());
+	}
+
+	@Test
+	public void testLimitIsCappedByMaxBlocks() {
+		MemoryAdmission admission = new MemoryAdmission(1000 * MB, 4, 1 * MB,
+			BASELINE, MAX_HEAP);
+		assertEquals(4, admission.limit());
+	}
+
+	@Test
+	public void testHeapPressureReducesLimit() {
+		MemoryAdmission admission = new MemoryAdmission(100000 * MB, 8, 1 * MB,
+			BASELINE, MAX_HEAP);
+		admission.observe((long) (0.9 * MAX_HEAP), 8);
+		assertEquals(7, admission.limit());
+		admission.observe((long) (0.9 * MAX_HEAP), 8);
+		assertEquals(6, admission.limit());
+		admission.observe((long) (0.5 * MAX_HEAP), 6);
+		assertEquals(7, admission.limit());
+	}
+
+	@Test
+	public void testIdleMeasurementUpdatesBaseline() {
+		MemoryAdmission admission = new MemoryAdmission(1000 * MB, 16, 1000 * MB,
+			BASELINE, MAX_HEAP);
+		admission.observe(BASELINE - 500 * MB, 0);
+		admission.observe(BASELINE, 5);
+		assertEquals(100 * MB, admission.bytesPerBlock());
+	}
+
+	@Test
+	public void testAcquireAndRelease() {
+		MemoryAdmission admission = new MemoryAdmission(1000 * MB, 2, 1 * MB,
+			BASELINE, MAX_HEAP);
+		admission.acquire();
+		admission.acquire();
+		admission.release();
+		// doesn't block, because one block was released
+		admission.acquire();
+		admission.release();
+		admission.release();
+	}
+}
@@ -0,0 +1,180 @@
+package sc.fiji.labkit.cli;
+
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.parallel.TaskExecutor;
+import net.imglib2.parallel.TaskExecutors;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import sc.fiji.labkit.ui.inputimage.SpimDataInputImage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time needed to write a segmentation of 256 x 256 x 256 pixels
+ * block by block to a N5 folder, with each of the compressions supported by
+ * N5. The segmentation consists of random spheres, such that the compression
+ * ratio is comparable to real segmentations.
+ * <p>
+ * The blocks are written like {@link BlockPipeline} does:
+ * {@link BlockSegmentation#compressBlock} serializes and compresses a block,
+ * {@link BlockSegmentation#writeCompressedBlock} writes it to the file system.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 2, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@BenchmarkMode(value = Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class N5WriteBenchmark {
+
+	private static final int SIZE = 256;
+
+	@Param({ "raw", "gzip", "bzip2", "lz4", "xz" })
+	private String compression;
+
+	@Param({ "64", "128" })
+	private int blockSize;
+
+	@Param({ "1", "4" })
+	private int threads;
+
+	private final ArrayImg<UnsignedByteType, ByteArray> segmentation =
+		randomSpheres(SIZE, 42);
+
+	private N5Writer writer;
+
+	private BlockSegmentation blockSegmentation;
+
+	private List<ArrayImg<UnsignedByteType, ByteArray>> blocks;
+
+	private TaskExecutor taskExecutor;
+
+	@Setup
+	public void setup() throws IOException {
+		File n5 = Files.createTempDirectory("n5-benchmark").toFile();
+		writer = new N5FSWriter(n5.getAbsolutePath());
+		int[] blockDimensions = { blockSize, blockSize, blockSize };
+		writer.createDataset(PrepareCommand.N5_DATASET_NAME, new DatasetAttributes(
+			segmentation.dimensionsAsLongArray(), blockDimensions, DataType.UINT8,
+			PrepareCommand.parseCompression(compression)));
+		// The image and classifier are not used for writing, but are required
+		// to construct the BlockSegmentation.
+		blockSegmentation = new BlockSegmentation(n5.getAbsolutePath(),
+			BlockSegmentation.openSegmenter(new File(TestData.classifier), false),
+			new SpimDataInputImage(TestData.imageXml, 0).imageForSegmentation());
+		blocks = splitIntoBlocks(new CellGrid(segmentation.dimensionsAsLongArray(),
+			blockDimensions));
+		taskExecutor = TaskExecutors.fixedThreadPool(threads);
+	}
+
+	/**
+	 * Copies each block of the segmentation into an ArrayImg, as produced by
+	 * the segmenter, such that the copy isn't part of the measured time.
+	 */
+	private List<ArrayImg<UnsignedByteType, ByteArray>> splitIntoBlocks(
+		CellGrid grid)
+	{
+		List<ArrayImg<UnsignedByteType, ByteArray>> blocks = new ArrayList<>();
+		long numberOfBlocks = Intervals.numElements(grid.getGridDimensions());
+		int n = grid.numDimensions();
+		for (long i = 0; i < numberOfBlocks; i++) {
+			long[] min = new long[n];
+			int[] size = new int[n];
+			grid.getCellDimensions(i, min, size);
+			long[] max = new long[n];
+			for (int d = 0; d < n; d++)
+				max[d] = min[d] + size[d] - 1;
+			ArrayImg<UnsignedByteType, ByteArray> block = ArrayImgs.unsignedBytes(
+				Util.int2long(size));
+			LoopBuilder.setImages(Views.interval(segmentation, min, max), block)
+				.forEachPixel((in, out) -> out.set(in));
+			blocks.add(block);
+		}
+		return blocks;
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		taskExecutor.close();
+		writer.remove();
+	}
+
+	@Benchmark
+	public void benchmarkSaveBlocks() {
+		taskExecutor.forEach(new IntRange(0, blocks.size()), i -> {
+			try {
+				byte[] bytes = blockSegmentation.compressBlock(i, blocks.get(i));
+				blockSegmentation.writeCompressedBlock(i, bytes);
+			}
+			catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		});
+	}
+
+	/**
+	 * Returns a binary image of the given size, that contains randomly placed
+	 * spheres. Roughly every sixth pixel is foreground.
+	 */
+	static ArrayImg<UnsignedByteType, ByteArray> randomSpheres(int size,
+		long seed)
+	{
+		Random random = new Random(seed);
+		ArrayImg<UnsignedByteType, ByteArray> image = ArrayImgs.unsignedBytes(size,
+			size, size);
+		byte[] pixels = image.update(null).getCurrentStorageArray();
+		int numberOfSpheres = size * size * size / 4000;
+		for (int s = 0; s < numberOfSpheres; s++) {
+			int cx = random.nextInt(size);
+			int cy = random.nextInt(size);
+			int cz = random.nextInt(size);
+			int r = 2 + random.nextInt(8);
+			for (int z = Math.max(0, cz - r); z <= Math.min(size - 1, cz + r); z++)
+				for (int y = Math.max(0, cy - r); y <= Math.min(size - 1, cy + r); y++)
+					for (int x = Math.max(0, cx - r); x <= Math.min(size - 1, cx + r); x++)
+						if ((x - cx) * (x - cx) + (y - cy) * (y - cy) + (z - cz) * (z -
+							cz) <= r * r)
+							pixels[(z * size + y) * size + x] = 1;
+		}
+		return image;
+	}
+
+	public static void main(String... args) throws RunnerException {
+		Options options = new OptionsBuilder()
+			.include(N5WriteBenchmark.class.getName())
+			.build();
+		new Runner(options).run();
+	}
+}
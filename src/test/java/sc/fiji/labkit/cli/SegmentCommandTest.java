@@ -10,7 +10,9 @@ import sc.fiji.labkit.pixel_classification.utils.SingletonContext;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Optional;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 public class SegmentCommandTest {
@@ -24,6 +26,33 @@ public class SegmentCommandTest {
 		assertImageFilesEqual( TestData.blobsSegmentation, output.getAbsolutePath() );
 	}
 
+	@Test
+	public void testTileSize() throws IOException
+	{
+		File output = File.createTempFile("segmentation", ".tif");
+		LabkitCommandTest.runCommandLine("segment", "--image", TestData.blobs, "--classifier", TestData.blobsClassifier,
+				"--output", output.getAbsolutePath(), "--tile-size", "50");
+		assertImageFilesEqual( TestData.blobsSegmentation, output.getAbsolutePath() );
+	}
+
+	@Test
+	public void testDeflateCompression() throws IOException
+	{
+		File output = File.createTempFile("segmentation", ".tif");
+		LabkitCommandTest.runCommandLine("segment", "--image", TestData.blobs, "--classifier", TestData.blobsClassifier,
+				"--output", output.getAbsolutePath(), "--compression", "deflate:9", "--writer-threads", "3");
+		assertImageFilesEqual( TestData.blobsSegmentation, output.getAbsolutePath() );
+	}
+
+	@Test
+	public void testCompressionRequiresTiffOutput() throws IOException
+	{
+		File output = File.createTempFile("segmentation", ".png");
+		Optional<Integer> exitCode = LabkitCommand.parseAndExecuteCommandLine("segment", "--image", TestData.blobs,
+				"--classifier", TestData.blobsClassifier, "--output", output.getAbsolutePath(), "--compression", "deflate");
+		assertEquals(Optional.of(1), exitCode);
+	}
+
 	@Test
 	public void testDilationAndConnectedComponents() throws IOException
 	{
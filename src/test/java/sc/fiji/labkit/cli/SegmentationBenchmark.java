@@ -0,0 +1,141 @@
+package sc.fiji.labkit.cli;
+
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.parallel.TaskExecutor;
+import net.imglib2.parallel.TaskExecutors;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import sc.fiji.labkit.ui.inputimage.SpimDataInputImage;
+import sc.fiji.labkit.ui.segmentation.Segmenter;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Measures the time needed to segment the complete small-t1-head test image
+ * block by block, as done by the "segment-chunk" sub command, but without
+ * writing the result.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 2, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@BenchmarkMode(value = Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SegmentationBenchmark {
+
+	@Param({ "32", "64", "128" })
+	private int blockSize;
+
+	@Param({ "1", "4" })
+	private int threads;
+
+	private ImgPlus<?> image;
+
+	private Segmenter segmenter;
+
+	private List<Interval> blocks;
+
+	private TaskExecutor taskExecutor;
+
+	@Setup
+	public void setup() {
+		image = new SpimDataInputImage(TestData.imageXml, 0).imageForSegmentation();
+		segmenter = BlockSegmentation.openSegmenter(new File(TestData.classifier),
+			false);
+		// The segmentation has the dimensions of the image, without the channel axis.
+		int channelAxis = image.dimensionIndex(Axes.CHANNEL);
+		long[] dimensions = new long[image.numDimensions() - (channelAxis < 0 ? 0 : 1)];
+		for (int d = 0, b = 0; d < image.numDimensions(); d++)
+			if (d != channelAxis)
+				dimensions[b++] = image.dimension(d);
+		int n = dimensions.length;
+		int[] cellDimensions = new int[n];
+		Arrays.fill(cellDimensions, blockSize);
+		CellGrid grid = new CellGrid(dimensions, cellDimensions);
+		blocks = new ArrayList<>();
+		long numberOfBlocks = Intervals.numElements(grid.getGridDimensions());
+		for (long i = 0; i < numberOfBlocks; i++) {
+			long[] min = new long[n];
+			int[] size = new int[n];
+			grid.getCellDimensions(i, min, size);
+			long[] max = new long[n];
+			for (int d = 0; d < n; d++)
+				max[d] = min[d] + size[d] - 1;
+			blocks.add(new FinalInterval(min, max));
+		}
+		taskExecutor = TaskExecutors.fixedThreadPool(threads);
+	}
+
+	@TearDown
+	public void tearDown() {
+		taskExecutor.close();
+	}
+
+	/**
+	 * Blocks at the border of the image have the size that is left over.
+	 */
+	@Benchmark
+	public void benchmarkSegmentBlocks() {
+		taskExecutor.forEach(blocks, block -> segment(block, b -> segmenter.segment(
+			image, b)));
+	}
+
+	/**
+	 * Blocks at the border of the image are extended with zeros to the full
+	 * block size, as done for segmenters that require a fixed cell size.
+	 */
+	@Benchmark
+	public void benchmarkSegmentFixedBlockSize() {
+		int[] size = new int[blocks.get(0).numDimensions()];
+		Arrays.fill(size, blockSize);
+		Consumer<RandomAccessibleInterval<UnsignedByteType>> loader =
+			BlockSegmentation.fixBlockSize(b -> segmenter.segment(image, b), size);
+		taskExecutor.forEach(blocks, block -> segment(block, loader));
+	}
+
+	private static ArrayImg<UnsignedByteType, ByteArray> segment(Interval block,
+		Consumer<RandomAccessibleInterval<UnsignedByteType>> loader)
+	{
+		ArrayImg<UnsignedByteType, ByteArray> output = ArrayImgs.unsignedBytes(
+			Intervals.dimensionsAsLongArray(block));
+		loader.accept(Views.translate(output, Intervals.minAsLongArray(block)));
+		return output;
+	}
+
+	public static void main(String... args) throws RunnerException {
+		Options options = new OptionsBuilder()
+			.include(SegmentationBenchmark.class.getName())
+			.build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,58 @@
+package sc.fiji.labkit.cli;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.type.numeric.IntegerType;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.janelia.saalfeldlab.n5.ShortArrayDataBlock;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class SparseDatasetTest {
+
+	@Test
+	public void testOpen() throws IOException {
+		N5FSWriter writer = new N5FSWriter(Files.createTempDirectory("test-sparse")
+			.toString());
+		writer.createDataset("labels", new long[] { 10, 7 }, new int[] { 4, 4 },
+			DataType.UINT16, new RawCompression());
+		DatasetAttributes attributes = writer.getDatasetAttributes("labels");
+		// A block at the border, stored with the full block size.
+		short[] values = new short[16];
+		for (int i = 0; i < values.length; i++)
+			values[i] = (short) i;
+		writer.writeBlock("labels", attributes, new ShortArrayDataBlock(new int[] {
+			4, 4 }, new long[] { 2, 1 }, values));
+		CachedCellImg<? extends IntegerType<?>, ?> image = SparseDataset.open(
+			writer, "labels", 3);
+		RandomAccess<? extends IntegerType<?>> ra = image.randomAccess();
+		for (int y = 0; y < 7; y++)
+			for (int x = 0; x < 10; x++) {
+				long expected = x >= 8 && y >= 4 ? (x - 8) + 4 * (y - 4) : 3;
+				assertEquals(expected, ra.setPositionAndGet(x, y).getIntegerLong());
+			}
+	}
+
+	@Test
+	public void testAbsentBlocksShareTheirPixels() throws IOException {
+		N5FSWriter writer = new N5FSWriter(Files.createTempDirectory("test-sparse")
+			.toString());
+		writer.createDataset("labels", new long[] { 8, 8 }, new int[] { 4, 4 },
+			DataType.UINT8, new RawCompression());
+		CachedCellImg<? extends IntegerType<?>, ?> image = SparseDataset.open(
+			writer, "labels", 0);
+		RandomAccess<? extends Cell<?>> cells = image.getCells().randomAccess();
+		Object first = cells.setPositionAndGet(0, 0).getData();
+		assertSame(first, cells.setPositionAndGet(1, 0).getData());
+		assertSame(first, cells.setPositionAndGet(1, 1).getData());
+	}
+}
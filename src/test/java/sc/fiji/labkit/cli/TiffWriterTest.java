@@ -0,0 +1,76 @@
+package sc.fiji.labkit.cli;
+
+import io.scif.services.DatasetIOService;
+import net.imagej.Dataset;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.test.ImgLib2Assert;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.view.Views;
+import org.junit.Test;
+import sc.fiji.labkit.pixel_classification.utils.SingletonContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class TiffWriterTest {
+
+	@Test
+	public void testWriteStack() throws IOException {
+		Img<UnsignedShortType> image = ArrayImgs.unsignedShorts(300, 200, 3);
+		int i = 0;
+		for (UnsignedShortType pixel : image)
+			pixel.setInteger(i++ % 65521);
+		File file = File.createTempFile("stack", ".tif");
+		TiffWriter.write(image, file.toPath());
+		DatasetIOService io = SingletonContext.getInstance().service(
+			DatasetIOService.class);
+		Dataset actual = io.open(file.getAbsolutePath());
+		ImgLib2Assert.assertImageEqualsRealType(image, actual, 0);
+	}
+
+	@Test
+	public void testWriteTimeSeries() throws IOException {
+		ImgPlus<UnsignedShortType> image = new ImgPlus<>(randomImage(30, 20, 4),
+			"xyt", new AxisType[] { Axes.X, Axes.Y, Axes.TIME });
+		Dataset actual = writeAndOpen(image);
+		assertEquals(Axes.TIME, actual.axis(2).type());
+		ImgLib2Assert.assertImageEqualsRealType(image, actual, 0);
+	}
+
+	@Test
+	public void testWriteHyperstackOrder() throws IOException {
+		// Time before Z is written in the ImageJ order: Z before time.
+		ImgPlus<UnsignedShortType> image = new ImgPlus<>(randomImage(30, 20, 3,
+			2), "xytz", new AxisType[] { Axes.X, Axes.Y, Axes.TIME, Axes.Z });
+		Dataset actual = writeAndOpen(image);
+		assertEquals(Axes.Z, actual.axis(2).type());
+		assertEquals(Axes.TIME, actual.axis(3).type());
+		ImgLib2Assert.assertImageEqualsRealType(Views.permute(image, 2, 3), actual,
+			0);
+	}
+
+	private static Img<UnsignedShortType> randomImage(long... dimensions) {
+		Img<UnsignedShortType> image = ArrayImgs.unsignedShorts(dimensions);
+		Random random = new Random(42);
+		for (UnsignedShortType pixel : image)
+			pixel.setInteger(random.nextInt(1000));
+		return image;
+	}
+
+	private static Dataset writeAndOpen(ImgPlus<UnsignedShortType> image)
+		throws IOException
+	{
+		File file = File.createTempFile("hyperstack", ".tif");
+		TiffWriter.write(image, file.toPath(), TiffWriter.Compression.LZW, 2);
+		DatasetIOService io = SingletonContext.getInstance().service(
+			DatasetIOService.class);
+		return io.open(file.getAbsolutePath());
+	}
+}
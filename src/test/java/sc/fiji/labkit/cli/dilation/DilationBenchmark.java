@@ -0,0 +1,145 @@
+package sc.fiji.labkit.cli.dilation;
+
+import net.imglib2.algorithm.neighborhood.DiamondShape;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.parallel.Parallelization;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.util.Cast;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the dilation methods for different radii and pixel types. The
+ * image is a sparse label image of 256 x 256 x 256 pixels, similar to the
+ * output of a connected component analysis. Each invocation starts from the
+ * same image, because the dilations work in place.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@BenchmarkMode(value = Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DilationBenchmark {
+
+	private static final int SIZE = 256;
+
+	@Param({ "1", "4", "8" })
+	private int radius;
+
+	@Param({ "uint8", "uint16", "uint32" })
+	private String type;
+
+	@Param({ "1", "4" })
+	private int threads;
+
+	private ArrayImg<?, ?> original;
+
+	private ArrayImg<?, ?> image;
+
+	private ArrayImg<?, ?> output;
+
+	@Setup
+	public void setup() {
+		original = create(type);
+		image = create(type);
+		output = create(type);
+		Random random = new Random(42);
+		int maxLabel = type.equals("uint8") ? 255 : 10000;
+		for (Object pixel : original)
+			if (random.nextDouble() < 0.001)
+				((IntegerType<?>) pixel).setInteger(1 + random.nextInt(maxLabel));
+	}
+
+	@Setup(Level.Invocation)
+	public void reset() {
+		copy(original, image);
+	}
+
+	@Benchmark
+	public void benchmarkFastDilation() {
+		Parallelization.runWithNumThreads(threads, () -> {
+			for (int i = 0; i < radius; i++)
+				FastDilation.dilate(new DiamondShape(1), Cast.unchecked(image), Cast
+					.unchecked(image));
+		});
+	}
+
+	@Benchmark
+	public void benchmarkSeparableBox() {
+		dilate(SeparableDilation.StructuringElement.BOX);
+	}
+
+	@Benchmark
+	public void benchmarkSeparableDiamond() {
+		dilate(SeparableDilation.StructuringElement.DIAMOND);
+	}
+
+	@Benchmark
+	public void benchmarkSeparableSphere() {
+		dilate(SeparableDilation.StructuringElement.SPHERE);
+	}
+
+	@Benchmark
+	public void benchmarkSeparableOctagon() {
+		dilate(SeparableDilation.StructuringElement.OCTAGON);
+	}
+
+	@Benchmark
+	public void benchmarkLabelExpansion() {
+		Parallelization.runWithNumThreads(threads, () -> LabelExpansion.expand(
+			Cast.unchecked(image), Cast.unchecked(output), radius));
+	}
+
+	private void dilate(SeparableDilation.StructuringElement structuringElement) {
+		Parallelization.runWithNumThreads(threads, () -> SeparableDilation.dilate(
+			Cast.unchecked(image), structuringElement, radius));
+	}
+
+	private static ArrayImg<?, ?> create(String type) {
+		switch (type) {
+			case "uint8":
+				return ArrayImgs.unsignedBytes(SIZE, SIZE, SIZE);
+			case "uint16":
+				return ArrayImgs.unsignedShorts(SIZE, SIZE, SIZE);
+			case "uint32":
+				return ArrayImgs.unsignedInts(SIZE, SIZE, SIZE);
+			default:
+				throw new IllegalArgumentException("Unknown pixel type: " + type);
+		}
+	}
+
+	private static <T extends IntegerType<T>> void copy(ArrayImg<?, ?> in,
+		ArrayImg<?, ?> out)
+	{
+		LoopBuilder.setImages(Cast.<ArrayImg<T, ?>> unchecked(in), Cast
+			.<ArrayImg<T, ?>> unchecked(out)).multiThreaded().forEachPixel((i,
+				o) -> o.set(i));
+	}
+
+	public static void main(String... args) throws RunnerException {
+		Options options = new OptionsBuilder()
+			.include(DilationBenchmark.class.getName())
+			.build();
+		new Runner(options).run();
+	}
+}
@@ -5,14 +5,19 @@ import net.imglib2.algorithm.morphology.Dilation;
 import net.imglib2.algorithm.neighborhood.DiamondShape;
 import net.imglib2.algorithm.neighborhood.Shape;
 import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.loops.LoopBuilder;
 import net.imglib2.test.RandomImgs;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
 import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.annotations.BenchmarkMode;
 import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
 import org.openjdk.jmh.annotations.Measurement;
 import org.openjdk.jmh.annotations.Mode;
 import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
 import org.openjdk.jmh.annotations.State;
 import org.openjdk.jmh.annotations.Warmup;
 import org.openjdk.jmh.runner.Runner;
@@ -33,6 +38,10 @@ public class FastDilationBenchmark {
 
 	private final Img<UnsignedShortType> image = RandomImgs.seed(42).nextImage(
 		new UnsignedShortType(), 1000, 100, 100);
+	private final ArrayImg<UnsignedShortType, ?> arrayImage = ArrayImgs.unsignedShorts(
+		1000, 100, 100);
+	private final ArrayImg<UnsignedShortType, ?> expanded = ArrayImgs.unsignedShorts(
+		1000, 100, 100);
 	private final List<Shape> strels = Arrays.asList(new DiamondShape(1));
 
 	@Benchmark
@@ -45,6 +54,30 @@ public class FastDilationBenchmark {
 		FastDilation.dilate(new DiamondShape(1), image, image);
 	}
 
+	/**
+	 * The separable dilation works in place, the array image is therefore reset
+	 * before each invocation.
+	 */
+	@Setup(Level.Invocation)
+	public void setup() {
+		LoopBuilder.setImages(image, arrayImage).forEachPixel((i, o) -> o.set(i));
+	}
+
+	@Benchmark
+	public void benchmarkSeparableBox() {
+		SeparableDilation.dilate(arrayImage, SeparableDilation.StructuringElement.BOX, 8);
+	}
+
+	@Benchmark
+	public void benchmarkSeparableDiamond() {
+		SeparableDilation.dilate(arrayImage, SeparableDilation.StructuringElement.DIAMOND, 8);
+	}
+
+	@Benchmark
+	public void benchmarkLabelExpansion() {
+		LabelExpansion.expand(arrayImage, expanded, 8);
+	}
+
 	public static void main(String... args) throws RunnerException {
 		Options options = new OptionsBuilder()
 			.include(FastDilationBenchmark.class.getName())
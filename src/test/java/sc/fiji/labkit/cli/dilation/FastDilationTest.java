@@ -1,10 +1,12 @@
 package sc.fiji.labkit.cli.dilation;
 
+import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.algorithm.neighborhood.DiamondShape;
 import net.imglib2.algorithm.neighborhood.RectangleShape;
 import net.imglib2.img.Img;
 import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.test.ImgLib2Assert;
+import net.imglib2.test.RandomImgs;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
 import org.junit.Test;
 
@@ -37,4 +39,13 @@ public class FastDilationTest {
 		);
 		ImgLib2Assert.assertImageEquals(expected, image);
 	}
+
+	@Test
+	public void testInPlaceEqualsCopy() {
+		Img<UnsignedShortType> image = RandomImgs.seed(42).nextImage(
+				new UnsignedShortType(), 20, 15, 10);
+		RandomAccessibleInterval<UnsignedShortType> expected = FastDilation.dilate(new DiamondShape(2), image, null);
+		FastDilation.dilate(new DiamondShape(2), image, image);
+		ImgLib2Assert.assertImageEquals(expected, image);
+	}
 }
@@ -0,0 +1,79 @@
+package sc.fiji.labkit.cli.dilation;
+
+import net.imglib2.Cursor;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.test.ImgLib2Assert;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+public class LabelExpansionTest {
+
+	@Test
+	public void testTouchingLabelsAreNotMerged() {
+		ArrayImg<UnsignedShortType, ?> image = ArrayImgs.unsignedShorts(new short[] {
+			0, 0, 7, 0, 0, 0, 0, 3, 0 }, 9);
+		ArrayImg<UnsignedShortType, ?> result = ArrayImgs.unsignedShorts(9);
+		LabelExpansion.expand(image, result, 2);
+		ArrayImg<UnsignedShortType, ?> expected = ArrayImgs.unsignedShorts(
+			new short[] { 7, 7, 7, 7, 7, 3, 3, 3, 3 }, 9);
+		ImgLib2Assert.assertImageEquals(expected, result);
+	}
+
+	@Test
+	public void testNearestLabel() {
+		int radius = 3;
+		Random random = new Random(42);
+		// large enough to be divided into several tiles
+		ArrayImg<UnsignedShortType, ?> image = ArrayImgs.unsignedShorts(100, 70, 5);
+		for (UnsignedShortType pixel : image)
+			if (random.nextDouble() < 0.005)
+				pixel.set(1 + random.nextInt(1000));
+		ArrayImg<UnsignedShortType, ?> result = ArrayImgs.unsignedShorts(image
+			.dimensionsAsLongArray());
+		LabelExpansion.expand(image, result, radius);
+		List<long[]> seeds = new ArrayList<>();
+		List<Integer> labels = new ArrayList<>();
+		Cursor<UnsignedShortType> cursor = image.localizingCursor();
+		while (cursor.hasNext()) {
+			if (cursor.next().get() == 0)
+				continue;
+			seeds.add(cursor.positionAsLongArray());
+			labels.add(cursor.get().get());
+		}
+		Cursor<UnsignedShortType> out = result.localizingCursor();
+		while (out.hasNext()) {
+			int label = out.next().get();
+			long[] position = out.positionAsLongArray();
+			// the label must belong to one of the nearest seeds, ties are allowed
+			long minDistance = Long.MAX_VALUE;
+			List<Integer> nearest = new ArrayList<>();
+			for (int i = 0; i < seeds.size(); i++) {
+				long distance = squaredDistance(seeds.get(i), position);
+				if (distance < minDistance) {
+					minDistance = distance;
+					nearest.clear();
+				}
+				if (distance == minDistance)
+					nearest.add(labels.get(i));
+			}
+			if (minDistance <= radius * radius)
+				assertTrue(nearest.contains(label));
+			else
+				assertTrue(label == 0);
+		}
+	}
+
+	private static long squaredDistance(long[] a, long[] b) {
+		long sum = 0;
+		for (int d = 0; d < a.length; d++)
+			sum += (a[d] - b[d]) * (a[d] - b[d]);
+		return sum;
+	}
+}
@@ -0,0 +1,120 @@
+package sc.fiji.labkit.cli.dilation;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.neighborhood.DiamondShape;
+import net.imglib2.algorithm.neighborhood.HyperSphereShape;
+import net.imglib2.algorithm.neighborhood.RectangleShape;
+import net.imglib2.algorithm.neighborhood.Shape;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.test.ImgLib2Assert;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SeparableDilationTest {
+
+	@Test
+	public void testBox() {
+		testEqualsFastDilation(SeparableDilation.StructuringElement.BOX, 3,
+			new RectangleShape(3, true), 3);
+	}
+
+	@Test
+	public void testDiamond() {
+		testEqualsFastDilation(SeparableDilation.StructuringElement.DIAMOND, 3,
+			new DiamondShape(3), 3);
+	}
+
+	@Test
+	public void testDiamondManyLevels() {
+		testEqualsFastDilation(SeparableDilation.StructuringElement.DIAMOND, 2,
+			new DiamondShape(2), 100);
+	}
+
+	@Test
+	public void testSphere() {
+		testEqualsFastDilation(SeparableDilation.StructuringElement.SPHERE, 4,
+			new HyperSphereShape(4), 3);
+	}
+
+	@Test
+	public void testDiamondSlabs() {
+		testEqualsFastDilation(SeparableDilation.StructuringElement.DIAMOND, 3,
+			new DiamondShape(3), 3, 23 * 17 * 4);
+	}
+
+	@Test
+	public void testSphereSlabs() {
+		testEqualsFastDilation(SeparableDilation.StructuringElement.SPHERE, 4,
+			new HyperSphereShape(4), 3, 23 * 17);
+	}
+
+	@Test
+	public void testIsExact() {
+		ArrayImg<UnsignedShortType, ?> few = randomImage(3);
+		ArrayImg<UnsignedShortType, ?> many = randomImage(100);
+		assertTrue(SeparableDilation.isExact(few,
+			SeparableDilation.StructuringElement.SPHERE));
+		assertFalse(SeparableDilation.isExact(many,
+			SeparableDilation.StructuringElement.SPHERE));
+		assertTrue(SeparableDilation.isExact(many,
+			SeparableDilation.StructuringElement.DIAMOND));
+	}
+
+	@Test
+	public void testOctagon() {
+		ArrayImg<UnsignedShortType, ?> image = randomImage(100);
+		RandomAccessibleInterval<UnsignedShortType> expected = copy(image);
+		for (int i = 0; i < 2; i++) {
+			FastDilation.dilate(new DiamondShape(1), expected, expected);
+			FastDilation.dilate(new RectangleShape(1, true), expected, expected);
+		}
+		FastDilation.dilate(new DiamondShape(1), expected, expected);
+		SeparableDilation.dilate(image, SeparableDilation.StructuringElement.OCTAGON,
+			5);
+		ImgLib2Assert.assertImageEquals(expected, image);
+	}
+
+	private void testEqualsFastDilation(
+		SeparableDilation.StructuringElement structuringElement, int radius,
+		Shape shape, int levels)
+	{
+		testEqualsFastDilation(structuringElement, radius, shape, levels,
+			SeparableDilation.SLAB_SIZE);
+	}
+
+	private void testEqualsFastDilation(
+		SeparableDilation.StructuringElement structuringElement, int radius,
+		Shape shape, int levels, int slabSize)
+	{
+		ArrayImg<UnsignedShortType, ?> image = randomImage(levels);
+		RandomAccessibleInterval<UnsignedShortType> expected = FastDilation.dilate(
+			shape, image, null);
+		SeparableDilation.dilate(image, structuringElement, radius, slabSize);
+		ImgLib2Assert.assertImageEquals(expected, image);
+	}
+
+	private static ArrayImg<UnsignedShortType, ?> randomImage(int levels) {
+		Random random = new Random(42);
+		ArrayImg<UnsignedShortType, ?> image = ArrayImgs.unsignedShorts(23, 17, 11);
+		for (UnsignedShortType pixel : image)
+			if (random.nextDouble() < 0.01)
+				pixel.set(1 + random.nextInt(levels));
+		return image;
+	}
+
+	private static RandomAccessibleInterval<UnsignedShortType> copy(
+		ArrayImg<UnsignedShortType, ?> image)
+	{
+		RandomAccessibleInterval<UnsignedShortType> copy = ArrayImgs.unsignedShorts(
+			image.dimensionsAsLongArray());
+		LoopBuilder.setImages(image, copy).forEachPixel((i, o) -> o.set(i));
+		return copy;
+	}
+}